@@ -0,0 +1,9 @@
+#!/bin/sh
+# Runs the JMH benchmark suite through Gradle, passing every argument through, e.g.
+#   scripts/bench.sh --out results/main.csv
+#   scripts/bench.sh --baseline results/main.csv Store
+# With --baseline the script exits with status 1 if any benchmark regressed by more than the
+# tolerance (--tolerance, 10% by default).
+set -e
+cd "$(dirname "$0")/.."
+exec gradle -q jmh -Pargs="$*"
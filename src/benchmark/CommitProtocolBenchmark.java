@@ -0,0 +1,139 @@
+package benchmark;
+
+import server.Histogram;
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.Metrics;
+import server.ShardRouter;
+import server.TwoPhaseCommitImpl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Write latency of the commit protocol optimizations. Replicas keep a write-ahead log under a
+// temporary directory and take [rttMicros] per call, standing in for the round trip to a remote
+// replica; [threads] writers PUT random keys for [seconds] per configuration.
+//
+// With one replica, two rounds of 2PC ("2pc") against one-phase commit ("onePhase"). With three,
+// acknowledging the client after the commit phase ("sync") against early acknowledgement once the
+// decision is logged ("earlyAck"). Each writer has its own keys and reads the key back right after
+// each PUT, counting the reads that missed the write; afterwards the benchmark waits for the
+// commits still in flight and checks that all replicas hold the same values.
+//
+// Usage: java -Dkvstore.verbose=false -Dkvstore.batch.enabled=false benchmark.CommitProtocolBenchmark [threads] [seconds] [rttMicros]
+public class CommitProtocolBenchmark {
+  private static final int KEYS = 1000;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    long rttMicros = args.length > 2 ? Long.parseLong(args[2]) : 200;
+    Path root = Files.createTempDirectory("kvstore-commit");
+    System.setProperty("kvstore.data.dir", root.toString());
+
+    System.out.println("replicas,protocol,threads,writes_per_sec,p50_us,p99_us,errors,stale_reads,converged");
+    int run = 0;
+    for (String protocol : new String[]{"2pc", "onePhase", "sync", "earlyAck"}) {
+      int replicas = protocol.equals("2pc") || protocol.equals("onePhase") ? 1 : 3;
+      run(run++, replicas, protocol, threads, seconds, TimeUnit.MICROSECONDS.toNanos(rttMicros));
+    }
+
+    deleteRecursively(root);
+    System.exit(0);
+  }
+
+  private static void run(int run, int replicaCount, String protocol, int threads, int seconds, long rttNanos)
+          throws Exception {
+    List<KeyValueStoreImpl> stores = new ArrayList<>();
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < replicaCount; i++) {
+      KeyValueStoreImpl store = new KeyValueStoreImpl("run" + run + "-replica" + i);
+      stores.add(store);
+      replicas.add(new DelayedReplica(store, rttNanos));
+    }
+    TwoPhaseCommitImpl coordinator = new TwoPhaseCommitImpl(replicas);
+    coordinator.setOnePhase(protocol.equals("onePhase"));
+    coordinator.setEarlyAck(protocol.equals("earlyAck"));
+    ShardRouter.Shard shard = ShardRouter.single(coordinator, replicas).getShard(0);
+
+    Histogram latency = new Histogram();
+    LongAdder errors = new LongAdder();
+    LongAdder staleReads = new LongAdder();
+    long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+    CountDownLatch done = new CountDownLatch(threads);
+    int keysPerThread = KEYS / threads;
+    for (int t = 0; t < threads; t++) {
+      int firstKey = t * keysPerThread;
+      new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.nanoTime();
+        while (now < end) {
+          String key = "key" + (firstKey + random.nextInt(keysPerThread));
+          String value = "value" + random.nextInt();
+          boolean committed = shard.submit("PUT", key, value);
+          long finished = System.nanoTime();
+          boolean stale = false;
+          try {
+            stale = committed && !shard.get(key).equals("GET OK: " + value);
+          } catch (RemoteException e) {
+            errors.increment();
+          }
+          if (now >= measureFrom) {
+            latency.record(finished - now);
+            if (!committed) {
+              errors.increment();
+            }
+            if (stale) {
+              staleReads.increment();
+            }
+          }
+          now = System.nanoTime();
+        }
+        done.countDown();
+      }).start();
+    }
+    done.await();
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (Metrics.snapshot().get("transactions.asyncCommits") > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    System.out.printf("%d,%s,%d,%.0f,%d,%d,%d,%d,%b%n", replicaCount, protocol, threads,
+            latency.getCount() / (double) seconds, latency.getPercentile(50) / 1000,
+            latency.getPercentile(99) / 1000, errors.sum(), staleReads.sum(), converged(stores));
+    coordinator.close();
+    for (KeyValueStoreImpl store : stores) {
+      store.close();
+    }
+  }
+
+  private static boolean converged(List<KeyValueStoreImpl> stores) throws RemoteException {
+    for (int k = 0; k < KEYS; k++) {
+      String value = stores.get(0).get("key" + k);
+      for (KeyValueStoreImpl store : stores) {
+        if (!Objects.equals(value, store.get("key" + k))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static void deleteRecursively(Path root) throws IOException {
+    try (Stream<Path> paths = Files.walk(root)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+}
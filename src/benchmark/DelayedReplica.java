@@ -0,0 +1,118 @@
+package benchmark;
+
+import server.KeyValueStoreInterface;
+import server.Operation;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// A local replica whose calls take as long as a round trip to a remote one. Every method of the
+// interface is forwarded after the delay, and the calls are counted. Optionally [slowPercent] of
+// the calls take 20 times as long, like a GC pause or a retransmission, and every call fails with
+// a RemoteException until System.nanoTime() reaches [downUntil] (0 for never).
+public final class DelayedReplica implements KeyValueStoreInterface {
+  private final KeyValueStoreInterface store;
+  private final long delayNanos;
+  private final int slowPercent;
+  private final long downUntil;
+  private final LongAdder calls = new LongAdder();
+
+  public DelayedReplica(KeyValueStoreInterface store, long delayNanos) {
+    this(store, delayNanos, 0, 0);
+  }
+
+  public DelayedReplica(KeyValueStoreInterface store, long delayNanos, int slowPercent, long downUntil) {
+    this.store = store;
+    this.delayNanos = delayNanos;
+    this.slowPercent = slowPercent;
+    this.downUntil = downUntil;
+  }
+
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  private void roundTrip() throws RemoteException {
+    calls.increment();
+    if (downUntil != 0 && System.nanoTime() - downUntil < 0) {
+      throw new RemoteException("Replica is down");
+    }
+    boolean slow = slowPercent > 0 && ThreadLocalRandom.current().nextInt(100) < slowPercent;
+    LockSupport.parkNanos(slow ? delayNanos * 20 : delayNanos);
+  }
+
+  @Override
+  public String get(String key) throws RemoteException {
+    roundTrip();
+    return store.get(key);
+  }
+
+  @Override
+  public String put(String key, String value) throws RemoteException {
+    roundTrip();
+    return store.put(key, value);
+  }
+
+  @Override
+  public String delete(String key) throws RemoteException {
+    roundTrip();
+    return store.delete(key);
+  }
+
+  @Override
+  public boolean prepare(String transactionId, String operation, String key, String value) throws RemoteException {
+    roundTrip();
+    return store.prepare(transactionId, operation, key, value);
+  }
+
+  @Override
+  public boolean prepareBatch(String transactionId, List<Operation> operations) throws RemoteException {
+    roundTrip();
+    return store.prepareBatch(transactionId, operations);
+  }
+
+  @Override
+  public List<String> prepareReadOnly(String transactionId, List<Operation> operations) throws RemoteException {
+    roundTrip();
+    return store.prepareReadOnly(transactionId, operations);
+  }
+
+  @Override
+  public void commit(String transactionId) throws RemoteException {
+    roundTrip();
+    store.commit(transactionId);
+  }
+
+  @Override
+  public void abort(String transactionId) throws RemoteException {
+    roundTrip();
+    store.abort(transactionId);
+  }
+
+  @Override
+  public boolean commitOnePhase(String transactionId, List<Operation> operations) throws RemoteException {
+    roundTrip();
+    return store.commitOnePhase(transactionId, operations);
+  }
+
+  @Override
+  public List<String> inDoubt(long olderThanMillis) throws RemoteException {
+    roundTrip();
+    return store.inDoubt(olderThanMillis);
+  }
+
+  @Override
+  public void resolve(List<String> committed, List<String> aborted) throws RemoteException {
+    roundTrip();
+    store.resolve(committed, aborted);
+  }
+
+  @Override
+  public List<String> transact(List<Operation> operations) throws RemoteException {
+    roundTrip();
+    return store.transact(operations);
+  }
+}
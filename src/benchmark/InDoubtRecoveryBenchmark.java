@@ -0,0 +1,168 @@
+package benchmark;
+
+import server.CoordinatorLog;
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.Metrics;
+import server.Operation;
+import server.TwoPhaseCommitImpl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Recovery of transactions a coordinator crash left in doubt. [transactions] transactions are
+// prepared on [replicas] replicas that keep a write-ahead log under a temporary directory and take
+// [rttMicros] per call; every other one has its commit decision in the coordinator log. Then the
+// coordinator "crashes": its log is closed and the replicas are restarted from their logs, still
+// holding every transaction prepared.
+//
+// "perTransaction" finishes them the way a participant-driven inquiry would, one commit or abort
+// call (and one fsync) per transaction and replica. "resolver" restarts the coordinator: a
+// TwoPhaseCommitImpl over a reopened log asks each replica for its in-doubt transactions and
+// resolves them in one call. Both report the time until no replica holds a prepared transaction
+// and check that exactly the logged transactions were applied.
+//
+// Usage: java -Dkvstore.verbose=false benchmark.InDoubtRecoveryBenchmark [transactions] [replicas] [rttMicros]
+public class InDoubtRecoveryBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int replicaCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    long rttNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 2 ? Long.parseLong(args[2]) : 200);
+    Path root = Files.createTempDirectory("kvstore-indoubt");
+    System.setProperty("kvstore.data.dir", root.toString());
+    System.setProperty("kvstore.coordinator.name", "coordinator");
+
+    System.out.println("recovery,transactions,replicas,millis,calls,left_prepared,applied_correctly,resolved_commits,resolved_aborts");
+    for (String recovery : new String[]{"perTransaction", "resolver"}) {
+      run(root, recovery, transactions, replicaCount, rttNanos);
+    }
+
+    deleteRecursively(root);
+    System.exit(0);
+  }
+
+  private static void run(Path root, String recovery, int transactions, int replicaCount, long rttNanos)
+          throws Exception {
+    Path logDirectory = root.resolve("coordinator");
+    deleteRecursively(logDirectory);
+    List<String> replicaNames = new ArrayList<>();
+    List<KeyValueStoreImpl> stores = new ArrayList<>();
+    for (int i = 0; i < replicaCount; i++) {
+      replicaNames.add(recovery + "-replica" + i);
+      stores.add(new KeyValueStoreImpl(replicaNames.get(i)));
+    }
+
+    // Before the crash: everything prepared, half of it decided. The replica names are the ones
+    // the restarted coordinator gives its replicas.
+    CoordinatorLog log = new CoordinatorLog(logDirectory, true, 1L << 30);
+    List<String> decidedOn = new ArrayList<>();
+    for (int i = 0; i < replicaCount; i++) {
+      decidedOn.add("replica" + (i + 1));
+    }
+    for (int t = 0; t < transactions; t++) {
+      String transactionId = log.getCoordinatorId() + "-" + t;
+      List<Operation> operations = Collections.singletonList(new Operation("PUT", "key" + t, "value" + t));
+      for (KeyValueStoreImpl store : stores) {
+        store.prepareBatch(transactionId, operations);
+      }
+      if (t % 2 == 0) {
+        log.logCommit(transactionId, decidedOn);
+      }
+    }
+    log.close();
+    for (int i = 0; i < replicaCount; i++) {
+      stores.get(i).close();
+      stores.set(i, new KeyValueStoreImpl(replicaNames.get(i)));
+    }
+
+    List<DelayedReplica> replicas = new ArrayList<>();
+    for (KeyValueStoreImpl store : stores) {
+      replicas.add(new DelayedReplica(store, rttNanos));
+    }
+    long resolvedCommits = Metrics.snapshot().get("transactions.resolvedCommits");
+    long resolvedAborts = Metrics.snapshot().get("transactions.resolvedAborts");
+    long started = System.nanoTime();
+    TwoPhaseCommitImpl coordinator = null;
+    if (recovery.equals("perTransaction")) {
+      CoordinatorLog restarted = new CoordinatorLog(logDirectory, true, 1L << 30);
+      for (DelayedReplica replica : replicas) {
+        for (String transactionId : replica.inDoubt(0)) {
+          if (restarted.isCommitted(transactionId)) {
+            replica.commit(transactionId);
+          } else {
+            replica.abort(transactionId);
+          }
+        }
+      }
+      restarted.close();
+    } else {
+      CoordinatorLog.openShared("coordinator");
+      coordinator = new TwoPhaseCommitImpl(new ArrayList<KeyValueStoreInterface>(replicas));
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+    while ((prepared(stores) > 0 || unfinishedDecisions() > 0) && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+    int calls = 0;
+    for (DelayedReplica replica : replicas) {
+      calls += replica.getCalls();
+    }
+    System.out.printf("%s,%d,%d,%d,%d,%d,%b,%d,%d%n", recovery, transactions, replicaCount, millis, calls,
+            prepared(stores), appliedCorrectly(stores, transactions),
+            Metrics.snapshot().get("transactions.resolvedCommits") - resolvedCommits,
+            Metrics.snapshot().get("transactions.resolvedAborts") - resolvedAborts);
+    if (coordinator != null) {
+      coordinator.close();
+    }
+    for (KeyValueStoreImpl store : stores) {
+      store.close();
+    }
+  }
+
+  // Decisions the restarted coordinator has not yet seen every replica acknowledge.
+  private static long unfinishedDecisions() {
+    return Metrics.snapshot().get("transactions.unfinishedDecisions");
+  }
+
+  private static int prepared(List<KeyValueStoreImpl> stores) {
+    int prepared = 0;
+    for (KeyValueStoreImpl store : stores) {
+      prepared += store.getPreparedTransactionCount();
+    }
+    return prepared;
+  }
+
+  // Decided transactions are applied on every replica, the others on none.
+  private static boolean appliedCorrectly(List<KeyValueStoreImpl> stores, int transactions) throws RemoteException {
+    for (KeyValueStoreImpl store : stores) {
+      for (int t = 0; t < transactions; t++) {
+        String expected = t % 2 == 0 ? "GET OK: value" + t : null;
+        String value = store.get("key" + t);
+        if (expected == null ? value.startsWith("GET OK") : !expected.equals(value)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static void deleteRecursively(Path root) throws IOException {
+    if (!Files.exists(root)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(root)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+}
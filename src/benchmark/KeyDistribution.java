@@ -0,0 +1,73 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Picks keys "key0" .. "key<n-1>" for a benchmark, either uniformly or from a Zipf distribution in
+// which key i is chosen with probability proportional to 1 / (i + 1)^0.99, the skew YCSB uses for
+// hot-key workloads. The key Strings are built up front so that picking one allocates nothing.
+public final class KeyDistribution {
+  private static final double ZIPF_EXPONENT = 0.99;
+
+  private final String name;
+  private final String[] keys;
+  // Cumulative probabilities of the Zipf distribution, or null for a uniform one.
+  private final double[] cumulative;
+
+  private KeyDistribution(String name, int keyCount, double[] cumulative) {
+    this.name = name;
+    this.keys = new String[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = "key" + i;
+    }
+    this.cumulative = cumulative;
+  }
+
+  public static KeyDistribution uniform(int keyCount) {
+    return new KeyDistribution("uniform", keyCount, null);
+  }
+
+  public static KeyDistribution zipf(int keyCount) {
+    double[] cumulative = new double[keyCount];
+    double total = 0;
+    for (int i = 0; i < keyCount; i++) {
+      total += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+      cumulative[i] = total;
+    }
+    for (int i = 0; i < keyCount; i++) {
+      cumulative[i] /= total;
+    }
+    return new KeyDistribution("zipf", keyCount, cumulative);
+  }
+
+  public static KeyDistribution of(String name, int keyCount) {
+    switch (name) {
+      case "uniform":
+        return uniform(keyCount);
+      case "zipf":
+        return zipf(keyCount);
+      default:
+        throw new IllegalArgumentException("Unknown key distribution: " + name);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  public String key(int index) {
+    return keys[index];
+  }
+
+  public String next(ThreadLocalRandom random) {
+    if (cumulative == null) {
+      return keys[random.nextInt(keys.length)];
+    }
+    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+    return keys[Math.min(index < 0 ? -index - 1 : index, keys.length - 1)];
+  }
+}
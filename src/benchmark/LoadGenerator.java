@@ -0,0 +1,441 @@
+package benchmark;
+
+import server.Histogram;
+import server.KeyValueStoreInterface;
+import server.TwoPhaseCommitImpl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives one of the front-ends (RMI, TCP or UDP) with a GET/PUT/DELETE mix over a uniform or
+// Zipf-skewed key space and reports throughput and latency percentiles.
+//
+// Without --rate it runs closed loop: each of --threads clients sends its next request as soon as
+// the previous one is answered, which measures the highest throughput the server sustains. With
+// --rate it runs open loop: requests are scheduled at a fixed rate, split evenly across the
+// threads, and latency is measured from when a request was due to be sent rather than from when
+// it actually went out. A server that stalls therefore gets charged for every request that queued
+// up behind the stall, which a closed-loop client silently skips ("coordinated omission"). The
+// service time, measured from the actual send, is reported next to it.
+//
+// Each thread has its own connection (or, over RMI, shares the looked-up replicas and one
+// TwoPhaseCommitImpl). Requests due during the first --warmup seconds are not counted. Results go
+// to stdout and, with --out, to a CSV file (a row per operation type, appended to an existing
+// file so runs can be collected) or, if the name ends in .json, a JSON file.
+//
+// Usage: java -Dkvstore.log.level=error benchmark.LoadGenerator [--transport rmi|tcp|udp]
+//          [--host localhost] [--port 8888] [--replicas localhost:1099,localhost:1100,...]
+//          [--threads 8] [--rate 0] [--duration 30] [--warmup 5] [--keys 10000]
+//          [--distribution uniform|zipf] [--reads 90] [--deletes 0] [--valueSize 16]
+//          [--timeout 5000] [--preload false] [--out results.csv|results.json]
+public class LoadGenerator {
+  private static final String[] OPERATIONS = {"all", "get", "put", "delete"};
+  private static final int GET = 1;
+  private static final int PUT = 2;
+  private static final int DELETE = 3;
+
+  private final Map<String, String> options;
+  private final KeyDistribution keys;
+  private final String value;
+  private final int readPercent;
+  private final int deletePercent;
+  private final Histogram[] latency = new Histogram[OPERATIONS.length];
+  private final Histogram[] serviceTime = new Histogram[OPERATIONS.length];
+  private final LongAdder[] errors = new LongAdder[OPERATIONS.length];
+  // Replicas and coordinator for --transport rmi, shared by every thread.
+  private List<KeyValueStoreInterface> replicas;
+  private TwoPhaseCommitImpl twoPhaseCommit;
+
+  private LoadGenerator(Map<String, String> options) {
+    this.options = options;
+    this.keys = KeyDistribution.of(options.get("distribution"), Integer.parseInt(options.get("keys")));
+    char[] chars = new char[Integer.parseInt(options.get("valueSize"))];
+    Arrays.fill(chars, 'v');
+    this.value = new String(chars);
+    this.readPercent = Integer.parseInt(options.get("reads"));
+    this.deletePercent = Integer.parseInt(options.get("deletes"));
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      latency[i] = new Histogram();
+      serviceTime[i] = new Histogram();
+      errors[i] = new LongAdder();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>();
+    options.put("transport", "tcp");
+    options.put("host", "localhost");
+    options.put("replicas", "localhost:1099,localhost:1100,localhost:1101,localhost:1102,localhost:1103");
+    options.put("threads", "8");
+    options.put("rate", "0");
+    options.put("duration", "30");
+    options.put("warmup", "5");
+    options.put("keys", "10000");
+    options.put("distribution", "uniform");
+    options.put("reads", "90");
+    options.put("deletes", "0");
+    options.put("valueSize", "16");
+    options.put("timeout", "5000");
+    options.put("preload", "false");
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (!args[i].startsWith("--")) {
+        System.err.println("Unexpected argument: " + args[i]);
+        System.exit(1);
+      }
+      options.put(args[i].substring(2), args[i + 1]);
+    }
+    if (!options.containsKey("port")) {
+      options.put("port", options.get("transport").equals("udp") ? "9999" : "8888");
+    }
+
+    LoadGenerator generator = new LoadGenerator(options);
+    generator.connect();
+    if (Boolean.parseBoolean(options.get("preload"))) {
+      generator.preload();
+    }
+    List<String[]> rows = generator.run();
+    generator.report(rows);
+    if (generator.twoPhaseCommit != null) {
+      generator.twoPhaseCommit.close();
+    }
+    System.exit(0);
+  }
+
+  private void connect() throws Exception {
+    if (!options.get("transport").equals("rmi")) {
+      return;
+    }
+    replicas = new ArrayList<>();
+    String[] addresses = options.get("replicas").split(",");
+    for (int i = 0; i < addresses.length; i++) {
+      replicas.add((KeyValueStoreInterface) Naming.lookup("//" + addresses[i].trim() + "/KeyValueStore" + (i + 1)));
+    }
+    twoPhaseCommit = new TwoPhaseCommitImpl(replicas);
+  }
+
+  // Writes every key once, from all threads, so the GETs of the run find a value.
+  private void preload() throws Exception {
+    int threads = Integer.parseInt(options.get("threads"));
+    CountDownLatch done = new CountDownLatch(threads);
+    LongAdder failed = new LongAdder();
+    for (int t = 0; t < threads; t++) {
+      int first = t;
+      new Thread(() -> {
+        try (Client client = newClient()) {
+          for (int i = first; i < keys.size(); i += threads) {
+            if (isError(client.call(PUT, keys.key(i)))) {
+              failed.increment();
+            }
+          }
+        } catch (Exception e) {
+          failed.increment();
+          System.err.println("Preload failed: " + e);
+        } finally {
+          done.countDown();
+        }
+      }, "load-preload-" + (t + 1)).start();
+    }
+    done.await();
+    System.out.println("Preloaded " + keys.size() + " keys, " + failed.sum() + " failed");
+  }
+
+  private List<String[]> run() throws Exception {
+    int threads = Integer.parseInt(options.get("threads"));
+    double rate = Double.parseDouble(options.get("rate"));
+    long warmupNanos = (long) (Double.parseDouble(options.get("warmup")) * 1e9);
+    long durationNanos = (long) (Double.parseDouble(options.get("duration")) * 1e9);
+    // Each thread sends every threads / rate seconds, offset from the others by 1 / rate.
+    long intervalNanos = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+
+    long begin = System.nanoTime() + 100_000_000L;
+    long measureFrom = begin + warmupNanos;
+    long end = measureFrom + durationNanos;
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      long firstDue = begin + (rate > 0 ? (long) (t * 1e9 / rate) : 0);
+      new Thread(() -> {
+        try (Client client = newClient()) {
+          drive(client, firstDue, intervalNanos, measureFrom, end);
+        } catch (Exception e) {
+          System.err.println("Load thread failed: " + e);
+        } finally {
+          done.countDown();
+        }
+      }, "load-" + (t + 1)).start();
+    }
+    done.await();
+
+    double seconds = durationNanos / 1e9;
+    List<String[]> rows = new ArrayList<>();
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      long count = latency[i].getCount();
+      if (count == 0 && i > 0) {
+        continue;
+      }
+      rows.add(new String[]{
+              options.get("transport"), rate > 0 ? "open" : "closed", Integer.toString(threads), format(rate),
+              options.get("reads"), options.get("keys"), keys.getName(), format(seconds), OPERATIONS[i],
+              Long.toString(count), format(count / seconds), Long.toString(errors[i].sum()),
+              micros(latency[i].getPercentile(50)), micros(latency[i].getPercentile(90)),
+              micros(latency[i].getPercentile(99)), micros(latency[i].getPercentile(99.9)),
+              micros(latency[i].getMax()), micros(serviceTime[i].getPercentile(50)),
+              micros(serviceTime[i].getPercentile(99))});
+    }
+    return rows;
+  }
+
+  private void drive(Client client, long due, long intervalNanos, long measureFrom, long end) throws Exception {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (due < end) {
+      long now = System.nanoTime();
+      if (intervalNanos > 0) {
+        while (now < due) {
+          LockSupport.parkNanos(due - now);
+          now = System.nanoTime();
+        }
+      } else {
+        due = now;
+      }
+      int roll = random.nextInt(100);
+      int operation = roll < readPercent ? GET : roll < readPercent + deletePercent ? DELETE : PUT;
+      boolean failed;
+      try {
+        failed = isError(client.call(operation, keys.next(random)));
+      } catch (SocketTimeoutException | RemoteException e) {
+        failed = true;
+      }
+      long finished = System.nanoTime();
+      if (due >= measureFrom) {
+        record(operation, finished - due, finished - now, failed);
+      }
+      due += intervalNanos;
+    }
+  }
+
+  private void record(int operation, long latencyNanos, long serviceNanos, boolean failed) {
+    latency[0].record(latencyNanos);
+    latency[operation].record(latencyNanos);
+    serviceTime[0].record(serviceNanos);
+    serviceTime[operation].record(serviceNanos);
+    if (failed) {
+      errors[0].increment();
+      errors[operation].increment();
+    }
+  }
+
+  // The front-ends answer "ERROR ..." for a bad request and "PUT ERROR" or "DELETE ERROR" for a
+  // failed commit; a GET of a missing key ("GET ERROR: Key not found") is an answer, not a failure.
+  private static boolean isError(String response) {
+    return response == null || response.startsWith("ERROR") || response.endsWith(" ERROR");
+  }
+
+  private void report(List<String[]> rows) throws IOException {
+    String header = "transport,mode,threads,target_rate,reads,keys,distribution,seconds,op,ops,ops_per_sec,errors,"
+            + "p50_us,p90_us,p99_us,p999_us,max_us,service_p50_us,service_p99_us";
+    List<String> lines = new ArrayList<>();
+    for (String[] row : rows) {
+      lines.add(String.join(",", row));
+    }
+    System.out.println(header);
+    lines.forEach(System.out::println);
+
+    String out = options.get("out");
+    if (out == null) {
+      return;
+    }
+    Path path = Paths.get(out);
+    if (out.endsWith(".json")) {
+      String[] names = header.split(",");
+      StringBuilder json = new StringBuilder("[\n");
+      for (int r = 0; r < rows.size(); r++) {
+        json.append("  {");
+        for (int i = 0; i < names.length; i++) {
+          String field = rows.get(r)[i];
+          boolean number = !field.isEmpty() && (Character.isDigit(field.charAt(0)) || field.charAt(0) == '-');
+          json.append(i == 0 ? "" : ", ").append('"').append(names[i]).append("\": ")
+                  .append(number ? field : "\"" + field + "\"");
+        }
+        json.append(r + 1 < rows.size() ? "},\n" : "}\n");
+      }
+      json.append("]\n");
+      Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+    } else if (Files.exists(path) && Files.size(path) > 0) {
+      Files.write(path, lines, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    } else {
+      List<String> file = new ArrayList<>(Collections.singletonList(header));
+      file.addAll(lines);
+      Files.write(path, file, StandardCharsets.UTF_8);
+    }
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.0f", value);
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+  }
+
+  private Client newClient() throws IOException {
+    String host = options.get("host");
+    int port = Integer.parseInt(options.get("port"));
+    int timeout = Integer.parseInt(options.get("timeout"));
+    switch (options.get("transport")) {
+      case "rmi":
+        return new RmiClient();
+      case "tcp":
+        return new TcpClient(host, port, timeout);
+      case "udp":
+        return new UdpClient(host, port, timeout);
+      default:
+        throw new IllegalArgumentException("Unknown transport: " + options.get("transport"));
+    }
+  }
+
+  private String request(int operation, String key) {
+    switch (operation) {
+      case GET:
+        return "GET " + key;
+      case PUT:
+        return "PUT " + key + " " + value;
+      default:
+        return "DELETE " + key;
+    }
+  }
+
+  // One thread's connection to the front-end. call() sends one request and waits for its answer.
+  private interface Client extends AutoCloseable {
+    String call(int operation, String key) throws Exception;
+
+    @Override
+    void close() throws IOException;
+  }
+
+  // Writes through the 2PC coordinator and reads from the replicas in turn, as the RMI clients do.
+  private class RmiClient implements Client {
+    private int next = ThreadLocalRandom.current().nextInt(replicas.size());
+
+    @Override
+    public String call(int operation, String key) throws Exception {
+      switch (operation) {
+        case GET:
+          next = (next + 1) % replicas.size();
+          return replicas.get(next).get(key);
+        case PUT:
+          return twoPhaseCommit.performTwoPhaseCommit("PUT", key, value) ? "PUT OK" : "PUT ERROR";
+        default:
+          return twoPhaseCommit.performTwoPhaseCommit("DELETE", key, null) ? "DELETE OK" : "DELETE ERROR";
+      }
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private class TcpClient implements Client {
+    private final Socket socket = new Socket();
+    private final OutputStream out;
+    private final BufferedReader in;
+
+    TcpClient(String host, int port, int timeout) throws IOException {
+      socket.connect(new InetSocketAddress(host, port), timeout);
+      socket.setSoTimeout(timeout);
+      socket.setTcpNoDelay(true);
+      out = socket.getOutputStream();
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String call(int operation, String key) throws IOException {
+      out.write((request(operation, key) + "\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      String response = in.readLine();
+      if (response == null) {
+        throw new IOException("Server closed the connection");
+      }
+      return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  // A lost datagram shows up as a timeout, which drive() counts as an error. A reply that arrives
+  // after its request timed out would be taken for the answer to the next one, so late replies
+  // are drained before each send.
+  private class UdpClient implements Client {
+    private final DatagramSocket socket = new DatagramSocket();
+    private final DatagramPacket reply = new DatagramPacket(new byte[4096], 4096);
+    private final int timeout;
+    private boolean timedOut;
+
+    UdpClient(String host, int port, int timeout) throws IOException {
+      this.timeout = timeout;
+      socket.connect(new InetSocketAddress(host, port));
+      socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public String call(int operation, String key) throws IOException {
+      if (timedOut) {
+        drainLateReplies();
+      }
+      byte[] request = request(operation, key).getBytes(StandardCharsets.UTF_8);
+      socket.send(new DatagramPacket(request, request.length));
+      try {
+        socket.receive(reply);
+      } catch (SocketTimeoutException e) {
+        timedOut = true;
+        throw e;
+      }
+      return new String(reply.getData(), 0, reply.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private void drainLateReplies() throws IOException {
+      socket.setSoTimeout(1);
+      try {
+        while (true) {
+          socket.receive(reply);
+        }
+      } catch (SocketTimeoutException e) {
+        // Nothing left.
+      } finally {
+        socket.setSoTimeout(timeout);
+        timedOut = false;
+      }
+    }
+
+    @Override
+    public void close() {
+      socket.close();
+    }
+  }
+}
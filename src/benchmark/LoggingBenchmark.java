@@ -0,0 +1,84 @@
+package benchmark;
+
+import server.AsyncLogWriter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+// Measures what a log call costs the thread that makes it. [threads] threads each log [lines]
+// request-sized lines, first through the old logger (open the file, format the date, write one
+// line, close) and then through AsyncLogWriter, and the benchmark prints the call latency
+// percentiles and lines per second. For the async writer it also reports how long the final flush
+// took, so the time the writer thread still needed is not hidden.
+//
+// Usage: java benchmark.LoggingBenchmark [threads] [lines] [whenFull]
+public class LoggingBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int lines = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+    boolean block = args.length > 2 && args[2].equals("block");
+
+    System.out.println("logger,threads,lines_per_sec,p50_ns,p99_ns,p999_ns,flush_ms,lines_in_file");
+    for (String logger : new String[]{"sync", "async"}) {
+      File file = File.createTempFile("logging-benchmark-" + logger, ".log");
+      file.deleteOnExit();
+      AsyncLogWriter writer = logger.equals("async")
+              ? new AsyncLogWriter(file.getPath(), AsyncLogWriter.INFO, 8192, block, "benchmark-log-writer") : null;
+      long[] latencies = new long[threads * lines];
+      CountDownLatch done = new CountDownLatch(threads);
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+        int first = t * lines;
+        new Thread(() -> {
+          for (int i = 0; i < lines; i++) {
+            String message = "Received from TCP client /127.0.0.1:54321: PUT key" + i + " value" + i;
+            long before = System.nanoTime();
+            if (writer == null) {
+              syncLog(file.getPath(), "TCP", message);
+            } else {
+              writer.log(AsyncLogWriter.INFO, "TCP", message, null);
+            }
+            latencies[first + i] = System.nanoTime() - before;
+          }
+          done.countDown();
+        }).start();
+      }
+      done.await();
+      long elapsed = System.nanoTime() - start;
+      long flushStart = System.nanoTime();
+      if (writer != null) {
+        writer.close();
+      }
+      long flush = System.nanoTime() - flushStart;
+      Arrays.sort(latencies);
+      System.out.printf("%s,%d,%.0f,%d,%d,%d,%d,%d%n", logger, threads, latencies.length * 1e9 / elapsed,
+              latencies[latencies.length / 2], latencies[(int) (latencies.length * 0.99)],
+              latencies[(int) (latencies.length * 0.999)], flush / 1_000_000, countLines(file));
+    }
+  }
+
+  // The logger AsyncLogWriter replaced.
+  private static void syncLog(String path, String protocol, String message) {
+    try (PrintWriter writer = new PrintWriter(new FileWriter(path, true))) {
+      String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date());
+      writer.println(timeStamp + " [" + protocol + "] " + message);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static long countLines(File file) throws IOException {
+    try (Stream<String> stream = Files.lines(file.toPath())) {
+      return stream.count();
+    }
+  }
+}
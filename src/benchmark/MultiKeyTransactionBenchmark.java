@@ -0,0 +1,156 @@
+package benchmark;
+
+import server.Histogram;
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.RequestProcessor;
+import server.ShardRouter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cost of updating [keysPerUpdate] keys together as separate PUT requests, each its own 2PC round,
+// against one MULTI request, one round over the shards the keys fall in. The keys form groups of
+// [keysPerUpdate]; [threads] writers each pick a random group and write the same new value to all
+// of its keys, for [seconds] per configuration. Three in-process replicas per shard take
+// [rttMicros] per call, standing in for the round trip to a remote replica.
+//
+// "mixed" sends MULTIs that read the same keys in one shard and write one key in another: the
+// read shard votes read-only, locking its keys on one replica only while it reads them once the
+// write is prepared, and takes no part in the commit.
+//
+// Afterwards every replica is checked: the keys of a group must all hold the same value, which
+// only the transactions guarantee while writers race.
+//
+// Usage: java -Dkvstore.verbose=false -Dkvstore.wal.enabled=false -Dkvstore.batch.enabled=false benchmark.MultiKeyTransactionBenchmark [threads] [seconds] [keysPerUpdate] [rttMicros]
+public class MultiKeyTransactionBenchmark {
+  private static final int GROUPS = 50;
+  private static final int GROUP_SIZE = 3;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    int keysPerUpdate = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    long rttMicros = args.length > 3 ? Long.parseLong(args[3]) : 200;
+
+    System.out.println("mode,shards,threads,keys_per_update,updates_per_sec,p50_us,p99_us,errors,inconsistent_groups");
+    for (int shards = 1; shards <= 2; shards++) {
+      for (String mode : new String[]{"single", "multi", "mixed"}) {
+        if (mode.equals("mixed") && shards == 1) {
+          continue;
+        }
+        run(mode, shards, threads, seconds, keysPerUpdate, TimeUnit.MICROSECONDS.toNanos(rttMicros));
+      }
+    }
+    System.exit(0);
+  }
+
+  private static void run(String mode, int shardCount, int threads, int seconds, int keysPerUpdate, long rttNanos)
+          throws Exception {
+    List<KeyValueStoreImpl> stores = new ArrayList<>();
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < shardCount * GROUP_SIZE; i++) {
+      KeyValueStoreImpl store = new KeyValueStoreImpl();
+      stores.add(store);
+      replicas.add(new DelayedReplica(store, rttNanos));
+    }
+    ShardRouter router = ShardRouter.of(replicas, shardCount);
+    RequestProcessor.setShards(router);
+    // In mixed mode a transaction reads keys of the first shard and writes a key of the last one.
+    List<String> readKeys = keysIn(router, 0, "r", keysPerUpdate - 1);
+    List<String> writeKeys = keysIn(router, shardCount - 1, "w", GROUPS);
+
+    Histogram latency = new Histogram();
+    LongAdder errors = new LongAdder();
+    long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.nanoTime();
+        while (now < end) {
+          int group = random.nextInt(GROUPS);
+          String value = "v" + random.nextInt(1_000_000);
+          boolean ok = true;
+          if (mode.equals("single")) {
+            for (int k = 0; k < keysPerUpdate; k++) {
+              ok &= "PUT OK".equals(RequestProcessor.processRequest(request("PUT g" + group + "k" + k + " " + value)));
+            }
+          } else {
+            StringBuilder line = new StringBuilder("MULTI");
+            if (mode.equals("mixed")) {
+              for (String key : readKeys) {
+                line.append(" GET ").append(key);
+              }
+              line.append(" PUT ").append(writeKeys.get(group)).append(' ').append(value);
+            } else {
+              for (int k = 0; k < keysPerUpdate; k++) {
+                line.append(" PUT g").append(group).append('k').append(k).append(' ').append(value);
+              }
+            }
+            ok = RequestProcessor.processRequest(request(line.toString())).startsWith("MULTI OK");
+          }
+          long finished = System.nanoTime();
+          if (now >= measureFrom) {
+            latency.record(finished - now);
+            if (!ok) {
+              errors.increment();
+            }
+          }
+          now = finished;
+        }
+        done.countDown();
+      }).start();
+    }
+    done.await();
+
+    int inconsistent = 0;
+    if (!mode.equals("mixed")) {
+      for (int group = 0; group < GROUPS; group++) {
+        for (KeyValueStoreImpl store : stores) {
+          String first = null;
+          boolean same = true;
+          for (int k = 0; k < keysPerUpdate; k++) {
+            String key = "g" + group + "k" + k;
+            if (router.shardFor(key) != router.getShard(stores.indexOf(store) / GROUP_SIZE)) {
+              continue;
+            }
+            String value = store.get(key);
+            same &= first == null || first.equals(value);
+            first = first == null ? value : first;
+          }
+          if (!same) {
+            inconsistent++;
+            break;
+          }
+        }
+      }
+    }
+    System.out.printf("%s,%d,%d,%d,%.0f,%d,%d,%d,%d%n", mode, shardCount, threads, keysPerUpdate,
+            latency.getCount() / (double) seconds, latency.getPercentile(50) / 1000,
+            latency.getPercentile(99) / 1000, errors.sum(), inconsistent);
+    router.close();
+  }
+
+  // The first count keys "<prefix><n>" that fall in the given shard.
+  private static List<String> keysIn(ShardRouter router, int shard, String prefix, int count) {
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; keys.size() < count; i++) {
+      if (router.shardFor(prefix + i) == router.getShard(shard)) {
+        keys.add(prefix + i);
+      }
+    }
+    return keys;
+  }
+
+  private static ByteBuffer request(String line) {
+    return ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,125 @@
+package benchmark;
+
+import server.CoordinatorThreadPool;
+import server.Histogram;
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.Metrics;
+import server.ServerConfig;
+import server.TwoPhaseCommitImpl;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Write throughput and latency of plain 2PC, where every replica must answer both phases, against
+// quorum mode, where a majority must. Five in-process replicas take [delayMicros] per prepare and
+// commit, standing in for a round trip, and 1 call in 100 takes 20 times as long, like a GC pause
+// or a retransmission. [threads] writers PUT random keys through the coordinator for [seconds] per
+// configuration.
+//
+// Scenarios: "even" (all replicas alike), "slow" (replica 1 takes ten times as long for every
+// call) and "down" (replica 1 fails every call for the first half of the run, then recovers).
+// After each quorum run the benchmark waits for the lagging replicas to catch up and checks that
+// all five then hold the same value for every key.
+//
+// Usage: java -Dkvstore.verbose=false benchmark.QuorumCommitBenchmark [threads] [seconds] [delayMicros]
+public class QuorumCommitBenchmark {
+  private static final int REPLICAS = 5;
+  private static final int KEYS = 1000;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    long delayMicros = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+    System.out.println("scenario,mode,threads,writes_per_sec,p50_us,p99_us,p999_us,errors,replayed,catch_up_ms,converged");
+    for (String scenario : new String[]{"even", "slow", "down"}) {
+      for (String mode : new String[]{"all", "quorum"}) {
+        run(scenario, mode, threads, seconds, TimeUnit.MICROSECONDS.toNanos(delayMicros));
+      }
+    }
+    System.exit(0);
+  }
+
+  private static void run(String scenario, String mode, int threads, int seconds, long delayNanos)
+          throws Exception {
+    long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+    List<KeyValueStoreImpl> stores = new ArrayList<>();
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < REPLICAS; i++) {
+      KeyValueStoreImpl store = new KeyValueStoreImpl();
+      stores.add(store);
+      boolean first = i == 0;
+      long delay = first && scenario.equals("slow") ? delayNanos * 10 : delayNanos;
+      long downUntil = first && scenario.equals("down") ? measureFrom + (end - measureFrom) / 2 : 0;
+      replicas.add(new DelayedReplica(store, delay, 1, downUntil));
+    }
+    TwoPhaseCommitImpl coordinator = new TwoPhaseCommitImpl(replicas, CoordinatorThreadPool.getShared(),
+            ServerConfig.PREPARE_TIMEOUT_MILLIS, ServerConfig.COMMIT_TIMEOUT_MILLIS,
+            mode.equals("quorum") ? REPLICAS / 2 + 1 : REPLICAS);
+
+    Histogram latency = new Histogram();
+    LongAdder errors = new LongAdder();
+    CountDownLatch done = new CountDownLatch(threads);
+    Map<String, Long> before = Metrics.snapshot();
+    for (int t = 0; t < threads; t++) {
+      new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.nanoTime();
+        while (now < end) {
+          boolean committed = coordinator.submit("PUT", "key" + random.nextInt(KEYS), "value" + random.nextInt());
+          long finished = System.nanoTime();
+          if (now >= measureFrom) {
+            latency.record(finished - now);
+            if (!committed) {
+              errors.increment();
+            }
+          }
+          now = finished;
+        }
+        done.countDown();
+      }).start();
+    }
+    done.await();
+
+    long catchUpStart = System.nanoTime();
+    boolean lagging = true;
+    while (lagging && System.nanoTime() - catchUpStart < TimeUnit.SECONDS.toNanos(30)) {
+      lagging = false;
+      for (KeyValueStoreInterface replica : replicas) {
+        lagging |= coordinator.isLagging(replica);
+      }
+      if (lagging) {
+        Thread.sleep(10);
+      }
+    }
+    long catchUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - catchUpStart);
+    Map<String, Long> after = Metrics.snapshot();
+    System.out.printf("%s,%s,%d,%.0f,%d,%d,%d,%d,%d,%d,%b%n", scenario, mode, threads,
+            latency.getCount() / (double) seconds, latency.getPercentile(50) / 1000,
+            latency.getPercentile(99) / 1000, latency.getPercentile(99.9) / 1000, errors.sum(),
+            after.get("replication.replayed") - before.get("replication.replayed"), catchUpMillis,
+            !lagging && converged(stores));
+    coordinator.close();
+  }
+
+  private static boolean converged(List<KeyValueStoreImpl> stores) throws RemoteException {
+    for (int k = 0; k < KEYS; k++) {
+      String value = stores.get(0).get("key" + k);
+      for (KeyValueStoreImpl store : stores) {
+        if (!Objects.equals(value, store.get("key" + k))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}
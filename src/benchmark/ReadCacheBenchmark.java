@@ -0,0 +1,114 @@
+package benchmark;
+
+import server.Histogram;
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.Metrics;
+import server.ReadCache;
+import server.RequestProcessor;
+import server.TwoPhaseCommitImpl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// GET latency through the front-end request path with and without the coordinator's read cache.
+// Three in-process replicas hold [keys] keys and take [rttMicros] to answer a GET, standing in for
+// the network round trip of a remote replica. [readers] threads send GETs for uniform or
+// Zipf-distributed keys for [seconds] per configuration, while one writer keeps updating random
+// keys through 2PC and reads each key back right after writing it; a read that does not return the
+// value just written is counted as stale, which must never happen.
+//
+// Usage: java -Dkvstore.verbose=false benchmark.ReadCacheBenchmark [keys] [readers] [seconds] [rttMicros] [cacheEntries,...]
+public class ReadCacheBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    long rttMicros = args.length > 3 ? Long.parseLong(args[3]) : 100;
+    String[] cacheSizes = (args.length > 4 ? args[4] : "0,1000,10000").split(",");
+
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      KeyValueStoreImpl store = new KeyValueStoreImpl();
+      for (int k = 0; k < keyCount; k++) {
+        store.put("key" + k, "value" + k);
+      }
+      replicas.add(new DelayedReplica(store, TimeUnit.MICROSECONDS.toNanos(rttMicros)));
+    }
+    TwoPhaseCommitImpl coordinator = new TwoPhaseCommitImpl(replicas);
+    RequestProcessor.setTwoPhaseCommit(coordinator);
+    RequestProcessor.setReplicas(replicas);
+
+    System.out.println("distribution,cache_entries,readers,gets_per_sec,hit_rate_percent,p50_ns,p99_ns,writes,stale_reads");
+    for (String distribution : new String[]{"uniform", "zipf"}) {
+      KeyDistribution keys = KeyDistribution.of(distribution, keyCount);
+      for (String size : cacheSizes) {
+        int entries = Integer.parseInt(size.trim());
+        coordinator.setReadCache(entries > 0 ? new ReadCache(entries, Long.MAX_VALUE) : null);
+        run(keys, entries, readers, seconds);
+      }
+    }
+    System.exit(0);
+  }
+
+  private static void run(KeyDistribution keys, int entries, int readers, int seconds) throws InterruptedException {
+    Histogram latency = new Histogram();
+    LongAdder writes = new LongAdder();
+    LongAdder stale = new LongAdder();
+    // One second of warm-up fills the cache before anything is counted.
+    long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+    CountDownLatch done = new CountDownLatch(readers + 1);
+    for (int t = 0; t < readers; t++) {
+      new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.nanoTime();
+        while (now < end) {
+          RequestProcessor.processRequest(request("GET " + keys.next(random)));
+          long finished = System.nanoTime();
+          if (now >= measureFrom) {
+            latency.record(finished - now);
+          }
+          now = finished;
+        }
+        done.countDown();
+      }).start();
+    }
+    new Thread(() -> {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      for (long n = 0; System.nanoTime() < end; n++) {
+        String key = keys.next(random);
+        String value = "value" + n;
+        RequestProcessor.processRequest(request("PUT " + key + " " + value));
+        if (!("GET OK: " + value).equals(RequestProcessor.processRequest(request("GET " + key)))) {
+          stale.increment();
+        }
+        writes.increment();
+      }
+      done.countDown();
+    }).start();
+    LockSupport.parkNanos(measureFrom - System.nanoTime());
+    Map<String, Long> before = Metrics.snapshot();
+    done.await();
+    Map<String, Long> after = Metrics.snapshot();
+    long hits = after.get("cache.hits") - before.get("cache.hits");
+    long misses = after.get("cache.misses") - before.get("cache.misses");
+    System.out.printf(Locale.ROOT, "%s,%d,%d,%.0f,%.1f,%d,%d,%d,%d%n", keys.getName(), entries, readers,
+            latency.getCount() / (double) seconds, hits + misses == 0 ? 0 : hits * 100.0 / (hits + misses),
+            latency.getPercentile(50), latency.getPercentile(99), writes.sum(), stale.sum());
+  }
+
+  private static ByteBuffer request(String line) {
+    return ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+  }
+}
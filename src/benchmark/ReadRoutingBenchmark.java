@@ -0,0 +1,144 @@
+package benchmark;
+
+import server.Histogram;
+import server.KeyValueStoreInterface;
+import server.Operation;
+import server.ReadRouter;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Read throughput and latency of each read policy as replicas are added. Each simulated replica
+// answers one GET at a time and takes [serviceMicros] per GET, like a replica whose capacity is
+// the bottleneck, so the benchmark measures how well the reads are spread rather than how fast
+// this machine is. [threads] readers go through one ReadRouter for [seconds] per configuration.
+//
+// Scenarios: "even" (all replicas alike, for 1 to [maxReplicas] replicas), "slow" (replica 1 is
+// ten times slower) and "down" (replica 1 fails every read), the last two with [maxReplicas].
+//
+// Usage: java -Dkvstore.verbose=false benchmark.ReadRoutingBenchmark [maxReplicas] [threads] [seconds] [serviceMicros]
+public class ReadRoutingBenchmark {
+  private static final String[] POLICIES = {"primary", "roundRobin", "leastOutstanding", "latency"};
+
+  public static void main(String[] args) throws Exception {
+    int maxReplicas = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    long serviceMicros = args.length > 3 ? Long.parseLong(args[3]) : 200;
+
+    System.out.println("scenario,policy,replicas,threads,gets_per_sec,p50_us,p99_us,errors");
+    for (String policy : POLICIES) {
+      for (int replicas = 1; replicas <= maxReplicas; replicas++) {
+        run("even", policy, replicas, threads, seconds, serviceMicros);
+      }
+    }
+    for (String scenario : new String[]{"slow", "down"}) {
+      for (String policy : POLICIES) {
+        run(scenario, policy, maxReplicas, threads, seconds, serviceMicros);
+      }
+    }
+    System.exit(0);
+  }
+
+  private static void run(String scenario, String policy, int replicaCount, int threads, int seconds,
+                          long serviceMicros) throws InterruptedException {
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < replicaCount; i++) {
+      boolean first = i == 0 && replicaCount > 1;
+      long service = first && scenario.equals("slow") ? serviceMicros * 10 : serviceMicros;
+      replicas.add(new SimulatedReplica(TimeUnit.MICROSECONDS.toNanos(service), first && scenario.equals("down")));
+    }
+    ReadRouter router = new ReadRouter(replicas, policy, 1000);
+    Histogram latency = new Histogram();
+    LongAdder errors = new LongAdder();
+    long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.nanoTime();
+        while (now < end) {
+          try {
+            router.get("key" + random.nextInt(1000));
+          } catch (RemoteException e) {
+            errors.increment();
+          }
+          long finished = System.nanoTime();
+          if (now >= measureFrom) {
+            latency.record(finished - now);
+          }
+          now = finished;
+        }
+        done.countDown();
+      }).start();
+    }
+    done.await();
+    System.out.printf("%s,%s,%d,%d,%.0f,%d,%d,%d%n", scenario, policy, replicaCount, threads,
+            latency.getCount() / (double) seconds, latency.getPercentile(50) / 1000,
+            latency.getPercentile(99) / 1000, errors.sum());
+  }
+
+  // Serves one GET at a time, each taking serviceNanos; a failing one throws instead.
+  private static class SimulatedReplica implements KeyValueStoreInterface {
+    private final Semaphore server = new Semaphore(1);
+    private final long serviceNanos;
+    private final boolean failing;
+
+    SimulatedReplica(long serviceNanos, boolean failing) {
+      this.serviceNanos = serviceNanos;
+      this.failing = failing;
+    }
+
+    @Override
+    public String get(String key) throws RemoteException {
+      if (failing) {
+        throw new RemoteException("Replica is down");
+      }
+      server.acquireUninterruptibly();
+      try {
+        LockSupport.parkNanos(serviceNanos);
+      } finally {
+        server.release();
+      }
+      return "GET OK: value";
+    }
+
+    @Override
+    public String put(String key, String value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String delete(String key) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean prepare(String transactionId, String operation, String key, String value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean prepareBatch(String transactionId, List<Operation> operations) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void commit(String transactionId) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void abort(String transactionId) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package benchmark;
+
+import server.KeyValueStoreImpl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Measures replica restart time against dataset size, recovering once from the write-ahead log
+// alone and once from a snapshot plus an empty log tail. Each key is written several times so the
+// log holds more history than the final dataset, as it would after a long run.
+//
+// Usage: java -Dkvstore.verbose=false -Dkvstore.wal.fsync=false -Dkvstore.checkpoint.logBytes=0
+//          benchmark.RecoveryBenchmark [maxKeys] [updatesPerKey]
+public class RecoveryBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int maxKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int updatesPerKey = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    Path root = Files.createTempDirectory("kvstore-recovery");
+    System.setProperty("kvstore.data.dir", root.toString());
+
+    System.out.println("keys,log_records,log_replay_ms,snapshot_ms,snapshot_recovery_ms");
+    int run = 0;
+    for (int keys = 10_000; keys <= maxKeys; keys *= 10) {
+      String name = "replica" + (run++);
+      KeyValueStoreImpl store = new KeyValueStoreImpl(name);
+      for (int update = 0; update < updatesPerKey; update++) {
+        for (int i = 0; i < keys; i++) {
+          store.put("key" + i, "value-" + update + "-" + i);
+        }
+      }
+      store.close();
+
+      long logReplay = timeRecovery(name);
+
+      KeyValueStoreImpl reopened = new KeyValueStoreImpl(name);
+      long start = System.nanoTime();
+      reopened.checkpoint();
+      long snapshot = (System.nanoTime() - start) / 1_000_000;
+      reopened.close();
+
+      long snapshotRecovery = timeRecovery(name);
+      System.out.printf("%d,%d,%d,%d,%d%n", keys, (long) keys * updatesPerKey, logReplay, snapshot, snapshotRecovery);
+    }
+
+    deleteRecursively(root);
+    System.exit(0);
+  }
+
+  private static long timeRecovery(String name) throws IOException {
+    long start = System.nanoTime();
+    KeyValueStoreImpl store = new KeyValueStoreImpl(name);
+    long elapsed = (System.nanoTime() - start) / 1_000_000;
+    store.close();
+    return elapsed;
+  }
+
+  private static void deleteRecursively(Path root) throws IOException {
+    try (Stream<Path> paths = Files.walk(root)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package benchmark;
+
+import server.CoordinatorThreadPool;
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.NioReplicaClient;
+import server.NioReplicaServer;
+import server.ServerConfig;
+import server.TwoPhaseCommitImpl;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Compares 2PC round trips over RMI and over the binary NIO transport. Starts in-process replicas
+// exported both ways, then has 1, 2, 4 ... N threads run performTwoPhaseCommit against each set of
+// stubs and prints throughput and commit latency percentiles. Both transports go through loopback
+// sockets, so the difference is protocol and connection handling, not the network.
+//
+// Usage: java -Dkvstore.verbose=false benchmark.ReplicaTransportBenchmark [replicas] [maxThreads] [seconds]
+public class ReplicaTransportBenchmark {
+  private static final int BASE_PORT = 21099;
+
+  public static void main(String[] args) throws Exception {
+    int replicaCount = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+    List<KeyValueStoreInterface> rmiReplicas = new ArrayList<>();
+    List<KeyValueStoreInterface> nioReplicas = new ArrayList<>();
+    for (int i = 0; i < replicaCount; i++) {
+      KeyValueStoreImpl replica = new KeyValueStoreImpl();
+      Registry registry = LocateRegistry.createRegistry(BASE_PORT + i);
+      registry.rebind("KeyValueStore" + (i + 1), replica);
+      rmiReplicas.add((KeyValueStoreInterface) LocateRegistry.getRegistry("localhost", BASE_PORT + i)
+              .lookup("KeyValueStore" + (i + 1)));
+      NioReplicaServer server = new NioReplicaServer(replica, 0);
+      nioReplicas.add(new NioReplicaClient("localhost", server.getPort()));
+    }
+
+    System.out.println("transport,threads,commits_per_sec,p50_us,p99_us,p999_us");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      for (String transport : new String[]{"rmi", "nio"}) {
+        List<KeyValueStoreInterface> replicas = transport.equals("rmi") ? rmiReplicas : nioReplicas;
+        TwoPhaseCommitImpl coordinator = new TwoPhaseCommitImpl(replicas, CoordinatorThreadPool.getShared(),
+                ServerConfig.PREPARE_TIMEOUT_MILLIS, ServerConfig.COMMIT_TIMEOUT_MILLIS);
+        run(coordinator, threads, 1); // warm-up
+        long[] latencies = run(coordinator, threads, seconds);
+        Arrays.sort(latencies);
+        System.out.printf("%s,%d,%.0f,%d,%d,%d%n", transport, threads, latencies.length / (double) seconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999));
+        coordinator.close();
+      }
+    }
+    System.exit(0);
+  }
+
+  // Returns the latency in nanoseconds of every commit completed in the run.
+  private static long[] run(TwoPhaseCommitImpl coordinator, int threads, int seconds) throws InterruptedException {
+    long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+    long[][] results = new long[threads][];
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      int index = t;
+      new Thread(() -> {
+        long[] latencies = new long[1024];
+        int count = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline) {
+          long start = System.nanoTime();
+          if (!coordinator.performTwoPhaseCommit("PUT", "key" + random.nextInt(100_000), "value")) {
+            continue;
+          }
+          if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+          }
+          latencies[count++] = System.nanoTime() - start;
+        }
+        results[index] = Arrays.copyOf(latencies, count);
+        done.countDown();
+      }).start();
+    }
+    done.await();
+    return Arrays.stream(results).flatMapToLong(Arrays::stream).toArray();
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1000;
+  }
+}
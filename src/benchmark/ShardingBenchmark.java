@@ -0,0 +1,176 @@
+package benchmark;
+
+import server.Histogram;
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.Operation;
+import server.RequestProcessor;
+import server.ShardRouter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Write throughput and storage per node as the replicas are split into more shards. Every
+// configuration has [groupSize] replicas per shard, from one shard up to [maxShards], and sends
+// PUTs of [keys] uniformly picked keys through the front-end request path for [seconds]. Each
+// simulated replica handles one call at a time and spends [serviceMicros] per operation it
+// prepares and per commit, like a replica whose capacity is the bottleneck, so the benchmark
+// measures how the write load is spread rather than how fast this machine is.
+//
+// After each run it reports how many keys each replica holds on average: with one shard every
+// replica holds every key, with N shards about 1/N of them.
+//
+// Usage: java -Dkvstore.verbose=false -Dkvstore.wal.enabled=false benchmark.ShardingBenchmark [maxShards] [groupSize] [writers] [seconds] [serviceMicros] [keys]
+public class ShardingBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int groupSize = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    int writers = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+    long serviceMicros = args.length > 4 ? Long.parseLong(args[4]) : 50;
+    int keyCount = args.length > 5 ? Integer.parseInt(args[5]) : 20_000;
+
+    System.out.println("shards,nodes,writers,puts_per_sec,p50_us,p99_us,errors,keys_per_node,largest_shard_percent");
+    for (int shards = 1; shards <= maxShards; shards++) {
+      run(shards, groupSize, writers, seconds, TimeUnit.MICROSECONDS.toNanos(serviceMicros), keyCount);
+    }
+    System.exit(0);
+  }
+
+  private static void run(int shardCount, int groupSize, int writers, int seconds, long serviceNanos, int keyCount)
+          throws Exception {
+    List<KeyValueStoreImpl> stores = new ArrayList<>();
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < shardCount * groupSize; i++) {
+      KeyValueStoreImpl store = new KeyValueStoreImpl();
+      stores.add(store);
+      replicas.add(new SimulatedReplica(store, serviceNanos));
+    }
+    ShardRouter router = ShardRouter.of(replicas, shardCount);
+    RequestProcessor.setShards(router);
+
+    Histogram latency = new Histogram();
+    LongAdder errors = new LongAdder();
+    long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+    CountDownLatch done = new CountDownLatch(writers);
+    for (int t = 0; t < writers; t++) {
+      new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.nanoTime();
+        while (now < end) {
+          String response = RequestProcessor.processRequest(request("PUT key" + random.nextInt(keyCount) + " value"));
+          long finished = System.nanoTime();
+          if (now >= measureFrom) {
+            latency.record(finished - now);
+            if (!"PUT OK".equals(response)) {
+              errors.increment();
+            }
+          }
+          now = finished;
+        }
+        done.countDown();
+      }).start();
+    }
+    done.await();
+
+    long held = 0;
+    int[] perShard = new int[shardCount];
+    for (int k = 0; k < keyCount; k++) {
+      String key = "key" + k;
+      for (int s = 0; s < shardCount; s++) {
+        if (router.getShard(s) == router.shardFor(key)) {
+          perShard[s]++;
+        }
+      }
+      for (KeyValueStoreImpl store : stores) {
+        if (store.get(key).startsWith("GET OK")) {
+          held++;
+        }
+      }
+    }
+    int largest = 0;
+    for (int count : perShard) {
+      largest = Math.max(largest, count);
+    }
+    System.out.printf("%d,%d,%d,%.0f,%d,%d,%d,%d,%.1f%n", shardCount, stores.size(), writers,
+            latency.getCount() / (double) seconds, latency.getPercentile(50) / 1000,
+            latency.getPercentile(99) / 1000, errors.sum(), held / stores.size(),
+            largest * 100.0 / keyCount);
+    router.close();
+  }
+
+  private static ByteBuffer request(String line) {
+    return ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+  }
+
+  // Handles one call at a time, taking serviceNanos per operation prepared and per commit.
+  private static class SimulatedReplica implements KeyValueStoreInterface {
+    private final Semaphore server = new Semaphore(1);
+    private final KeyValueStoreInterface store;
+    private final long serviceNanos;
+
+    SimulatedReplica(KeyValueStoreInterface store, long serviceNanos) {
+      this.store = store;
+      this.serviceNanos = serviceNanos;
+    }
+
+    private void serve(int operations) {
+      server.acquireUninterruptibly();
+      try {
+        LockSupport.parkNanos(serviceNanos * operations);
+      } finally {
+        server.release();
+      }
+    }
+
+    @Override
+    public String get(String key) throws RemoteException {
+      serve(1);
+      return store.get(key);
+    }
+
+    @Override
+    public String put(String key, String value) throws RemoteException {
+      return store.put(key, value);
+    }
+
+    @Override
+    public String delete(String key) throws RemoteException {
+      return store.delete(key);
+    }
+
+    @Override
+    public boolean prepare(String transactionId, String operation, String key, String value) throws RemoteException {
+      serve(1);
+      return store.prepare(transactionId, operation, key, value);
+    }
+
+    @Override
+    public boolean prepareBatch(String transactionId, List<Operation> operations) throws RemoteException {
+      serve(operations.size());
+      return store.prepareBatch(transactionId, operations);
+    }
+
+    @Override
+    public void commit(String transactionId) throws RemoteException {
+      serve(1);
+      store.commit(transactionId);
+    }
+
+    @Override
+    public void abort(String transactionId) throws RemoteException {
+      store.abort(transactionId);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package benchmark;
+
+import server.CoordinatorLog;
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.Metrics;
+import server.Operation;
+import server.ShardRouter;
+import server.TwoPhaseCommitImpl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Long-running check that the replicas' staging area of prepared transactions stays bounded.
+// [threads] writers PUT [valueBytes] values over a fixed set of keys through a coordinator with
+// three in-memory replicas for [seconds], while [faultPercent] of the aborts sent to a replica are
+// lost and [faultPercent] of its prepares are answered with a no and delivered late, after the
+// coordinator's abort. Every [reportSeconds] it prints the staging gauges and the heap used after
+// a full GC, which should stay flat once the keys have all been written.
+//
+// A lost abort leaves its transaction prepared until the coordinator's in-doubt resolver finds it,
+// every kvstore.2pc.inDoubtMillis, and aborts it since its decision log has no commit for it; late
+// prepares are rejected because the replica remembers the abort. The coordinator log is kept under
+// a temporary directory. Run it once more with -Dkvstore.2pc.inDoubtMillis=0
+// -Dkvstore.staging.abortedIds=0 to watch the staging area grow.
+//
+// Usage: java -Dkvstore.verbose=false -Dkvstore.2pc.inDoubtMillis=2000 benchmark.StagingSoakBenchmark [seconds] [threads] [faultPercent] [valueBytes] [reportSeconds]
+public class StagingSoakBenchmark {
+  private static final int KEYS = 10000;
+  private static final long LATE_PREPARE_MILLIS = 50;
+
+  public static void main(String[] args) throws Exception {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int faultPercent = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    int valueBytes = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+    int reportSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+    Path root = Files.createTempDirectory("kvstore-soak");
+    System.setProperty("kvstore.data.dir", root.toString());
+    CoordinatorLog.openShared("coordinator");
+
+    ScheduledExecutorService late = Executors.newSingleThreadScheduledExecutor();
+    List<KeyValueStoreImpl> stores = new ArrayList<>();
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      KeyValueStoreImpl store = new KeyValueStoreImpl();
+      stores.add(store);
+      replicas.add(new FaultyReplica(store, faultPercent, late));
+    }
+    TwoPhaseCommitImpl coordinator = new TwoPhaseCommitImpl(replicas);
+    ShardRouter.Shard shard = ShardRouter.single(coordinator, replicas).getShard(0);
+
+    LongAdder writes = new LongAdder();
+    LongAdder errors = new LongAdder();
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    StringBuilder padding = new StringBuilder();
+    while (padding.length() < valueBytes) {
+      padding.append('x');
+    }
+    for (int t = 0; t < threads; t++) {
+      Thread writer = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < end) {
+          String value = random.nextInt() + padding.substring(0, Math.max(0, valueBytes - 11));
+          if (shard.submit("PUT", "key" + random.nextInt(KEYS), value)) {
+            writes.increment();
+          } else {
+            errors.increment();
+          }
+        }
+      });
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    System.out.println("second,writes,errors,staged_transactions,staged_bytes,resolved_aborts,late_prepares,heap_used_mb");
+    for (int second = reportSeconds; second <= seconds; second += reportSeconds) {
+      Thread.sleep(TimeUnit.SECONDS.toMillis(reportSeconds));
+      System.gc();
+      Map<String, Long> metrics = Metrics.snapshot();
+      System.out.printf("%d,%d,%d,%d,%d,%d,%d,%d%n", second, writes.sum(), errors.sum(),
+              metrics.get("staging.transactions"), metrics.get("staging.bytes"), metrics.get("transactions.resolvedAborts"),
+              metrics.get("staging.latePrepares"), memory.getHeapMemoryUsage().getUsed() / (1024 * 1024));
+    }
+    deleteRecursively(root);
+    System.exit(0);
+  }
+
+  private static void deleteRecursively(Path root) throws IOException {
+    try (Stream<Path> paths = Files.walk(root)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  // A replica on a lossy link: some aborts never arrive and some prepares arrive only after the
+  // coordinator has given up on them.
+  private static class FaultyReplica implements KeyValueStoreInterface {
+    private final KeyValueStoreInterface store;
+    private final int faultPercent;
+    private final ScheduledExecutorService late;
+
+    FaultyReplica(KeyValueStoreInterface store, int faultPercent, ScheduledExecutorService late) {
+      this.store = store;
+      this.faultPercent = faultPercent;
+      this.late = late;
+    }
+
+    private boolean fault() {
+      return ThreadLocalRandom.current().nextInt(100) < faultPercent;
+    }
+
+    @Override
+    public String get(String key) throws RemoteException {
+      return store.get(key);
+    }
+
+    @Override
+    public String put(String key, String value) throws RemoteException {
+      return store.put(key, value);
+    }
+
+    @Override
+    public String delete(String key) throws RemoteException {
+      return store.delete(key);
+    }
+
+    @Override
+    public boolean prepare(String transactionId, String operation, String key, String value) throws RemoteException {
+      return store.prepare(transactionId, operation, key, value);
+    }
+
+    @Override
+    public boolean prepareBatch(String transactionId, List<Operation> operations) throws RemoteException {
+      if (fault()) {
+        late.schedule(() -> store.prepareBatch(transactionId, operations), LATE_PREPARE_MILLIS, TimeUnit.MILLISECONDS);
+        return false;
+      }
+      return store.prepareBatch(transactionId, operations);
+    }
+
+    @Override
+    public void commit(String transactionId) throws RemoteException {
+      store.commit(transactionId);
+    }
+
+    @Override
+    public void abort(String transactionId) throws RemoteException {
+      if (!fault()) {
+        store.abort(transactionId);
+      }
+    }
+
+    @Override
+    public List<String> inDoubt(long olderThanMillis) throws RemoteException {
+      return store.inDoubt(olderThanMillis);
+    }
+
+    @Override
+    public void resolve(List<String> committed, List<String> aborted) throws RemoteException {
+      store.resolve(committed, aborted);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package benchmark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import server.HeapStorageEngine;
+import server.OffHeapStorageEngine;
+import server.ServerConfig;
+import server.StorageEngine;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compares the memory cost per entry and the GC pauses of the heap and off-heap storage engines.
+// For each engine it loads the keys, reports heap plus direct memory in use divided by the key
+// count, then overwrites random keys with values of a different length (forcing reallocation) and
+// reports the GC pauses seen during that churn and the time of a full collection with the dataset
+// live. Run with a heap large enough for the heap engine, e.g. for 10M keys:
+//
+// Usage: java -Xmx6g -XX:MaxDirectMemorySize=4g benchmark.StorageFootprintBenchmark [keys] [churnOps] [engines]
+public class StorageFootprintBenchmark {
+  private static final AtomicLong pauses = new AtomicLong();
+  private static final AtomicLong pauseMillis = new AtomicLong();
+  private static final AtomicLong maxPauseMillis = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int churnOps = args.length > 1 ? Integer.parseInt(args[1]) : keys;
+    String[] engines = (args.length > 2 ? args[2] : "heap,offheap").split(",");
+    listenForPauses();
+
+    System.out.println("engine,keys,heap_bytes_per_entry,direct_bytes_per_entry,total_bytes_per_entry,"
+            + "churn_gc_count,churn_gc_ms,churn_max_pause_ms,full_gc_ms");
+    for (String engine : engines) {
+      run(engine, keys, churnOps);
+    }
+    System.exit(0);
+  }
+
+  // Runs one engine in its own frame so nothing it allocated is reachable while the next one is
+  // measured.
+  private static void run(String engine, int keys, int churnOps) throws Exception {
+    long heapBefore = usedHeap();
+    long directBefore = usedDirect();
+    StorageEngine store = create(engine);
+    for (int i = 0; i < keys; i++) {
+      store.put("key" + i, value(i, 0));
+    }
+    double heapPerEntry = (double) (usedHeap() - heapBefore) / keys;
+    double directPerEntry = (double) (usedDirect() - directBefore) / keys;
+
+    pauses.set(0);
+    pauseMillis.set(0);
+    maxPauseMillis.set(0);
+    Random random = new Random(42);
+    for (int i = 0; i < churnOps; i++) {
+      int key = random.nextInt(keys);
+      store.put("key" + key, value(key, 1 + (i & 3)));
+    }
+    long churnCount = pauses.get();
+    long churnMillis = pauseMillis.get();
+    long churnMax = maxPauseMillis.get();
+
+    long start = System.nanoTime();
+    System.gc();
+    long fullGc = (System.nanoTime() - start) / 1_000_000;
+
+    System.out.printf("%s,%d,%.1f,%.1f,%.1f,%d,%d,%d,%d%n", engine, keys, heapPerEntry, directPerEntry,
+            heapPerEntry + directPerEntry, churnCount, churnMillis, churnMax, fullGc);
+    if (store.size() != keys) {
+      throw new IllegalStateException(engine + " lost keys: " + store.size());
+    }
+    store.close();
+  }
+
+  private static StorageEngine create(String engine) throws Exception {
+    switch (engine) {
+      case "heap":
+        return new HeapStorageEngine();
+      case "offheap":
+        return new OffHeapStorageEngine(ServerConfig.STORAGE_SHARDS, ServerConfig.STORAGE_ARENA_BYTES);
+      default:
+        throw new IllegalArgumentException("Unknown engine: " + engine);
+    }
+  }
+
+  // Values of up to 40 characters; the variant changes the length so overwrites do not always fit
+  // in place.
+  private static String value(int key, int variant) {
+    StringBuilder value = new StringBuilder("value-").append(key).append('-');
+    for (int i = 0; i < variant * 6; i++) {
+      value.append('x');
+    }
+    return value.toString();
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long usedDirect() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        return pool.getMemoryUsed();
+      }
+    }
+    return 0;
+  }
+
+  private static void listenForPauses() {
+    NotificationListener listener = (Notification notification, Object handback) -> {
+      if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+        return;
+      }
+      GarbageCollectionNotificationInfo info =
+              GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+      long duration = info.getGcInfo().getDuration();
+      pauses.incrementAndGet();
+      pauseMillis.addAndGet(duration);
+      maxPauseMillis.accumulateAndGet(duration, Math::max);
+    };
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package benchmark;
+
+import server.KeyValueStoreImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Measures how replica write throughput scales with the number of writer threads. Each run drives
+// one in-process KeyValueStoreImpl with 1, 2, 4 ... N threads doing PUT/DELETE or prepare+commit
+// on random keys, and prints ops/sec next to a baseline that wraps every call in one shared
+// monitor (the old synchronized (this) behaviour).
+//
+// Usage: java -Dkvstore.verbose=false benchmark.StoreContentionBenchmark [maxThreads] [seconds] [keys]
+public class StoreContentionBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    int keys = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+
+    System.out.println("workload,threads,ops_per_sec,baseline_ops_per_sec,speedup");
+    for (String workload : new String[]{"put-delete", "prepare-commit"}) {
+      for (int threads = 1; threads <= maxThreads; threads *= 2) {
+        double lockFree = run(workload, threads, seconds, keys, false);
+        double baseline = run(workload, threads, seconds, keys, true);
+        System.out.printf("%s,%d,%.0f,%.0f,%.2f%n", workload, threads, lockFree, baseline, lockFree / baseline);
+      }
+    }
+    System.exit(0);
+  }
+
+  private static double run(String workload, int threads, int seconds, int keys, boolean globalLock)
+          throws Exception {
+    KeyValueStoreImpl store = new KeyValueStoreImpl();
+    Object monitor = new Object();
+    AtomicLong transactionIds = new AtomicLong();
+    LongAdder operations = new LongAdder();
+    CountDownLatch start = new CountDownLatch(1);
+    long warmupNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    long runNanos = TimeUnit.SECONDS.toNanos(seconds);
+    List<Thread> workers = new ArrayList<>();
+
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          start.await();
+          long begin = System.nanoTime();
+          long measureFrom = begin + warmupNanos;
+          long end = measureFrom + runNanos;
+          long now;
+          while ((now = System.nanoTime()) < end) {
+            String key = "key" + random.nextInt(keys);
+            if (globalLock) {
+              synchronized (monitor) {
+                step(store, workload, key, random, transactionIds);
+              }
+            } else {
+              step(store, workload, key, random, transactionIds);
+            }
+            if (now >= measureFrom) {
+              operations.increment();
+            }
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    KeyValueStoreImpl.unexportObject(store, true);
+    return operations.sum() / (double) seconds;
+  }
+
+  private static void step(KeyValueStoreImpl store, String workload, String key, ThreadLocalRandom random,
+                           AtomicLong transactionIds) throws Exception {
+    if (workload.equals("put-delete")) {
+      if (random.nextInt(4) == 0) {
+        store.delete(key);
+      } else {
+        store.put(key, "value");
+      }
+    } else {
+      String transactionId = "bench-" + transactionIds.incrementAndGet();
+      if (store.prepare(transactionId, "PUT", key, "value")) {
+        store.commit(transactionId);
+      }
+    }
+  }
+}
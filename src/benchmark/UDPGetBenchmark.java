@@ -0,0 +1,103 @@
+package benchmark;
+
+import server.KeyValueStoreImpl;
+import server.KeyValueStoreInterface;
+import server.RequestProcessor;
+import server.ServerConfig;
+import server.TwoPhaseCommitImpl;
+import server.UDPChannelServer;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Measures how many small GETs per second the UDP front-end answers. Starts a UDPChannelServer over
+// in-process replicas holding [keys] entries, then has [clients] threads each keep [window]
+// datagrams in flight for [seconds] and checks that every reply carries a stored value.
+// A window that gets no reply for 200 ms counts as lost and is sent again.
+//
+// Usage: java -Dkvstore.verbose=false benchmark.UDPGetBenchmark [clients] [window] [seconds] [keys]
+public class UDPGetBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int window = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    int keys = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      KeyValueStoreImpl replica = new KeyValueStoreImpl();
+      for (int k = 0; k < keys; k++) {
+        replica.put("key" + k, "value" + k);
+      }
+      replicas.add(replica);
+    }
+    RequestProcessor.setReplicas(replicas);
+    RequestProcessor.setTwoPhaseCommit(new TwoPhaseCommitImpl(replicas));
+    UDPChannelServer server = new UDPChannelServer(0, ServerConfig.UDP_RECEIVERS, ServerConfig.UDP_WORKERS);
+    InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+
+    run(address, clients, window, 1, keys); // warm-up
+    LongAdder[] counts = run(address, clients, window, seconds, keys);
+    System.out.println("receivers,clients,window,gets_per_sec,lost,wrong,dropped_replies");
+    System.out.printf("%d,%d,%d,%.0f,%d,%d,%d%n", ServerConfig.UDP_RECEIVERS, clients, window,
+            counts[0].sum() / (double) seconds, counts[1].sum(), counts[2].sum(), server.getDroppedReplies());
+    server.close();
+    System.exit(0);
+  }
+
+  // Returns the number of correct replies, lost requests and wrong replies.
+  private static LongAdder[] run(InetSocketAddress address, int clients, int window, int seconds, int keys)
+          throws InterruptedException {
+    LongAdder answered = new LongAdder();
+    LongAdder lost = new LongAdder();
+    LongAdder wrong = new LongAdder();
+    long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+    CountDownLatch done = new CountDownLatch(clients);
+    for (int c = 0; c < clients; c++) {
+      new Thread(() -> {
+        try (DatagramSocket socket = new DatagramSocket()) {
+          socket.connect(address);
+          socket.setSoTimeout(200);
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          DatagramPacket reply = new DatagramPacket(new byte[ServerConfig.UDP_MAX_DATAGRAM_BYTES], ServerConfig.UDP_MAX_DATAGRAM_BYTES);
+          int inFlight = 0;
+          while (System.nanoTime() < deadline) {
+            while (inFlight < window) {
+              byte[] request = ("GET key" + random.nextInt(keys)).getBytes(StandardCharsets.UTF_8);
+              socket.send(new DatagramPacket(request, request.length));
+              inFlight++;
+            }
+            try {
+              socket.receive(reply);
+              inFlight--;
+              String value = new String(reply.getData(), 0, reply.getLength(), StandardCharsets.UTF_8);
+              if (value.startsWith("GET OK: value")) {
+                answered.increment();
+              } else {
+                wrong.increment();
+              }
+            } catch (SocketTimeoutException e) {
+              lost.add(inFlight);
+              inFlight = 0;
+            }
+          }
+        } catch (Exception e) {
+          System.err.println("Client failed: " + e);
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+    done.await();
+    return new LongAdder[]{answered, lost, wrong};
+  }
+}
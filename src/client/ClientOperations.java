@@ -7,6 +7,7 @@ import java.rmi.Naming;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -106,9 +107,7 @@ public class ClientOperations {
       }
 
       executorService.shutdown();
-      while (!executorService.isTerminated()) {
-        // Wait for all tasks to finish
-      }
+      executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
       System.out.println("All operations are completed.");
 
     } catch (Exception e) {
@@ -6,6 +6,7 @@ import java.rmi.Naming;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -98,9 +99,7 @@ public class ConcurrentOperationsTest {
       }
 
       executorService.shutdown();
-      while (!executorService.isTerminated()) {
-        Thread.sleep(1000);
-      }
+      executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 
       System.out.println(".....Concurrency Test Completed.....");
       ClientLogger.logRMIClient(".....Concurrency Test Completed.....");
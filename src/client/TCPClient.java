@@ -5,9 +5,14 @@ import server.TwoPhaseCommitImpl;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.rmi.Naming;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -16,6 +21,7 @@ public class TCPClient {
   public static void main(String[] args) {
     if (args.length < 5) {
       System.out.println("Usage: java TCPClient <hostname> <port> <operation> <key> [<value>]");
+      System.out.println("       java TCPClient <hostname> <port> PIPELINE <requests> <depth>");
       ClientLogger.logTCP("Usage: java TCPClient <hostname> <port> <operation> <key> [<value>]");
       return;
     }
@@ -23,6 +29,10 @@ public class TCPClient {
     String hostname = args[0];
     int port = Integer.parseInt(args[1]);
     String operation = args[2].toUpperCase();
+    if (operation.equals("PIPELINE")) {
+      runPipeline(hostname, port, Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+      return;
+    }
     String key = args[3];
     String value = args.length > 4 ? args[4] : "";
 
@@ -123,4 +133,75 @@ public class TCPClient {
       ClientLogger.logTCPError("Client exception: ", e);
     }
   }
+
+  // Sends requests tagged "#<n>" over one connection, keeping up to depth of them in flight, and
+  // reports throughput and latency. Each PUT is followed by a GET of the same key, which the server
+  // runs after the PUT, so every GET must return the value just written.
+  private static void runPipeline(String hostname, int port, int requests, int depth) {
+    AtomicLongArray sentAt = new AtomicLongArray(requests);
+    Semaphore window = new Semaphore(depth);
+    AtomicInteger errors = new AtomicInteger();
+    AtomicLong totalLatency = new AtomicLong();
+
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(hostname, port), 5000);
+      socket.setSoTimeout(30000);
+      socket.setTcpNoDelay(true);
+      Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+
+      Thread reader = new Thread(() -> {
+        try {
+          for (int received = 0; received < requests; received++) {
+            String line = in.readLine();
+            if (line == null) {
+              System.err.println("Server closed the connection after " + received + " responses.");
+              errors.addAndGet(requests - received);
+              window.release(requests);
+              break;
+            }
+            int space = line.indexOf(' ');
+            int id = Integer.parseInt(line.substring(1, space));
+            totalLatency.addAndGet(System.nanoTime() - sentAt.get(id));
+            String response = line.substring(space + 1);
+            String expected = id % 2 == 0 ? "PUT OK" : "GET OK: value" + id / 2;
+            if (!response.equals(expected)) {
+              errors.incrementAndGet();
+              ClientLogger.logTCP("Unexpected response to pipelined request " + id + ": " + response);
+            }
+            window.release();
+          }
+        } catch (IOException e) {
+          System.err.println("Error reading pipelined responses: " + e);
+          ClientLogger.logTCPError("Error reading pipelined responses", e);
+          window.release(requests);
+        }
+      });
+      reader.start();
+
+      long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        if (!window.tryAcquire()) {
+          out.flush();
+          window.acquire();
+        }
+        String key = "pipeline-key" + (i / 2) % 1000;
+        sentAt.set(i, System.nanoTime());
+        out.write(i % 2 == 0 ? "#" + i + " PUT " + key + " value" + i / 2 + "\n" : "#" + i + " GET " + key + "\n");
+      }
+      out.flush();
+      reader.join();
+      long elapsed = System.nanoTime() - start;
+
+      String summary = String.format("Pipelined %d requests with depth %d in %d ms: %.0f ops/sec, average latency %d us, %d errors",
+              requests, depth, elapsed / 1_000_000, requests * 1e9 / elapsed, totalLatency.get() / requests / 1000, errors.get());
+      System.out.println(summary);
+      ClientLogger.logTCP(summary);
+    } catch (IOException e) {
+      System.err.println("Pipelined client failed: " + e);
+      ClientLogger.logTCPError("Pipelined client failed", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
 }
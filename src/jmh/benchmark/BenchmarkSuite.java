@@ -0,0 +1,124 @@
+package benchmark;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// The regression suite: runs the JMH benchmarks of this source set (the replica store, the 2PC
+// coordinator and the request parser) once per thread count, always with JMH's GC profiler so the
+// bytes allocated per operation are reported next to the throughput. Results are printed and
+// optionally written as CSV; given the CSV of an earlier run as a baseline, every benchmark that
+// lost more than the tolerance is reported and the exit status is 1, so a script or CI job can
+// fail on a performance regression. Every other argument is passed to JMH, e.g. a benchmark name
+// regex, -f 3 for more forks or -wi/-i/-r for other warm-up and measurement settings.
+//
+// Usage: gradle jmh -Pargs='[--threads 1,2,4,8] [--out results.csv] [--baseline previous.csv]
+//          [--tolerance 10] [JMH options] [name regex]'
+public class BenchmarkSuite {
+  private static final List<String> OPTIONS = Arrays.asList("threads", "out", "baseline", "tolerance");
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>();
+    options.put("threads", "1,2,4,8");
+    options.put("tolerance", "10");
+    List<String> jmhArgs = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("--") && OPTIONS.contains(args[i].substring(2)) && i + 1 < args.length) {
+        options.put(args[i].substring(2), args[++i]);
+      } else {
+        jmhArgs.add(args[i]);
+      }
+    }
+    Options jmhOptions = new CommandLineOptions(jmhArgs.toArray(new String[0]));
+
+    List<String> rows = new ArrayList<>();
+    rows.add("benchmark,params,threads,ops_per_sec,error,bytes_per_op");
+    for (String threads : options.get("threads").split(",")) {
+      Options run = new OptionsBuilder()
+              .parent(jmhOptions)
+              .threads(Integer.parseInt(threads.trim()))
+              .addProfiler(GCProfiler.class)
+              .build();
+      for (RunResult result : new Runner(run).run()) {
+        rows.add(row(result));
+      }
+    }
+    System.out.println();
+    for (String row : rows) {
+      System.out.println(row);
+    }
+
+    if (options.containsKey("out")) {
+      Files.write(Paths.get(options.get("out")), rows, StandardCharsets.UTF_8);
+    }
+    if (options.containsKey("baseline")
+            && !compare(options.get("baseline"), rows, Double.parseDouble(options.get("tolerance")))) {
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+
+  private static String row(RunResult result) {
+    BenchmarkParams params = result.getParams();
+    StringBuilder values = new StringBuilder();
+    for (String key : params.getParamsKeys()) {
+      values.append(values.length() == 0 ? "" : ";").append(key).append('=').append(params.getParam(key));
+    }
+    Result score = result.getPrimaryResult();
+    double bytesPerOp = Double.NaN;
+    for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+      if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+        bytesPerOp = secondary.getValue().getScore();
+      }
+    }
+    return String.format(Locale.ROOT, "%s,%s,%d,%.0f,%.0f,%.1f", params.getBenchmark().replaceFirst("^benchmark\\.", ""),
+            values, params.getThreads(), score.getScore(), score.getScoreError(), bytesPerOp);
+  }
+
+  // Prints how each benchmark moved against the baseline CSV. Returns false if any got slower by
+  // more than tolerancePercent.
+  private static boolean compare(String baselineFile, List<String> rows, double tolerancePercent) throws IOException {
+    Map<String, Double> baseline = new LinkedHashMap<>();
+    for (String line : Files.readAllLines(Paths.get(baselineFile), StandardCharsets.UTF_8)) {
+      String[] fields = line.split(",");
+      if (fields.length >= 4 && !fields[0].equals("benchmark")) {
+        baseline.put(fields[0] + "," + fields[1] + "," + fields[2], Double.parseDouble(fields[3]));
+      }
+    }
+    boolean passed = true;
+    PrintWriter out = new PrintWriter(System.out, true);
+    out.println();
+    out.println("benchmark,params,threads,baseline_ops_per_sec,ops_per_sec,change_percent,verdict");
+    for (String row : rows.subList(1, rows.size())) {
+      String[] fields = row.split(",");
+      Double before = baseline.get(fields[0] + "," + fields[1] + "," + fields[2]);
+      if (before == null || before == 0) {
+        continue;
+      }
+      double change = (Double.parseDouble(fields[3]) - before) / before * 100;
+      String verdict = change < -tolerancePercent ? "REGRESSION" : change > tolerancePercent ? "improved" : "ok";
+      if (change < -tolerancePercent) {
+        passed = false;
+      }
+      out.printf(Locale.ROOT, "%s,%s,%s,%.0f,%s,%+.1f,%s%n", fields[0], fields[1], fields[2], before, fields[3], change, verdict);
+    }
+    return passed;
+  }
+}
@@ -0,0 +1,66 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.KeyValueStoreInterface;
+import server.TwoPhaseCommitImpl;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Throughput of the 2PC coordinator over three in-process replicas: a round per write, and writes
+// through submit(), which combines concurrent ones into group commit rounds.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Dkvstore.verbose=false", "-Dkvstore.log.level=error"})
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CoordinatorBenchmark {
+  @Param({"uniform", "zipf"})
+  public String distribution;
+
+  @Param("100000")
+  public int keys;
+
+  private KeyDistribution keyDistribution;
+  private TwoPhaseCommitImpl coordinator;
+
+  @Setup
+  public void setUp() throws RemoteException {
+    keyDistribution = KeyDistribution.of(distribution, keys);
+    List<KeyValueStoreInterface> replicas = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      replicas.add(StoreBenchmark.loadedStore(keyDistribution));
+    }
+    coordinator = new TwoPhaseCommitImpl(replicas);
+  }
+
+  @TearDown
+  public void tearDown() {
+    coordinator.close();
+  }
+
+  @Benchmark
+  public boolean twoPhaseCommit() {
+    return coordinator.performTwoPhaseCommit("PUT", keyDistribution.next(ThreadLocalRandom.current()), "value");
+  }
+
+  @Benchmark
+  public boolean submit() {
+    return coordinator.submit("PUT", keyDistribution.next(ThreadLocalRandom.current()), "value");
+  }
+}
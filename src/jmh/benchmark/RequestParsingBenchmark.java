@@ -0,0 +1,132 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.KeyValueStoreInterface;
+import server.Operation;
+import server.RequestProcessor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// The front-end's handling of a GET, from request bytes in a network buffer to response bytes in a
+// network buffer. "split" is the old path (decode to a String, String.split, getBytes); "parser"
+// parses the buffer in place and encodes the response straight into the output buffer. The
+// replica is a stub that returns prebuilt responses, so only the front-end's own allocations are
+// counted: BenchmarkSuite runs it with JMH's GC profiler, whose gc.alloc.rate.norm is its
+// bytes_per_op column.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Dkvstore.verbose=false", "-Dkvstore.log.level=error"})
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RequestParsingBenchmark {
+  @Param("1000")
+  public int keys;
+
+  private StubReplica replica;
+  private ByteBuffer[] inputs;
+  private ByteBuffer output;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    replica = new StubReplica(keys);
+    RequestProcessor.setReplicas(Collections.singletonList(replica));
+    inputs = new ByteBuffer[keys];
+    for (int k = 0; k < keys; k++) {
+      inputs[k] = ByteBuffer.allocateDirect(64);
+      inputs[k].put(("GET key" + k).getBytes(StandardCharsets.UTF_8)).flip();
+    }
+    output = ByteBuffer.allocateDirect(4096);
+    int expected = "GET OK: value0".length();
+    if (split() != expected || parser() != expected) {
+      throw new IllegalStateException("Wrong response to GET key0");
+    }
+    next = 0;
+  }
+
+  // Both return the response length, so the work cannot be skipped.
+  @Benchmark
+  public int split() {
+    output.clear();
+    String request = StandardCharsets.UTF_8.decode(nextInput().duplicate()).toString();
+    String[] parts = request.split(" ");
+    String response = parts.length < 2 ? "ERROR Malformed request: " + request : replica.get(parts[1]);
+    output.put(response.getBytes());
+    return output.position();
+  }
+
+  @Benchmark
+  public int parser() {
+    output.clear();
+    RequestProcessor.encode(RequestProcessor.processRequest(nextInput()), output);
+    return output.position();
+  }
+
+  private ByteBuffer nextInput() {
+    ByteBuffer input = inputs[next];
+    next = next + 1 == inputs.length ? 0 : next + 1;
+    return input;
+  }
+
+  private static class StubReplica implements KeyValueStoreInterface {
+    private final Map<String, String> responses = new HashMap<>();
+
+    StubReplica(int keys) {
+      for (int k = 0; k < keys; k++) {
+        responses.put("key" + k, "GET OK: value" + k);
+      }
+    }
+
+    @Override
+    public String get(String key) {
+      return responses.get(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String delete(String key) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean prepare(String transactionId, String operation, String key, String value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean prepareBatch(String transactionId, List<Operation> operations) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void commit(String transactionId) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void abort(String transactionId) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.KeyValueStoreImpl;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Throughput of an in-memory replica store: GET, PUT, and PUT followed by DELETE of the same key,
+// over keys that are all present before the first iteration, picked uniformly or Zipf-skewed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Dkvstore.verbose=false", "-Dkvstore.log.level=error"})
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StoreBenchmark {
+  @Param({"uniform", "zipf"})
+  public String distribution;
+
+  @Param("100000")
+  public int keys;
+
+  private KeyDistribution keyDistribution;
+  private KeyValueStoreImpl store;
+
+  @Setup
+  public void setUp() throws RemoteException {
+    keyDistribution = KeyDistribution.of(distribution, keys);
+    store = loadedStore(keyDistribution);
+  }
+
+  @Benchmark
+  public String get() throws RemoteException {
+    return store.get(keyDistribution.next(ThreadLocalRandom.current()));
+  }
+
+  @Benchmark
+  public String put() throws RemoteException {
+    return store.put(keyDistribution.next(ThreadLocalRandom.current()), "value");
+  }
+
+  @Benchmark
+  public String putDelete() throws RemoteException {
+    String key = keyDistribution.next(ThreadLocalRandom.current());
+    store.put(key, "value");
+    return store.delete(key);
+  }
+
+  static KeyValueStoreImpl loadedStore(KeyDistribution keys) throws RemoteException {
+    KeyValueStoreImpl store = new KeyValueStoreImpl();
+    for (int i = 0; i < keys.size(); i++) {
+      store.put(keys.key(i), "value");
+    }
+    return store;
+  }
+}
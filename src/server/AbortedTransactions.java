@@ -0,0 +1,38 @@
+package server;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// The IDs of the most recent aborts a replica received. The coordinator sends an abort without
+// waiting after a prepare times out, so the abort can overtake the prepare it cancels; a prepare
+// whose ID is found here is rejected instead of locking its keys for a transaction nobody will
+// finish. Once full, the oldest ID is forgotten for each new one.
+class AbortedTransactions {
+  private final int capacity;
+  private final Set<String> ids = ConcurrentHashMap.newKeySet();
+  private final Queue<String> order = new ConcurrentLinkedQueue<>();
+
+  AbortedTransactions(int capacity) {
+    this.capacity = capacity;
+  }
+
+  void add(String transactionId) {
+    if (capacity <= 0 || !ids.add(transactionId)) {
+      return;
+    }
+    order.add(transactionId);
+    while (ids.size() > capacity) {
+      String oldest = order.poll();
+      if (oldest == null) {
+        break;
+      }
+      ids.remove(oldest);
+    }
+  }
+
+  boolean contains(String transactionId) {
+    return ids.contains(transactionId);
+  }
+}
@@ -0,0 +1,257 @@
+package server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Appends log lines to a file without making the logging thread wait for the disk. log() only
+// claims a slot in a fixed ring buffer and stores the message there; one writer thread drains the
+// ring, formats whole batches of lines and appends each batch with one write to a channel that
+// stays open. Timestamps are formatted once per second and the milliseconds appended by hand.
+//
+// The ring is a bounded multi-producer, single-consumer queue: producers claim slots with a CAS on
+// the tail and publish them through a per-slot sequence number, so they never take a lock. When
+// the ring is full a line is dropped (and counted in the log) or, with kvstore.log.whenFull=block,
+// the caller waits for the writer to make room. Lines still queued at shutdown are written by a
+// shutdown hook.
+public class AsyncLogWriter {
+  public static final int INFO = 0;
+  public static final int ERROR = 1;
+  public static final int OFF = 2;
+
+  private static final int MAX_BATCH = 1024;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.")
+          .withZone(ZoneId.systemDefault());
+
+  private final String path;
+  private final int level;
+  private final boolean blockWhenFull;
+  private final int mask;
+  // Slot i holds the entry claimed at tail position p when sequences[i] == p + 1 and is free for
+  // position p when sequences[i] == p.
+  private final AtomicLongArray sequences;
+  private final long[] times;
+  private final String[] protocols;
+  private final String[] messages;
+  private final Throwable[] errors;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+  private volatile boolean writerParked;
+  private volatile boolean closed;
+
+  // Writer thread only.
+  private long head;
+  private FileChannel channel;
+  private boolean openFailed;
+  private final StringBuilder batch = new StringBuilder(64 * 1024);
+  private long cachedSecond = Long.MIN_VALUE;
+  private String cachedPrefix;
+
+  public AsyncLogWriter(String path, String threadName) {
+    this(path, levelOf(ServerConfig.LOG_LEVEL), ServerConfig.LOG_BUFFER, ServerConfig.LOG_WHEN_FULL.equals("block"),
+            threadName);
+  }
+
+  public AsyncLogWriter(String path, int level, int capacity, boolean blockWhenFull, String threadName) {
+    this.path = path;
+    this.level = level;
+    this.blockWhenFull = blockWhenFull;
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.mask = size - 1;
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    this.times = new long[size];
+    this.protocols = new String[size];
+    this.messages = new String[size];
+    this.errors = new Throwable[size];
+    this.writer = new Thread(this::drainLoop, threadName);
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, threadName + "-shutdown"));
+  }
+
+  static int levelOf(String name) {
+    switch (name.toLowerCase()) {
+      case "error":
+        return ERROR;
+      case "off":
+        return OFF;
+      default:
+        return INFO;
+    }
+  }
+
+  public boolean isEnabled(int messageLevel) {
+    return messageLevel >= level && level != OFF;
+  }
+
+  // Queues one line, with the stack trace of error if it is not null.
+  public void log(int messageLevel, String protocol, String message, Throwable error) {
+    if (!isEnabled(messageLevel) || closed) {
+      return;
+    }
+    long time = System.currentTimeMillis();
+    while (!offer(time, protocol, message, error)) {
+      if (!blockWhenFull) {
+        dropped.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(50_000);
+    }
+    if (writerParked) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  // Number of lines dropped because the ring was full.
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  // Writes everything queued so far and stops the writer thread.
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean offer(long time, String protocol, String message, Throwable error) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+    int index = (int) position & mask;
+    times[index] = time;
+    protocols[index] = protocol;
+    messages[index] = message;
+    errors[index] = error;
+    // A volatile store, so the writerParked check in log() cannot be reordered before it.
+    sequences.set(index, position + 1);
+    return true;
+  }
+
+  private void drainLoop() {
+    while (true) {
+      int drained = drain();
+      if (drained > 0) {
+        continue;
+      }
+      if (closed) {
+        // A producer may have claimed a slot just before close; take what has been published.
+        if (drain() == 0) {
+          break;
+        }
+        continue;
+      }
+      writerParked = true;
+      if (!hasNext()) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+      writerParked = false;
+    }
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private boolean hasNext() {
+    return sequences.get((int) head & mask) == head + 1;
+  }
+
+  // Formats and writes up to MAX_BATCH queued lines. Returns the number written.
+  private int drain() {
+    int count = 0;
+    while (count < MAX_BATCH && hasNext()) {
+      int index = (int) head & mask;
+      format(times[index], protocols[index], messages[index], errors[index]);
+      protocols[index] = null;
+      messages[index] = null;
+      errors[index] = null;
+      sequences.lazySet(index, head + mask + 1);
+      head++;
+      count++;
+    }
+    long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      format(System.currentTimeMillis(), "LOG", lost + " log lines dropped because the log buffer was full", null);
+    }
+    if (batch.length() > 0) {
+      write();
+    }
+    return count;
+  }
+
+  private void format(long time, String protocol, String message, Throwable error) {
+    long second = time / 1000;
+    if (second != cachedSecond) {
+      cachedSecond = second;
+      cachedPrefix = SECONDS.format(Instant.ofEpochSecond(second));
+    }
+    int millis = (int) (time % 1000);
+    batch.append(cachedPrefix).append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+            .append((char) ('0' + millis % 10)).append(" [").append(protocol).append(error == null ? "] " : " ERROR] ")
+            .append(message).append(System.lineSeparator());
+    if (error != null) {
+      StringWriter trace = new StringWriter();
+      error.printStackTrace(new PrintWriter(trace));
+      batch.append(trace);
+    }
+  }
+
+  private void write() {
+    ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+    batch.setLength(0);
+    if (openFailed) {
+      return;
+    }
+    try {
+      if (channel == null) {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+      }
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+    } catch (IOException e) {
+      // Report once instead of on every batch; logging must not take the process down.
+      openFailed = true;
+      System.err.println("Unable to write log file " + path + ", further log lines are discarded: " + e);
+    }
+  }
+}
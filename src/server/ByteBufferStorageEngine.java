@@ -0,0 +1,508 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Base for engines that keep keys and values as UTF-8 bytes in ByteBuffers instead of String
+// objects on the heap, so the GC never has to trace the dataset and each entry costs little more
+// than its bytes. Subclasses only decide where the buffers come from.
+//
+// The keyspace is split into shards by key hash, each with its own read/write lock, data region and
+// index region. The data region is an append-only sequence of records
+// [key length][value length][value capacity][key bytes][value bytes], allocated in fixed-size
+// chunks. A value that fits in its record's capacity is overwritten in place; otherwise a new
+// record is appended and the old one becomes garbage, reclaimed by compacting the shard once
+// garbage outweighs live data. The index is an open-addressing hash table with linear probing:
+// 16-byte slots holding the key hash and the record address, with tombstones for removed keys so
+// entries never move except when the table is rebuilt.
+public abstract class ByteBufferStorageEngine implements StorageEngine {
+  private static final int SLOT_SIZE = 16;
+  private static final int INITIAL_SLOTS = 1024;
+  private static final long EMPTY = 0;
+  private static final long TOMBSTONE = -1;
+  private static final int RECORD_HEADER = 12;
+  private static final int ITERATION_BATCH = 256;
+
+  private final String description;
+  private final Regions regions;
+  private final int chunkSize;
+  private final Shard[] shards;
+  private final int shardMask;
+
+  ByteBufferStorageEngine(String description, Regions regions, int shardCount, int chunkSize) throws IOException {
+    this.description = description;
+    this.regions = regions;
+    this.chunkSize = chunkSize;
+    int count = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1;
+    this.shards = new Shard[count];
+    this.shardMask = count - 1;
+    for (int i = 0; i < count; i++) {
+      shards[i] = new Shard(i);
+    }
+  }
+
+  @Override
+  public String get(String key) {
+    int hash = hash(key);
+    Shard shard = shardFor(hash);
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    shard.lock.readLock().lock();
+    try {
+      int slot = shard.find(keyBytes, hash);
+      return slot < 0 ? null : shard.readValue(shard.address(slot));
+    } finally {
+      shard.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void put(String key, String value) {
+    int hash = hash(key);
+    Shard shard = shardFor(hash);
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    shard.lock.writeLock().lock();
+    try {
+      shard.put(keyBytes, valueBytes, hash);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to grow " + description, e);
+    } finally {
+      shard.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(String key) {
+    int hash = hash(key);
+    Shard shard = shardFor(hash);
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    shard.lock.writeLock().lock();
+    try {
+      return shard.remove(keyBytes, hash);
+    } finally {
+      shard.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    int hash = hash(key);
+    Shard shard = shardFor(hash);
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    shard.lock.readLock().lock();
+    try {
+      return shard.find(keyBytes, hash) >= 0;
+    } finally {
+      shard.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Shard shard : shards) {
+      shard.lock.readLock().lock();
+      try {
+        size += shard.size;
+      } finally {
+        shard.lock.readLock().unlock();
+      }
+    }
+    return size;
+  }
+
+  // Scans the index a batch of slots at a time under the shard's read lock, so writers are never
+  // blocked for long. If the shard's index is rebuilt in between, its scan starts over; keys seen
+  // twice are harmless for a fuzzy snapshot.
+  @Override
+  public Iterable<Map.Entry<String, String>> entries() {
+    return EntryIterator::new;
+  }
+
+  @Override
+  public void clear() {
+    for (Shard shard : shards) {
+      shard.lock.writeLock().lock();
+      try {
+        shard.reset();
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to reset " + description, e);
+      } finally {
+        shard.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Shard shard : shards) {
+      shard.lock.writeLock().lock();
+      try {
+        shard.release();
+      } finally {
+        shard.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  private Shard shardFor(int hash) {
+    return shards[(hash >>> 24) & shardMask];
+  }
+
+  private static int hash(String key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static int align(int length) {
+    return (length + 7) & ~7;
+  }
+
+  private class Shard {
+    private final int id;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Bumped whenever slots move, so iterators know to restart.
+    private int epoch;
+    // Rebuilding the index or compacting the data opens a new region with the next generation.
+    private int indexGeneration;
+    private int dataGeneration;
+
+    private Region indexRegion;
+    private ByteBuffer index;
+    private int capacity;
+    private int mask;
+    private int size;
+    private int tombstones;
+
+    private Region dataRegion;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long appendPosition;
+    private long liveBytes;
+    private long garbageBytes;
+
+    Shard(int id) throws IOException {
+      this.id = id;
+      reset();
+    }
+
+    void reset() throws IOException {
+      release();
+      epoch++;
+      indexGeneration++;
+      openIndex(INITIAL_SLOTS);
+      dataGeneration++;
+      dataRegion = regions.open("shard-" + id + ".data." + dataGeneration);
+      chunks.clear();
+      appendPosition = 0;
+      liveBytes = 0;
+      garbageBytes = 0;
+      size = 0;
+    }
+
+    void release() throws IOException {
+      if (indexRegion != null) {
+        index = null;
+        indexRegion.release();
+        indexRegion = null;
+      }
+      if (dataRegion != null) {
+        chunks.clear();
+        dataRegion.release();
+        dataRegion = null;
+      }
+    }
+
+    long address(int slot) {
+      return index.getLong(slot * SLOT_SIZE + 8);
+    }
+
+    // Returns the slot holding the key, or -1.
+    int find(byte[] key, int hash) {
+      int slot = hash & mask;
+      while (true) {
+        long address = address(slot);
+        if (address == EMPTY) {
+          return -1;
+        }
+        if (address != TOMBSTONE && index.getInt(slot * SLOT_SIZE) == hash && keyEquals(address - 1, key)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    void put(byte[] key, byte[] value, int hash) throws IOException {
+      int slot = find(key, hash);
+      if (slot >= 0) {
+        long offset = address(slot) - 1;
+        ByteBuffer chunk = chunk(offset);
+        int position = position(offset);
+        int keyLength = chunk.getInt(position);
+        int capacity = chunk.getInt(position + 8);
+        if (value.length <= capacity) {
+          ByteBuffer target = chunk.duplicate();
+          target.position(position + RECORD_HEADER + keyLength);
+          target.put(value);
+          chunk.putInt(position + 4, value.length);
+          return;
+        }
+        index.putLong(slot * SLOT_SIZE + 8, append(key, value) + 1);
+        long oldSize = RECORD_HEADER + keyLength + capacity;
+        garbageBytes += oldSize;
+        liveBytes -= oldSize;
+        compactIfNeeded();
+        return;
+      }
+
+      if ((size + tombstones + 1) * 4L > capacity * 3L) {
+        rebuildIndex(size + 1 > capacity / 2 ? capacity * 2 : capacity);
+      }
+      long address = append(key, value) + 1;
+      slot = hash & mask;
+      while (true) {
+        long existing = address(slot);
+        if (existing == EMPTY || existing == TOMBSTONE) {
+          if (existing == TOMBSTONE) {
+            tombstones--;
+          }
+          index.putInt(slot * SLOT_SIZE, hash);
+          index.putLong(slot * SLOT_SIZE + 8, address);
+          size++;
+          compactIfNeeded();
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    boolean remove(byte[] key, int hash) {
+      int slot = find(key, hash);
+      if (slot < 0) {
+        return false;
+      }
+      long recordSize = recordSize(address(slot) - 1);
+      liveBytes -= recordSize;
+      garbageBytes += recordSize;
+      index.putLong(slot * SLOT_SIZE + 8, TOMBSTONE);
+      size--;
+      tombstones++;
+      return true;
+    }
+
+    String readKey(long offset) {
+      ByteBuffer chunk = chunk(offset);
+      int position = position(offset);
+      byte[] key = new byte[chunk.getInt(position)];
+      ByteBuffer source = chunk.duplicate();
+      source.position(position + RECORD_HEADER);
+      source.get(key);
+      return new String(key, StandardCharsets.UTF_8);
+    }
+
+    String readValue(long address) {
+      long offset = address - 1;
+      ByteBuffer chunk = chunk(offset);
+      int position = position(offset);
+      byte[] value = new byte[chunk.getInt(position + 4)];
+      ByteBuffer source = chunk.duplicate();
+      source.position(position + RECORD_HEADER + chunk.getInt(position));
+      source.get(value);
+      return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private boolean keyEquals(long offset, byte[] key) {
+      ByteBuffer chunk = chunk(offset);
+      int position = position(offset);
+      if (chunk.getInt(position) != key.length) {
+        return false;
+      }
+      int start = position + RECORD_HEADER;
+      for (int i = 0; i < key.length; i++) {
+        if (chunk.get(start + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private long recordSize(long offset) {
+      ByteBuffer chunk = chunk(offset);
+      int position = position(offset);
+      return RECORD_HEADER + chunk.getInt(position) + chunk.getInt(position + 8);
+    }
+
+    // Appends a record and returns its offset in the data file. Records never span chunks.
+    private long append(byte[] key, byte[] value) throws IOException {
+      int capacity = align(value.length);
+      int recordSize = RECORD_HEADER + key.length + capacity;
+      if (recordSize > chunkSize) {
+        throw new IllegalArgumentException("Entry of " + recordSize + " bytes exceeds the storage chunk size of "
+                + chunkSize + " bytes");
+      }
+      int position = position(appendPosition);
+      if (position + recordSize > chunkSize) {
+        garbageBytes += chunkSize - position;
+        appendPosition += chunkSize - position;
+        position = 0;
+      }
+      int chunkIndex = (int) (appendPosition / chunkSize);
+      while (chunks.size() <= chunkIndex) {
+        chunks.add(dataRegion.map((long) chunks.size() * chunkSize, chunkSize).order(ByteOrder.nativeOrder()));
+      }
+      ByteBuffer chunk = chunks.get(chunkIndex);
+      chunk.putInt(position, key.length);
+      chunk.putInt(position + 4, value.length);
+      chunk.putInt(position + 8, capacity);
+      ByteBuffer target = chunk.duplicate();
+      target.position(position + RECORD_HEADER);
+      target.put(key);
+      target.put(value);
+      long offset = appendPosition;
+      appendPosition += recordSize;
+      liveBytes += recordSize;
+      return offset;
+    }
+
+    // Copies the live records into a fresh data region once more than half of it is garbage.
+    private void compactIfNeeded() throws IOException {
+      if (garbageBytes < chunkSize || garbageBytes < liveBytes) {
+        return;
+      }
+      Region oldRegion = dataRegion;
+      List<ByteBuffer> oldChunks = new ArrayList<>(chunks);
+      dataGeneration++;
+      dataRegion = regions.open("shard-" + id + ".data." + dataGeneration);
+      chunks.clear();
+      appendPosition = 0;
+      liveBytes = 0;
+      garbageBytes = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        long address = address(slot);
+        if (address == EMPTY || address == TOMBSTONE) {
+          continue;
+        }
+        long offset = address - 1;
+        ByteBuffer chunk = oldChunks.get((int) (offset / chunkSize));
+        int position = position(offset);
+        byte[] key = new byte[chunk.getInt(position)];
+        byte[] value = new byte[chunk.getInt(position + 4)];
+        ByteBuffer source = chunk.duplicate();
+        source.position(position + RECORD_HEADER);
+        source.get(key);
+        source.position(position + RECORD_HEADER + key.length);
+        source.get(value);
+        index.putLong(slot * SLOT_SIZE + 8, append(key, value) + 1);
+      }
+      oldChunks.clear();
+      oldRegion.release();
+      epoch++;
+    }
+
+    // Rehashes every live entry into a new index of the given capacity, dropping tombstones.
+    private void rebuildIndex(int newCapacity) throws IOException {
+      Region oldRegion = indexRegion;
+      ByteBuffer oldIndex = index;
+      int oldCapacity = capacity;
+      indexGeneration++;
+      openIndex(newCapacity);
+      for (int slot = 0; slot < oldCapacity; slot++) {
+        long address = oldIndex.getLong(slot * SLOT_SIZE + 8);
+        if (address == EMPTY || address == TOMBSTONE) {
+          continue;
+        }
+        int hash = oldIndex.getInt(slot * SLOT_SIZE);
+        int target = hash & mask;
+        while (index.getLong(target * SLOT_SIZE + 8) != EMPTY) {
+          target = (target + 1) & mask;
+        }
+        index.putInt(target * SLOT_SIZE, hash);
+        index.putLong(target * SLOT_SIZE + 8, address);
+      }
+      oldRegion.release();
+      epoch++;
+    }
+
+    private void openIndex(int slots) throws IOException {
+      indexRegion = regions.open("shard-" + id + ".index." + indexGeneration);
+      index = indexRegion.map(0, slots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+      capacity = slots;
+      mask = slots - 1;
+      tombstones = 0;
+    }
+
+    private ByteBuffer chunk(long offset) {
+      return chunks.get((int) (offset / chunkSize));
+    }
+
+    private int position(long offset) {
+      return (int) (offset % chunkSize);
+    }
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+    private final ArrayDeque<Map.Entry<String, String>> buffer = new ArrayDeque<>();
+    private int shardIndex;
+    private int slot;
+    private int epoch = -1;
+
+    @Override
+    public boolean hasNext() {
+      while (buffer.isEmpty() && shardIndex < shards.length) {
+        Shard shard = shards[shardIndex];
+        shard.lock.readLock().lock();
+        try {
+          if (shard.epoch != epoch) {
+            slot = 0;
+            epoch = shard.epoch;
+          }
+          int end = Math.min(shard.capacity, slot + ITERATION_BATCH);
+          for (; slot < end; slot++) {
+            long address = shard.address(slot);
+            if (address != EMPTY && address != TOMBSTONE) {
+              buffer.add(new AbstractMap.SimpleImmutableEntry<>(shard.readKey(address - 1), shard.readValue(address)));
+            }
+          }
+          if (slot >= shard.capacity) {
+            shardIndex++;
+            slot = 0;
+            epoch = -1;
+          }
+        } finally {
+          shard.lock.readLock().unlock();
+        }
+      }
+      return !buffer.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return buffer.poll();
+    }
+  }
+
+  // Source of the memory behind the shards' indexes and data.
+  interface Regions {
+    Region open(String name) throws IOException;
+  }
+
+  // One growable block of memory. Buffers handed out by map are no longer used once release is
+  // called, so a region may free them eagerly.
+  interface Region {
+    ByteBuffer map(long offset, int size) throws IOException;
+
+    void release() throws IOException;
+  }
+}
@@ -0,0 +1,393 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+// Append-only log of the commit decisions of the coordinators in this process, in
+// <kvstore.data.dir>/<name>/decisions.log. Records are framed like the replicas' write-ahead log,
+// [payload length][CRC32 of payload][payload], and synced with group commit.
+//
+// The log follows presumed abort: only commits are recorded. A transaction is logged once every
+// replica has voted yes, with the replicas it was prepared on, and an end record follows once all
+// of them acknowledged the commit. Nothing is written when a transaction starts or aborts, and
+// aborts are not acknowledged, so a transaction without a commit record is aborted.
+//
+// The commits without an end record are kept in memory and rebuilt from the file on startup; they
+// are the transactions a restarted coordinator still has to finish. When the file outgrows
+// kvstore.2pc.decisionLogBytes it is rewritten with only those.
+//
+// The directory also holds the coordinator's ID, "<id>.<incarnation>", which prefixes its
+// transaction IDs. The ID survives restarts so the coordinator recognizes its own transactions on
+// the replicas, and the incarnation goes up with every start so no ID is ever reused.
+public final class CoordinatorLog {
+  static final byte COMMIT = 1;
+  static final byte END = 2;
+
+  private static final int HEADER_SIZE = 8;
+  private static volatile CoordinatorLog shared;
+
+  private final Path path;
+  private final boolean fsync;
+  private final long compactBytes;
+  private final String ownPrefix;
+  private final String coordinatorId;
+  // Held until the log is closed so two processes never share a log.
+  private final FileChannel idChannel;
+  private final FileLock idLock;
+  // Commit decisions not yet acknowledged by every participant, by transaction ID.
+  private final ConcurrentMap<String, Decision> unfinished = new ConcurrentHashMap<>();
+  private final Object writeLock = new Object();
+  private final Object syncLock = new Object();
+  // The file, replaced when the log is compacted; guarded by writeLock.
+  private FileChannel channel;
+  private long fileSize;
+  // Bytes written since the log was opened, counting records dropped by compaction, guarded by
+  // writeLock. Positions passed to sync() are in this count, so they survive a compaction.
+  private long writtenPosition;
+  // Everything before this position is known to be on disk.
+  private volatile long durablePosition;
+
+  public CoordinatorLog(Path directory, boolean fsync, long compactBytes) throws IOException {
+    Files.createDirectories(directory);
+    this.path = directory.resolve("decisions.log");
+    this.fsync = fsync;
+    this.compactBytes = compactBytes;
+
+    idChannel = FileChannel.open(directory.resolve("coordinator.id"), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = idChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null; // Open in this process.
+    }
+    idLock = lock;
+    if (idLock == null) {
+      idChannel.close();
+      throw new IOException("The coordinator log in " + directory + " is used by another process");
+    }
+    ByteBuffer content = ByteBuffer.allocate((int) idChannel.size());
+    while (content.hasRemaining() && idChannel.read(content, content.position()) >= 0) {
+    }
+    String[] stored = new String(content.array(), StandardCharsets.UTF_8).trim().split(" ");
+    String id = stored.length == 2 ? stored[0] : UUID.randomUUID().toString().substring(0, 8);
+    long incarnation = stored.length == 2 ? Long.parseLong(stored[1]) + 1 : 1;
+    idChannel.truncate(0);
+    idChannel.write(ByteBuffer.wrap((id + " " + incarnation + "\n").getBytes(StandardCharsets.UTF_8)), 0);
+    idChannel.force(true);
+    this.ownPrefix = id + ".";
+    this.coordinatorId = ownPrefix + incarnation;
+
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    int records = replay();
+    channel.truncate(fileSize);
+    writtenPosition = fileSize;
+    durablePosition = fileSize;
+    System.out.println("Coordinator " + coordinatorId + " recovered " + unfinished.size()
+            + " unfinished commit decisions from " + records + " log records");
+  }
+
+  // Opens the log of this process in <kvstore.data.dir>/<kvstore.coordinator.name>, or in
+  // <kvstore.data.dir>/<defaultName> if no name is configured. Every later call returns the same log.
+  public static CoordinatorLog openShared(String defaultName) throws IOException {
+    synchronized (CoordinatorLog.class) {
+      if (shared == null) {
+        String name = ServerConfig.COORDINATOR_NAME.isEmpty() ? defaultName : ServerConfig.COORDINATOR_NAME;
+        shared = new CoordinatorLog(Paths.get(ServerConfig.DATA_DIR, name), ServerConfig.WAL_FSYNC,
+                ServerConfig.DECISION_LOG_BYTES);
+      }
+      return shared;
+    }
+  }
+
+  // The log of this process, opened on first use.
+  public static CoordinatorLog getShared() throws IOException {
+    CoordinatorLog log = shared;
+    return log != null ? log : openShared("coordinator");
+  }
+
+  // The log of this process, or null if none has been opened.
+  public static CoordinatorLog current() {
+    return shared;
+  }
+
+  // "<id>.<incarnation>", the prefix of the transaction IDs of this process's coordinators.
+  public String getCoordinatorId() {
+    return coordinatorId;
+  }
+
+  // Opens the logs of the other coordinators under the same data directory that started one of the
+  // given transactions and that no process has open, i.e. whose coordinator is down or gone for
+  // good. A running coordinator finishes their transactions with them as their own would have,
+  // committing what the log decided and aborting the rest. While a log is open here its own
+  // coordinator cannot start, so close each as soon as it has been used.
+  public List<CoordinatorLog> openRetired(Collection<String> transactionIds) {
+    List<CoordinatorLog> logs = new ArrayList<>();
+    Path own = path.getParent();
+    try (DirectoryStream<Path> directories = Files.newDirectoryStream(own.toAbsolutePath().getParent())) {
+      for (Path directory : directories) {
+        Path idFile = directory.resolve("coordinator.id");
+        if (Files.isSameFile(directory, own) || !Files.isRegularFile(idFile)) {
+          continue;
+        }
+        String[] stored = new String(Files.readAllBytes(idFile), StandardCharsets.UTF_8).trim().split(" ");
+        if (stored.length != 2 || transactionIds.stream().noneMatch(id -> id.startsWith(stored[0] + "."))) {
+          continue;
+        }
+        try {
+          logs.add(new CoordinatorLog(directory, fsync, compactBytes));
+        } catch (IOException e) {
+          // In use: its coordinator is running and resolves its own transactions.
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to look for the logs of other coordinators: " + e);
+    }
+    return logs;
+  }
+
+  // True if the transaction was started by a coordinator using this log, in any incarnation.
+  public boolean isOwn(String transactionId) {
+    return transactionId.startsWith(ownPrefix);
+  }
+
+  // Records the commit decision and returns once it is on disk. participants names the replicas
+  // the transaction was prepared on.
+  public void logCommit(String transactionId, List<String> participants) throws IOException {
+    // Added before the record is written, so a compaction running in between keeps it.
+    unfinished.put(transactionId, new Decision(participants, System.currentTimeMillis()));
+    try {
+      sync(write(encode(COMMIT, transactionId, participants)));
+    } catch (IOException e) {
+      unfinished.remove(transactionId);
+      throw e;
+    }
+  }
+
+  // Records that every participant acknowledged the commit. Not synced: if the record is lost the
+  // commit is only sent again, and replicas ignore a commit they no longer know.
+  public void logEnd(String transactionId) throws IOException {
+    if (unfinished.remove(transactionId) != null) {
+      write(encode(END, transactionId, null));
+      compactIfNeeded();
+    }
+  }
+
+  // True if the transaction was decided to commit and not every participant has acknowledged it.
+  public boolean isCommitted(String transactionId) {
+    return unfinished.containsKey(transactionId);
+  }
+
+  // Unfinished commits decided before the given time that the replica has not acknowledged.
+  public List<String> unfinishedOn(String replica, long decidedBeforeMillis) {
+    List<String> transactionIds = new ArrayList<>();
+    for (Map.Entry<String, Decision> entry : unfinished.entrySet()) {
+      Decision decision = entry.getValue();
+      if (decision.decidedAtMillis < decidedBeforeMillis && decision.unacknowledged.contains(replica)) {
+        transactionIds.add(entry.getKey());
+      }
+    }
+    return transactionIds;
+  }
+
+  // Records that the replica applied a commit found unfinished; the last one ends the transaction.
+  public void acknowledged(String transactionId, String replica) throws IOException {
+    Decision decision = unfinished.get(transactionId);
+    if (decision != null && decision.unacknowledged.remove(replica) && decision.unacknowledged.isEmpty()) {
+      logEnd(transactionId);
+    }
+  }
+
+  public int getUnfinishedCount() {
+    return unfinished.size();
+  }
+
+  // Closes the file and gives up the coordinator ID, so another CoordinatorLog can open the directory.
+  public void close() throws IOException {
+    synchronized (CoordinatorLog.class) {
+      if (shared == this) {
+        shared = null;
+      }
+    }
+    synchronized (syncLock) {
+      synchronized (writeLock) {
+        channel.close();
+      }
+    }
+    idLock.release();
+    idChannel.close();
+  }
+
+  private long write(byte[] record) throws IOException {
+    synchronized (writeLock) {
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, fileSize + buffer.position());
+      }
+      fileSize += record.length;
+      writtenPosition += record.length;
+      return writtenPosition;
+    }
+  }
+
+  // Blocks until everything up to position is on disk; concurrent callers share one force().
+  private void sync(long position) throws IOException {
+    if (!fsync || durablePosition >= position) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (durablePosition >= position) {
+        return;
+      }
+      long target;
+      FileChannel current;
+      synchronized (writeLock) {
+        target = writtenPosition;
+        current = channel;
+      }
+      current.force(false);
+      durablePosition = target;
+    }
+  }
+
+  // Rewrites the file with only the unfinished commits once it has grown past compactBytes. The
+  // new file is complete on disk before it replaces the old one.
+  private void compactIfNeeded() throws IOException {
+    if (compactBytes <= 0 || fileSize < compactBytes) {
+      return;
+    }
+    synchronized (syncLock) {
+      synchronized (writeLock) {
+        if (fileSize < compactBytes) {
+          return;
+        }
+        Path compacted = path.resolveSibling("decisions.log.compact");
+        long size = 0;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+          for (Map.Entry<String, Decision> entry : unfinished.entrySet()) {
+            ByteBuffer buffer = ByteBuffer.wrap(encode(COMMIT, entry.getKey(), new ArrayList<>(entry.getValue().unacknowledged)));
+            while (buffer.hasRemaining()) {
+              size += out.write(buffer, size);
+            }
+          }
+          out.force(true);
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileSize = size;
+        durablePosition = writtenPosition;
+      }
+    }
+  }
+
+  // Reads the file into the unfinished commits and returns the number of records. Stops at the
+  // first torn or corrupt record, which the constructor then cuts off.
+  private int replay() throws IOException {
+    ByteBuffer file = ByteBuffer.allocate((int) channel.size());
+    while (file.hasRemaining() && channel.read(file, file.position()) >= 0) {
+    }
+    file.flip();
+    int records = 0;
+    while (file.remaining() >= HEADER_SIZE) {
+      int start = file.position();
+      int length = file.getInt();
+      int checksum = file.getInt();
+      CRC32 crc = new CRC32();
+      if (length > 0 && length <= file.remaining()) {
+        crc.update(file.array(), file.position(), length);
+      }
+      if (length <= 0 || length > file.remaining() || (int) crc.getValue() != checksum) {
+        file.position(start);
+        break;
+      }
+      byte type = file.get();
+      String transactionId = readString(file);
+      if (type == COMMIT) {
+        int count = file.getInt();
+        List<String> participants = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          participants.add(readString(file));
+        }
+        // Decided before this start, so the resolver resends them right away.
+        unfinished.put(transactionId, new Decision(participants, 0));
+      } else {
+        unfinished.remove(transactionId);
+      }
+      records++;
+    }
+    fileSize = file.position();
+    return records;
+  }
+
+  private static byte[] encode(byte type, String transactionId, List<String> participants) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0); // length, filled in below
+      out.writeInt(0); // checksum, filled in below
+      out.writeByte(type);
+      writeString(out, transactionId);
+      if (type == COMMIT) {
+        out.writeInt(participants.size());
+        for (String participant : participants) {
+          writeString(out, participant);
+        }
+      }
+      byte[] record = bytes.toByteArray();
+      int length = record.length - HEADER_SIZE;
+      CRC32 crc = new CRC32();
+      crc.update(record, HEADER_SIZE, length);
+      ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+      return record;
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to encode coordinator log record", e);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  // A commit decision and the participants that have not acknowledged it yet.
+  private static final class Decision {
+    private final Set<String> unacknowledged = ConcurrentHashMap.newKeySet();
+    private final long decidedAtMillis;
+
+    Decision(List<String> participants, long decidedAtMillis) {
+      this.unacknowledged.addAll(participants);
+      this.decidedAtMillis = decidedAtMillis;
+    }
+  }
+}
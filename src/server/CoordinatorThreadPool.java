@@ -0,0 +1,171 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shared executor the 2PC coordinator uses to send prepare/commit/abort messages to the replicas.
+// Threads are created once and reused for every transaction instead of one new thread per replica
+// per phase. In "virtual" mode (JDK 21+) each replica call gets its own virtual thread.
+public class CoordinatorThreadPool {
+  private static volatile CoordinatorThreadPool shared;
+
+  private final ExecutorService executor;
+  private final boolean virtual;
+
+  // Thread usage metrics.
+  private final AtomicInteger activeTasks = new AtomicInteger();
+  private final AtomicInteger peakActiveTasks = new AtomicInteger();
+  private final LongAdder submittedTasks = new LongAdder();
+  private final LongAdder completedTasks = new LongAdder();
+  private final LongAdder callerRunsTasks = new LongAdder();
+
+  public CoordinatorThreadPool(int poolSize, int queueSize, boolean useVirtualThreads) {
+    ExecutorService virtualExecutor = useVirtualThreads ? newVirtualThreadExecutor() : null;
+    if (virtualExecutor != null) {
+      this.executor = virtualExecutor;
+      this.virtual = true;
+    } else {
+      if (useVirtualThreads) {
+        System.err.println("Virtual threads are not available on this JVM, using a platform thread pool");
+      }
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(
+              poolSize,
+              poolSize,
+              60,
+              TimeUnit.SECONDS,
+              new ArrayBlockingQueue<>(queueSize),
+              new CoordinatorThreadFactory(),
+              (task, rejectedBy) -> {
+                // Run the replica call on the submitting thread when the pool is saturated. Once
+                // the pool is shut down nobody would run it, so the caller is told at once.
+                if (rejectedBy.isShutdown()) {
+                  throw new RejectedExecutionException("Coordinator thread pool is shut down");
+                }
+                callerRunsTasks.increment();
+                task.run();
+              }
+      );
+      pool.allowCoreThreadTimeOut(true);
+      this.executor = pool;
+      this.virtual = false;
+    }
+  }
+
+  // Returns the process-wide pool configured through ServerConfig.
+  public static CoordinatorThreadPool getShared() {
+    CoordinatorThreadPool pool = shared;
+    if (pool == null) {
+      synchronized (CoordinatorThreadPool.class) {
+        pool = shared;
+        if (pool == null) {
+          pool = new CoordinatorThreadPool(ServerConfig.COORDINATOR_THREADS, ServerConfig.COORDINATOR_QUEUE_SIZE,
+                  "virtual".equalsIgnoreCase(ServerConfig.COORDINATOR_EXECUTOR));
+          shared = pool;
+        }
+      }
+    }
+    return pool;
+  }
+
+  // Executes a replica call on the pool, recording thread usage. Throws RejectedExecutionException
+  // once the pool has been shut down.
+  public void execute(Runnable task) {
+    submittedTasks.increment();
+    executor.execute(() -> {
+      int active = activeTasks.incrementAndGet();
+      peakActiveTasks.accumulateAndGet(active, Math::max);
+      try {
+        task.run();
+      } finally {
+        activeTasks.decrementAndGet();
+        completedTasks.increment();
+      }
+    });
+  }
+
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  public int getActiveTasks() {
+    return activeTasks.get();
+  }
+
+  public int getPeakActiveTasks() {
+    return peakActiveTasks.get();
+  }
+
+  public long getSubmittedTasks() {
+    return submittedTasks.sum();
+  }
+
+  public long getCompletedTasks() {
+    return completedTasks.sum();
+  }
+
+  public long getCallerRunsTasks() {
+    return callerRunsTasks.sum();
+  }
+
+  // Number of platform threads currently alive in the pool (0 in virtual mode).
+  public int getPoolSize() {
+    return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getPoolSize() : 0;
+  }
+
+  public int getQueuedTasks() {
+    return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+  }
+
+  public String getStats() {
+    return "mode=" + (virtual ? "virtual" : "platform")
+            + " poolSize=" + getPoolSize()
+            + " active=" + getActiveTasks()
+            + " peakActive=" + getPeakActiveTasks()
+            + " queued=" + getQueuedTasks()
+            + " submitted=" + getSubmittedTasks()
+            + " completed=" + getCompletedTasks()
+            + " callerRuns=" + getCallerRunsTasks();
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Looks up Executors.newVirtualThreadPerTaskExecutor() reflectively so the code still compiles
+  // and runs on JDK 11-20, where it returns null.
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  // Names the coordinator threads and marks them as daemons so they never keep the JVM alive.
+  private static class CoordinatorThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "2pc-coordinator-" + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// A connection carrying length-prefixed frames ([int length][length bytes]) for the replica
+// protocol.
+class FrameConnection extends NioConnection {
+  private static final int INITIAL_READ_BUFFER = 64 * 1024;
+
+  private final Listener listener;
+  // Loop thread only.
+  private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+
+  FrameConnection(NioEventLoop loop, SocketChannel channel, Listener listener) throws IOException {
+    super(loop, channel);
+    this.listener = listener;
+  }
+
+  @Override
+  protected void read() throws IOException {
+    if (channel.read(readBuffer) < 0) {
+      close(new EOFException("Connection closed by " + getRemoteAddress()));
+      return;
+    }
+    readBuffer.flip();
+    int needed = 0;
+    while (readBuffer.remaining() >= 4) {
+      int length = readBuffer.getInt(readBuffer.position());
+      if (length <= 0 || length > ReplicaProtocol.MAX_FRAME_LENGTH) {
+        throw new IOException("Invalid frame length " + length + " from " + getRemoteAddress());
+      }
+      if (readBuffer.remaining() < 4 + length) {
+        needed = 4 + length;
+        break;
+      }
+      byte[] body = new byte[length];
+      readBuffer.position(readBuffer.position() + 4);
+      readBuffer.get(body);
+      listener.onFrame(this, ByteBuffer.wrap(body));
+    }
+    readBuffer.compact();
+    if (needed > readBuffer.capacity()) {
+      ByteBuffer larger = ByteBuffer.allocate(needed);
+      readBuffer.flip();
+      larger.put(readBuffer);
+      readBuffer = larger;
+    }
+  }
+
+  @Override
+  protected void closed(IOException cause) {
+    listener.onClose(this, cause);
+  }
+
+  interface Listener {
+    // Receives the frame without its length prefix. Called on the loop thread, so it must not block.
+    void onFrame(FrameConnection connection, ByteBuffer frame);
+
+    // Called once when the connection closes for any reason.
+    void onClose(FrameConnection connection, IOException cause);
+  }
+}
@@ -0,0 +1,49 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Default engine: a ConcurrentHashMap on the Java heap.
+public class HeapStorageEngine implements StorageEngine {
+  private final ConcurrentHashMap<String, String> store = new ConcurrentHashMap<>();
+
+  @Override
+  public String get(String key) {
+    return store.get(key);
+  }
+
+  @Override
+  public void put(String key, String value) {
+    store.put(key, value);
+  }
+
+  @Override
+  public boolean remove(String key) {
+    return store.remove(key) != null;
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return store.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return store.size();
+  }
+
+  @Override
+  public Iterable<Map.Entry<String, String>> entries() {
+    return store.entrySet();
+  }
+
+  @Override
+  public void clear() {
+    store.clear();
+  }
+
+  @Override
+  public void close() {
+    store.clear();
+  }
+}
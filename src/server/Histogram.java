@@ -0,0 +1,77 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A fixed-size, log-linear histogram of non-negative longs in the style of HdrHistogram. Values
+// below 32 get a bucket each; above that every power of two is split into 16 buckets, so a
+// percentile is reported within about 6% of the real value across the whole long range in 960
+// buckets. record() is a few arithmetic operations and one atomic increment, and takes no lock,
+// so it can sit on the request path; the count is summed from the buckets when it is read.
+// Percentiles read concurrently with record() are approximate.
+public class Histogram {
+  private static final int LINEAR_BUCKETS = 32;
+  private static final int SUB_BUCKETS = 16;
+  private static final int BUCKETS = 960;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketOf(value));
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long getCount() {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  // The highest value of the bucket that holds the given percentile (0 to 100), 0 when empty.
+  public long getPercentile(double percentile) {
+    long total = getCount();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  static int bucketOf(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    // Keep the five highest bits: the leading one and a 4-bit sub-bucket.
+    int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  static long highestValueOf(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+  }
+}
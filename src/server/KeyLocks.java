@@ -0,0 +1,97 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Key-level locks of a replica's prepared transactions. A transaction that writes a key holds it
+// alone; transactions that only read it, through the GETs of a MULTI, share it, so transactions
+// reading the same keys do not turn each other down.
+class KeyLocks {
+  private final ConcurrentMap<String, Holders> locks = new ConcurrentHashMap<>();
+
+  // Locks every key of the transaction, or none of them. Returns null on success, else the ID of a
+  // transaction holding one of the keys.
+  String lockAll(PreparedTransaction transaction) {
+    String transactionId = transaction.getTransactionId();
+    List<String> locked = new ArrayList<>(transaction.getKeys().size());
+    for (String key : transaction.getKeys()) {
+      boolean write = transaction.writes(key);
+      Holders holders = locks.compute(key, (k, held) -> acquire(held, transactionId, write));
+      if (!holders.holds(transactionId, write)) {
+        for (String lockedKey : locked) {
+          release(lockedKey, transactionId);
+        }
+        return holders.writer != null ? holders.writer : holders.readers.iterator().next();
+      }
+      locked.add(key);
+    }
+    return null;
+  }
+
+  void unlockAll(PreparedTransaction transaction) {
+    for (String key : transaction.getKeys()) {
+      release(key, transaction.getTransactionId());
+    }
+  }
+
+  private void release(String key, String transactionId) {
+    locks.computeIfPresent(key, (k, held) -> held.without(transactionId));
+  }
+
+  private static Holders acquire(Holders held, String transactionId, boolean write) {
+    if (held == null) {
+      return write ? new Holders(transactionId, Collections.emptySet()) : new Holders(null, Collections.singleton(transactionId));
+    }
+    if (held.writer != null) {
+      return held;
+    }
+    if (!write) {
+      return held.with(transactionId);
+    }
+    // A transaction that read the key may take it over for writing if nobody else reads it.
+    return held.readers.size() == 1 && held.readers.contains(transactionId)
+            ? new Holders(transactionId, Collections.emptySet()) : held;
+  }
+
+  // Immutable, so they can be replaced atomically by compute().
+  private static final class Holders {
+    private final String writer;
+    private final Set<String> readers;
+
+    Holders(String writer, Set<String> readers) {
+      this.writer = writer;
+      this.readers = readers;
+    }
+
+    boolean holds(String transactionId, boolean write) {
+      return transactionId.equals(writer) || (!write && readers.contains(transactionId));
+    }
+
+    Holders with(String reader) {
+      Set<String> readers = new HashSet<>(this.readers);
+      readers.add(reader);
+      return new Holders(null, readers);
+    }
+
+    // Null once nobody holds the key, which removes it from the map.
+    Holders without(String transactionId) {
+      if (transactionId.equals(writer)) {
+        return null;
+      }
+      if (!readers.contains(transactionId)) {
+        return this;
+      }
+      if (readers.size() == 1) {
+        return null;
+      }
+      Set<String> readers = new HashSet<>(this.readers);
+      readers.remove(transactionId);
+      return new Holders(null, readers);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+// Runs tasks on an executor so that tasks for the same key start in submission order: a write
+// waits for everything submitted before it on its key, reads of a key may overlap one another but
+// not a write, and tasks for different keys run in parallel. Used per connection so pipelined
+// requests keep read-your-writes order without running one at a time.
+//
+// A task may name several keys, like a MULTI does, and then starts once it is first in line on
+// every one of them. Tasks join all their queues at once and a task only ever waits for tasks
+// submitted before it, so two of them cannot wait for each other.
+//
+// A barrier task runs alone: after every task submitted before it has finished, and before any
+// task submitted after it starts.
+class KeyOrderedExecutor {
+  private final Executor executor;
+  // Keys with running or waiting tasks. Guarded by this.
+  private final Map<String, KeyQueue> queues = new HashMap<>();
+  // Tasks admitted to the key queues, or started, and not finished yet. Guarded by this.
+  private int outstanding;
+  // A barrier and the tasks submitted after it, held back until it has run. Guarded by this.
+  private final ArrayDeque<Entry> held = new ArrayDeque<>();
+  private boolean barrierRunning;
+
+  KeyOrderedExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  // A null key means the task touches no key and runs right away.
+  void execute(String key, boolean read, Runnable task) {
+    execute(key == null ? Collections.<String>emptySet() : Collections.singleton(key), read, task);
+  }
+
+  // Runs the task once it may on every key; with no keys, right away.
+  synchronized void execute(Collection<String> keys, boolean read, Runnable task) {
+    Entry entry = new Entry(new LinkedHashSet<>(keys), read, task, false);
+    if (barrierRunning || !held.isEmpty()) {
+      held.add(entry);
+    } else {
+      admit(entry);
+    }
+  }
+
+  // Runs the task alone, once everything submitted before it has finished.
+  synchronized void executeBarrier(Runnable task) {
+    held.add(new Entry(Collections.<String>emptySet(), false, task, true));
+    startBarrier();
+  }
+
+  // Called with the lock held.
+  private void admit(Entry entry) {
+    outstanding++;
+    if (entry.keys.isEmpty()) {
+      start(entry);
+      return;
+    }
+    for (String key : entry.keys) {
+      queues.computeIfAbsent(key, k -> new KeyQueue()).waiting.add(entry);
+    }
+    for (String key : entry.keys) {
+      dispatch(key, queues.get(key));
+    }
+  }
+
+  // Starts the barrier first in line once everything before it has finished. Called with the
+  // lock held.
+  private void startBarrier() {
+    if (barrierRunning || outstanding > 0 || held.isEmpty()) {
+      return;
+    }
+    barrierRunning = true;
+    start(held.poll());
+  }
+
+  // Lets the tasks at the head of the key's queue that may run now have the key, and starts those
+  // that then have all of theirs. Called with the lock held.
+  private void dispatch(String key, KeyQueue queue) {
+    while (!queue.waiting.isEmpty()) {
+      Entry head = queue.waiting.peek();
+      if (queue.writing || (!head.read && queue.reading > 0)) {
+        break;
+      }
+      queue.waiting.poll();
+      if (head.read) {
+        queue.reading++;
+      } else {
+        queue.writing = true;
+      }
+      if (--head.missing == 0) {
+        start(head);
+      }
+    }
+    if (queue.waiting.isEmpty() && queue.reading == 0 && !queue.writing) {
+      queues.remove(key);
+    }
+  }
+
+  private void start(Entry entry) {
+    executor.execute(() -> {
+      try {
+        entry.task.run();
+      } finally {
+        finished(entry);
+      }
+    });
+  }
+
+  private synchronized void finished(Entry entry) {
+    if (entry.barrier) {
+      barrierRunning = false;
+      while (!held.isEmpty() && !held.peek().barrier) {
+        admit(held.poll());
+      }
+      startBarrier();
+      return;
+    }
+    outstanding--;
+    for (String key : entry.keys) {
+      KeyQueue queue = queues.get(key);
+      if (entry.read) {
+        queue.reading--;
+      } else {
+        queue.writing = false;
+      }
+      dispatch(key, queue);
+    }
+    startBarrier();
+  }
+
+  private static class KeyQueue {
+    private final ArrayDeque<Entry> waiting = new ArrayDeque<>();
+    private int reading;
+    private boolean writing;
+  }
+
+  private static class Entry {
+    private final Set<String> keys;
+    private final boolean read;
+    private final Runnable task;
+    private final boolean barrier;
+    // Keys the task does not have yet. Guarded by the executor's lock.
+    private int missing;
+
+    Entry(Set<String> keys, boolean read, Runnable task, boolean barrier) {
+      this.keys = keys;
+      this.read = read;
+      this.task = task;
+      this.barrier = barrier;
+      this.missing = keys.size();
+    }
+  }
+}
@@ -1,101 +1,524 @@
 package server;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 // This class implements the KeyValueStoreInterface, providing the actual logic for the key-value
 // store operations.
 public class KeyValueStoreImpl extends UnicastRemoteObject implements KeyValueStoreInterface {
-  // A thread-safe map to store key-value pairs.
-  private ConcurrentHashMap<String, String> store;
-  private ConcurrentHashMap<String, String> prepareStore;
-  private String pendingOperation;
-  private String pendingKey;
-  private String pendingValue;
+  // Thread-safe storage of the key-value pairs, selected with kvstore.storage.engine.
+  private final StorageEngine store;
+  // Transactions that have been prepared but not yet committed or aborted, by transaction ID. Each
+  // leaves the table only on commit or abort: after voting yes the replica must not drop it on its
+  // own, since the coordinator may have decided to commit. One whose commit or abort was lost is
+  // finished by its coordinator's in-doubt resolver. stagedBytes is the size of what they hold.
+  private final ConcurrentMap<String, PreparedTransaction> transactions;
+  private final AtomicLong stagedBytes = new AtomicLong();
+  // Recent aborts, so a prepare that arrives after its abort is rejected.
+  private final AbortedTransactions aborted = new AbortedTransactions(ServerConfig.STAGING_ABORTED_IDS);
+  // Key-level locks of the prepared transactions.
+  private final KeyLocks keyLocks;
+  // Serializes logging and applying writes to the same key so the log order matches the order in
+  // which the writes were applied to the store.
+  private final StripedLocks writeLocks;
+  // Write-ahead log, or null for a purely in-memory replica.
+  private final WriteAheadLog log;
+  private final Path dataDirectory;
+  // Writers hold the read lock while appending a record and applying it; a checkpoint takes the
+  // write lock only for the instant it rolls the log and copies the prepared transactions.
+  private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+  private final Object checkpointMonitor = new Object();
+  // The periodic checkpoint, cancelled on close.
+  private ScheduledFuture<?> checkpointTask;
 
+  // Runs the periodic checkpoints of every replica in the process.
+  private static final ScheduledExecutorService checkpointScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "replica-checkpoint");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Creates an in-memory replica without a write-ahead log.
   public KeyValueStoreImpl() throws RemoteException {
-    store = new ConcurrentHashMap<>();
-    prepareStore = new ConcurrentHashMap<>();
+    store = new HeapStorageEngine();
+    transactions = new ConcurrentHashMap<>();
+    keyLocks = new KeyLocks();
+    writeLocks = new StripedLocks(ServerConfig.LOCK_STRIPES);
+    log = null;
+    dataDirectory = null;
+  }
+
+  // Creates a replica that persists its writes under <data dir>/<name> and rebuilds the store and
+  // the prepared transactions from the latest snapshot plus the log written after it.
+  public KeyValueStoreImpl(String name) throws IOException {
+    store = StorageEngine.create(ServerConfig.STORAGE_ENGINE, Paths.get(ServerConfig.DATA_DIR, name, "storage"));
+    transactions = new ConcurrentHashMap<>();
+    keyLocks = new KeyLocks();
+    writeLocks = new StripedLocks(ServerConfig.LOCK_STRIPES);
+    if (ServerConfig.WAL_ENABLED) {
+      dataDirectory = Paths.get(ServerConfig.DATA_DIR, name);
+      log = new WriteAheadLog(dataDirectory, ServerConfig.WAL_FSYNC);
+      Recovery recovery = new Recovery();
+      long segment = Snapshot.loadLatest(dataDirectory, store,
+              transaction -> recovery.onPrepare(transaction.getTransactionId(), transaction.getOperations()));
+      int snapshotKeys = store.size();
+      int records = log.replay(segment, recovery);
+      System.out.println(name + " recovered " + store.size() + " keys and " + transactions.size()
+              + " prepared transactions from a snapshot of " + snapshotKeys + " keys and " + records + " log records");
+      if (ServerConfig.CHECKPOINT_LOG_BYTES > 0) {
+        checkpointTask = checkpointScheduler.scheduleWithFixedDelay(this::checkpointIfNeeded,
+                ServerConfig.CHECKPOINT_CHECK_SECONDS, ServerConfig.CHECKPOINT_CHECK_SECONDS, TimeUnit.SECONDS);
+      }
+    } else {
+      log = null;
+      dataDirectory = null;
+    }
   }
 
   @Override
   public String put(String key, String value) throws RemoteException {
-    // Synchronize the block to ensure thread safety for the put operation.
-    synchronized (this) {
+    // Only writers of keys on the same stripe contend; writes to unrelated keys run in parallel.
+    long position;
+    ReentrantLock lock = writeLocks.lockFor(key);
+    checkpointLock.readLock().lock();
+    lock.lock();
+    try {
+      position = log != null ? log.appendPut(key, value) : 0;
       store.put(key, value);
-      System.out.println("PUT request at " + System.currentTimeMillis() + " for key: " + key);
-      return "PUT OK";
+    } catch (IOException e) {
+      throw new RemoteException("Unable to write to the write-ahead log", e);
+    } finally {
+      lock.unlock();
+      checkpointLock.readLock().unlock();
     }
+    syncLog(position);
+    trace("PUT request at " + System.currentTimeMillis() + " for key: " + key);
+    return "PUT OK";
   }
 
   @Override
   public String get(String key) throws RemoteException {
     // Not synchronized  because there can be multiple get operations occurring simultaneously.
     String value = store.get(key);
-    System.out.println("GET request at " + System.currentTimeMillis() + " for key: " + key);
+    trace("GET request at " + System.currentTimeMillis() + " for key: " + key);
     return value != null ? "GET OK: " + value : "GET ERROR: Key not found";
   }
 
   @Override
   public String delete(String key) throws RemoteException {
-    synchronized (this) {
-      String response;
-      if (store.remove(key) != null) {
+    String response;
+    long position = 0;
+    ReentrantLock lock = writeLocks.lockFor(key);
+    checkpointLock.readLock().lock();
+    lock.lock();
+    try {
+      if (store.containsKey(key)) {
+        position = log != null ? log.appendDelete(key) : 0;
+        store.remove(key);
         response = "DELETE OK";
       } else {
         response = "DELETE ERROR: Key not found";
       }
-      System.out.println("DELETE request at " + System.currentTimeMillis() + " for key: " + key);
-      return response;
+    } catch (IOException e) {
+      throw new RemoteException("Unable to write to the write-ahead log", e);
+    } finally {
+      lock.unlock();
+      checkpointLock.readLock().unlock();
     }
+    syncLog(position);
+    trace("DELETE request at " + System.currentTimeMillis() + " for key: " + key);
+    return response;
+  }
+
+  @Override
+  public boolean prepare(String transactionId, String operation, String key, String value) throws RemoteException {
+    trace("PREPARE request at " + System.currentTimeMillis() + " for transaction: " + transactionId + ", operation: " + operation + ", key: " + key + ", value: " + value);
+    return stage(transactionId, Collections.singletonList(new Operation(operation, key, value)), true);
   }
 
   @Override
-  public boolean prepare(String operation, String key, String value) throws RemoteException {
-    System.out.println("PREPARE request at " + System.currentTimeMillis() + " for operation: " + operation + ", key: " + key + ", value: " + value);
-    synchronized (this) {
-      if (operation.equals("PUT")) {
-        prepareStore.put(key, value);
-      } else if (operation.equals("DELETE")) {
-        prepareStore.remove(key);
+  public boolean prepareBatch(String transactionId, List<Operation> operations) throws RemoteException {
+    trace("PREPARE BATCH request at " + System.currentTimeMillis() + " for transaction: " + transactionId + " with " + operations.size() + " operations");
+    return stage(transactionId, new ArrayList<>(operations), true);
+  }
+
+  // Nothing is staged or logged: the keys are locked only while they are read, which is enough for
+  // the reads to see no transaction half applied, and the coordinator sends no outcome.
+  @Override
+  public List<String> prepareReadOnly(String transactionId, List<Operation> operations) throws RemoteException {
+    trace("PREPARE READ ONLY request at " + System.currentTimeMillis() + " for transaction: " + transactionId + " with " + operations.size() + " operations");
+    PreparedTransaction transaction = new PreparedTransaction(transactionId, new ArrayList<>(operations));
+    String owner = keyLocks.lockAll(transaction);
+    if (owner != null) {
+      trace("PREPARE READ ONLY rejected for transaction: " + transactionId + ", a key is locked by transaction: " + owner);
+      return null;
+    }
+    try {
+      List<String> responses = new ArrayList<>(operations.size());
+      for (Operation operation : operations) {
+        responses.add(get(operation.getKey()));
       }
-      pendingOperation = operation;
-      pendingKey = key;
-      pendingValue = value;
-      return true; // In real word scenario, this is dependent on the readiness of the store.
+      return responses;
+    } finally {
+      releaseLocks(transaction);
     }
   }
 
+  // The prepare record is not synced on its own: the commit record follows it in the log, so the
+  // sync of the commit makes both durable with one fsync. A crash in between leaves a prepared
+  // transaction nobody was told about, which the coordinator presumes aborted.
   @Override
-  public void commit(String operation, String key, String value) throws RemoteException {
-    System.out.println("COMMIT request at " + System.currentTimeMillis() + " for operation: " + operation + ", key: " + key + ", value: " + value);
-    synchronized (this) {
-      if (operation.equals("PUT")) {
-        store.put(key, value);
-      } else if (operation.equals("DELETE")) {
-        store.remove(key);
+  public boolean commitOnePhase(String transactionId, List<Operation> operations) throws RemoteException {
+    trace("COMMIT ONE PHASE request at " + System.currentTimeMillis() + " for transaction: " + transactionId + " with " + operations.size() + " operations");
+    if (!stage(transactionId, new ArrayList<>(operations), false)) {
+      return false;
+    }
+    commit(transactionId);
+    return true;
+  }
+
+  @Override
+  public void commit(String transactionId) throws RemoteException {
+    trace("COMMIT request at " + System.currentTimeMillis() + " for transaction: " + transactionId);
+    syncLog(commitPrepared(transactionId));
+  }
+
+  // Applies a prepared transaction and returns the log position to sync to, 0 if there is nothing
+  // to sync.
+  private long commitPrepared(String transactionId) throws RemoteException {
+    // The checkpoint lock is taken before the transaction leaves the table, so a checkpoint
+    // either sees it as prepared or finds its commit record in the new log segment.
+    long position;
+    PreparedTransaction transaction;
+    checkpointLock.readLock().lock();
+    try {
+      transaction = unstage(transactionId);
+      if (transaction == null) {
+        // Unknown or already committed transaction, e.g. a retransmitted commit.
+        return 0;
+      }
+      // The key locks are still held here, so no other transaction can touch these keys until the
+      // operations have been applied.
+      int[] stripes = writeLocks.lockAll(transaction.getKeys());
+      try {
+        position = log != null && !transaction.isReadOnly() ? log.appendCommit(transactionId) : 0;
+        apply(transaction);
+      } catch (IOException e) {
+        restage(transaction);
+        throw new RemoteException("Unable to write to the write-ahead log", e);
+      } finally {
+        writeLocks.unlockAll(stripes);
       }
-      pendingOperation = null;
-      pendingKey = null;
-      pendingValue = null;
+    } finally {
+      checkpointLock.readLock().unlock();
+    }
+    releaseLocks(transaction);
+    return position;
+  }
+
+  @Override
+  public void abort(String transactionId) throws RemoteException {
+    trace("ABORT request at " + System.currentTimeMillis() + " for transaction: " + transactionId);
+    rememberAbort(transactionId);
+    syncLog(Math.max(abortPrepared(transactionId), 0));
+  }
 
+  // Remembered before the table is checked: a prepare staging concurrently either is found by the
+  // abort or finds the ID when it checks after staging.
+  private void rememberAbort(String transactionId) {
+    aborted.add(transactionId);
+  }
+
+  // Releases a prepared transaction and returns the log position of its abort record, which the
+  // caller syncs: a replica that restarted with the prepare but not the abort in its log would hold
+  // the keys locked again. Returns -1 if the transaction is not prepared here.
+  private long abortPrepared(String transactionId) throws RemoteException {
+    checkpointLock.readLock().lock();
+    try {
+      PreparedTransaction transaction = unstage(transactionId);
+      if (transaction == null) {
+        return -1;
+      }
+      long position = 0;
+      if (log != null && !transaction.isReadOnly()) {
+        try {
+          position = log.appendAbort(transactionId);
+        } catch (IOException e) {
+          restage(transaction);
+          throw new RemoteException("Unable to write to the write-ahead log", e);
+        }
+      }
+      releaseLocks(transaction);
+      return position;
+    } finally {
+      checkpointLock.readLock().unlock();
     }
   }
 
   @Override
-  public void abort(String operation, String key, String value) throws RemoteException {
-    System.out.println("ABORT request at " + System.currentTimeMillis() + " for operation: " + operation + ", key: " + key + ", value: " + value);
-    synchronized (this) {
-      if (operation.equals("PUT")) {
-        prepareStore.remove(key);
-      } else if (operation.equals("DELETE")) {
-        prepareStore.remove(key);
-      }
-      pendingOperation = null;
-      pendingKey = null;
-      pendingValue = null;
+  public List<String> inDoubt(long olderThanMillis) throws RemoteException {
+    long preparedBefore = System.currentTimeMillis() - olderThanMillis;
+    List<String> transactionIds = new ArrayList<>();
+    for (PreparedTransaction transaction : transactions.values()) {
+      if (transaction.getPreparedAtMillis() <= preparedBefore) {
+        transactionIds.add(transaction.getTransactionId());
+      }
+    }
+    return transactionIds;
+  }
+
+  // The commits and aborts are synced together, with one fsync for all of them.
+  @Override
+  public void resolve(List<String> committed, List<String> aborted) throws RemoteException {
+    trace("RESOLVE request at " + System.currentTimeMillis() + " committing " + committed.size() + " and aborting " + aborted.size() + " transactions");
+    long position = 0;
+    for (String transactionId : committed) {
+      position = Math.max(position, commitPrepared(transactionId));
+    }
+    for (String transactionId : aborted) {
+      rememberAbort(transactionId);
+      position = Math.max(position, abortPrepared(transactionId));
+    }
+    syncLog(position);
+  }
+
+  // Writes a snapshot of the store and the prepared transactions, then deletes the log segments
+  // and snapshots it supersedes. Writers are only paused while the log is rolled to a new segment;
+  // the key/value pairs are copied while they keep running.
+  public void checkpoint() throws IOException {
+    if (log == null) {
+      return;
+    }
+    synchronized (checkpointMonitor) {
+      long started = System.currentTimeMillis();
+      long segment;
+      List<PreparedTransaction> prepared;
+      checkpointLock.writeLock().lock();
+      try {
+        segment = log.roll();
+        prepared = new ArrayList<>();
+        for (PreparedTransaction transaction : transactions.values()) {
+          if (!transaction.isReadOnly()) {
+            prepared.add(transaction);
+          }
+        }
+      } finally {
+        checkpointLock.writeLock().unlock();
+      }
+      Snapshot.write(dataDirectory, segment, prepared, store.entries());
+      log.deleteSegmentsBefore(segment);
+      Snapshot.deleteBefore(dataDirectory, segment);
+      System.out.println("Checkpoint of " + dataDirectory + " at segment " + segment + " took "
+              + (System.currentTimeMillis() - started) + " ms");
+    }
+  }
+
+  // Stops accepting RMI calls and closes the write-ahead log.
+  public void close() throws IOException {
+    unexportObject(this, true);
+    if (checkpointTask != null) {
+      checkpointTask.cancel(false);
+    }
+    if (Metrics.ENABLED) {
+      Metrics.STAGED_TRANSACTIONS.addAndGet(-transactions.size());
+      Metrics.STAGED_BYTES.addAndGet(-stagedBytes.get());
+    }
+    if (log != null) {
+      synchronized (checkpointMonitor) {
+        log.close();
+      }
+    }
+    store.close();
+  }
+
+  private void checkpointIfNeeded() {
+    try {
+      if (log.getSegmentSize() >= ServerConfig.CHECKPOINT_LOG_BYTES) {
+        checkpoint();
+      }
+    } catch (Exception e) {
+      System.err.println("Checkpoint of " + dataDirectory + " failed: " + e);
+      ServerLogger.logRMIServerError("Checkpoint of " + dataDirectory + " failed", e);
+    }
+  }
+
+  // Number of transactions currently prepared on this replica.
+  public int getPreparedTransactionCount() {
+    return transactions.size();
+  }
+
+  // Approximate memory held by the operations of the prepared transactions.
+  public long getStagedBytes() {
+    return stagedBytes.get();
+  }
+
+  // Locks every key of the transaction and records it as prepared. Votes no without waiting if
+  // one of the keys is locked by another in-flight transaction. The prepare record is on disk
+  // before the replica votes yes, unless sync is false. A transaction that only reads is not
+  // logged at all: after a crash there is nothing of it to commit, and its locks are gone with it.
+  private boolean stage(String transactionId, List<Operation> operations, boolean sync) throws RemoteException {
+    if (transactions.containsKey(transactionId)) {
+      return true; // Retransmitted prepare.
+    }
+    if (aborted.contains(transactionId)) {
+      return latePrepare(transactionId);
+    }
+    if (ServerConfig.STAGING_MAX_TRANSACTIONS > 0 && transactions.size() >= ServerConfig.STAGING_MAX_TRANSACTIONS) {
+      trace("PREPARE rejected for transaction: " + transactionId + ", " + transactions.size() + " transactions are already prepared");
+      if (Metrics.ENABLED) {
+        Metrics.STAGING_FULL.increment();
+      }
+      return false;
+    }
+    PreparedTransaction transaction = new PreparedTransaction(transactionId, operations);
+    String owner = keyLocks.lockAll(transaction);
+    if (owner != null) {
+      trace("PREPARE rejected for transaction: " + transactionId + ", a key is locked by transaction: " + owner);
+      return false;
+    }
+    long position = 0;
+    checkpointLock.readLock().lock();
+    try {
+      if (log != null && !transaction.isReadOnly()) {
+        position = log.appendPrepare(transactionId, operations);
+      }
+      restage(transaction);
+    } catch (IOException e) {
+      System.err.println("Unable to log prepare of transaction " + transactionId + ": " + e);
+      releaseLocks(transaction);
+      return false;
+    } finally {
+      checkpointLock.readLock().unlock();
+    }
+    if (aborted.contains(transactionId)) {
+      syncLog(Math.max(abortPrepared(transactionId), 0));
+      return latePrepare(transactionId);
+    }
+    try {
+      if (log != null && sync && position != 0) {
+        log.sync(position);
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to sync prepare of transaction " + transactionId + ": " + e);
+      return false;
+    }
+    return true; // In real word scenario, this is also dependent on the readiness of the store.
+  }
+
+  private static boolean latePrepare(String transactionId) {
+    trace("PREPARE rejected for transaction: " + transactionId + ", it has already been aborted");
+    if (Metrics.ENABLED) {
+      Metrics.LATE_PREPARES.increment();
+    }
+    return false;
+  }
+
+  // Every transaction enters and leaves the table through these two, which keep the gauges.
+  private void restage(PreparedTransaction transaction) {
+    if (transactions.put(transaction.getTransactionId(), transaction) == null) {
+      stagedBytes.addAndGet(transaction.getStagedBytes());
+      if (Metrics.ENABLED) {
+        Metrics.STAGED_TRANSACTIONS.incrementAndGet();
+        Metrics.STAGED_BYTES.addAndGet(transaction.getStagedBytes());
+      }
+    }
+  }
+
+  private PreparedTransaction unstage(String transactionId) {
+    PreparedTransaction transaction = transactions.remove(transactionId);
+    if (transaction != null) {
+      stagedBytes.addAndGet(-transaction.getStagedBytes());
+      if (Metrics.ENABLED) {
+        Metrics.STAGED_TRANSACTIONS.decrementAndGet();
+        Metrics.STAGED_BYTES.addAndGet(-transaction.getStagedBytes());
+      }
+    }
+    return transaction;
+  }
+
+  private void apply(PreparedTransaction transaction) {
+    for (Operation op : transaction.getOperations()) {
+      if (op.getOperation().equals("PUT")) {
+        store.put(op.getKey(), op.getValue());
+      } else if (op.getOperation().equals("DELETE")) {
+        store.remove(op.getKey());
+      }
+    }
+  }
+
+  // Waits for the log to be durable up to position, using group commit with concurrent writers.
+  private void syncLog(long position) throws RemoteException {
+    if (log == null) {
+      return;
+    }
+    try {
+      log.sync(position);
+    } catch (IOException e) {
+      throw new RemoteException("Unable to sync the write-ahead log", e);
+    }
+  }
+
+  // Prints per-request tracing unless disabled with -Dkvstore.verbose=false. System.out is
+  // synchronized, so tracing every request serializes all replica threads on one lock.
+  private static void trace(String message) {
+    if (ServerConfig.VERBOSE) {
+      System.out.println(message);
+    }
+  }
+
+  private void releaseLocks(PreparedTransaction transaction) {
+    keyLocks.unlockAll(transaction);
+  }
+
+  // Rebuilds the in-memory state from the write-ahead log on startup.
+  private class Recovery implements WriteAheadLog.RecordHandler {
+    @Override
+    public void onPut(String key, String value) {
+      store.put(key, value);
+    }
+
+    @Override
+    public void onDelete(String key) {
+      store.remove(key);
+    }
+
+    @Override
+    public void onPrepare(String transactionId, List<Operation> operations) {
+      PreparedTransaction transaction = new PreparedTransaction(transactionId, operations);
+      restage(transaction);
+      keyLocks.lockAll(transaction);
+    }
+
+    @Override
+    public void onCommit(String transactionId) {
+      PreparedTransaction transaction = unstage(transactionId);
+      if (transaction != null) {
+        apply(transaction);
+        releaseLocks(transaction);
+      }
+    }
+
+    @Override
+    public void onAbort(String transactionId) {
+      PreparedTransaction transaction = unstage(transactionId);
+      if (transaction != null) {
+        releaseLocks(transaction);
+      }
     }
   }
 }
@@ -2,6 +2,9 @@ package server;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 // This interface defines the remote methods that the Key-Value Store Server provides. Throws
 // exception if a remote communication error occurs.
@@ -9,8 +12,58 @@ public interface KeyValueStoreInterface extends Remote {
   String put(String key, String value) throws RemoteException;
   String get(String key) throws RemoteException;
   String delete(String key) throws RemoteException;
-  boolean prepare(String operation, String key, String value) throws RemoteException;
-  void commit(String operation, String key, String value) throws RemoteException;
-  void abort(String operation, String key, String value) throws RemoteException;
-
+  // Two-phase commit participant methods. Every transaction is identified by a coordinator
+  // generated ID so several transactions can be in flight on a replica at the same time. prepare
+  // returns false when the transaction conflicts with another in-flight transaction.
+  boolean prepare(String transactionId, String operation, String key, String value) throws RemoteException;
+  // Prepares several operations as one transaction. Operations are applied in list order.
+  boolean prepareBatch(String transactionId, List<Operation> operations) throws RemoteException;
+  void commit(String transactionId) throws RemoteException;
+  void abort(String transactionId) throws RemoteException;
+  // One-phase commit, used when this replica is the only participant: prepares and commits the
+  // operations in one call and returns false, having changed nothing, on a conflict.
+  default boolean commitOnePhase(String transactionId, List<Operation> operations) throws RemoteException {
+    if (!prepareBatch(transactionId, operations)) {
+      return false;
+    }
+    commit(transactionId);
+    return true;
+  }
+  // Read-only participant of a transaction: locks the keys of the GET operations, reads them and
+  // releases them again before answering, so the transaction needs no commit or abort here. Returns
+  // the response of each GET, or null without reading if a key is locked by another transaction.
+  default List<String> prepareReadOnly(String transactionId, List<Operation> operations) throws RemoteException {
+    if (!prepareBatch(transactionId, operations)) {
+      return null;
+    }
+    try {
+      List<String> responses = new ArrayList<>(operations.size());
+      for (Operation operation : operations) {
+        responses.add(get(operation.getKey()));
+      }
+      return responses;
+    } finally {
+      abort(transactionId);
+    }
+  }
+  // In-doubt transactions: the IDs of the transactions this replica has held prepared for at least
+  // olderThanMillis, for the coordinator to resolve with one resolve() call.
+  default List<String> inDoubt(long olderThanMillis) throws RemoteException {
+    return Collections.emptyList();
+  }
+  // Commits and aborts in-doubt transactions; IDs the replica no longer holds are ignored.
+  default void resolve(List<String> committed, List<String> aborted) throws RemoteException {
+    for (String transactionId : committed) {
+      commit(transactionId);
+    }
+    for (String transactionId : aborted) {
+      abort(transactionId);
+    }
+  }
+  // Runs PUT, DELETE and GET operations as one atomic transaction and returns the response of each,
+  // or null if it was aborted and none of its writes were applied. Only the primary server runs
+  // transactions; replicas take part in them through prepareBatch.
+  default List<String> transact(List<Operation> operations) throws RemoteException {
+    throw new UnsupportedOperationException("Transactions are run by the primary server");
+  }
 }
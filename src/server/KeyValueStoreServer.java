@@ -1,5 +1,6 @@
 package server;
 
+import java.io.IOException;
 import java.rmi.Naming;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -11,21 +12,41 @@ public class  KeyValueStoreServer {
   public static void main(String[] args) {
 
     try {
-      // Initialize the list of replicas
+      // Initialize the list of replicas, kvstore.shard.replicas for each of kvstore.shards shards
       List<KeyValueStoreInterface> replicas = new ArrayList<>();
-      for (int i = 0; i < 5; i++) {
-        KeyValueStoreImpl replica = new KeyValueStoreImpl();
-        replicas.add(replica);
+      for (int i = 0; i < ServerConfig.SHARDS * ServerConfig.SHARD_REPLICAS; i++) {
         String replicaName = "KeyValueStore" + (i + 1);
-        int port = 1099 + i; // Assign each replica a unique port
+        KeyValueStoreImpl replica = new KeyValueStoreImpl(replicaName);
+        replicas.add(replica);
+        int port = ReplicaKeyValueStoreServer.port(i); // Assign each replica a unique port
         Registry registry = LocateRegistry.createRegistry(port);
         Naming.rebind("//localhost:" + port + "/" + replicaName, replica);
         System.out.println(replicaName + " is running on port " + port);
+        if (ServerConfig.NIO_REPLICA_PORT_OFFSET > 0) {
+          int nioPort = port + ServerConfig.NIO_REPLICA_PORT_OFFSET;
+          new NioReplicaServer(replica, nioPort);
+          System.out.println(replicaName + " accepts nio://localhost:" + nioPort);
+        }
+      }
+
+      if (ServerConfig.DECISION_LOG) {
+        try {
+          CoordinatorLog.openShared("rmi-primary");
+        } catch (IOException e) {
+          System.err.println("Unable to open the coordinator log, in-doubt transactions will not be resolved: " + e);
+          ServerLogger.logRMIServerError("Unable to open the coordinator log", e);
+        }
+      }
+      // Without a log nothing resolves the transactions a crash or a lost message leaves prepared on
+      // the replicas, so they must cap them.
+      if (CoordinatorLog.current() == null && ServerConfig.STAGING_MAX_TRANSACTIONS == 0) {
+        System.err.println("No coordinator log to resolve in-doubt transactions with; set kvstore.staging.maxTransactions to run without one");
+        ServerLogger.logRMIServerError("No coordinator log and no kvstore.staging.maxTransactions", null);
+        System.exit(1);
       }
 
-      // Create the primary server which will use TwoPhaseCommitImpl
-      TwoPhaseCommitImpl twoPhaseCommit = new TwoPhaseCommitImpl(replicas);
-      KeyValueStoreWith2PC primaryServer = new KeyValueStoreWith2PC(twoPhaseCommit);
+      // Create the primary server which will use a TwoPhaseCommitImpl per shard
+      KeyValueStoreWith2PC primaryServer = new KeyValueStoreWith2PC(ShardRouter.of(replicas, ServerConfig.SHARDS));
       int primaryPort = 1104; // Use a different port for the primary server
       Registry primaryRegistry = LocateRegistry.createRegistry(primaryPort);
       Naming.rebind("//localhost:" + primaryPort + "/KeyValueStore", primaryServer);
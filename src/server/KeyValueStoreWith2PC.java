@@ -2,44 +2,62 @@ package server;
 
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
 
 public class KeyValueStoreWith2PC extends UnicastRemoteObject implements KeyValueStoreInterface {
-  private TwoPhaseCommitImpl twoPhaseCommit;
+  private final ShardRouter shards;
 
   public KeyValueStoreWith2PC(TwoPhaseCommitImpl twoPhaseCommit) throws RemoteException {
-    this.twoPhaseCommit = twoPhaseCommit;
+    this(ShardRouter.single(twoPhaseCommit, twoPhaseCommit.getReplicas()));
+  }
+
+  // Sends each request to the replica group of its key.
+  public KeyValueStoreWith2PC(ShardRouter shards) throws RemoteException {
+    this.shards = shards;
   }
 
   @Override
   public String put(String key, String value) throws RemoteException {
-    boolean success = twoPhaseCommit.performTwoPhaseCommit("PUT", key, value);
+    boolean success = shards.shardFor(key).submit("PUT", key, value);
     return success ? "PUT OK" : "PUT ERROR";
   }
 
   @Override
   public String delete(String key) throws RemoteException {
-    boolean success = twoPhaseCommit.performTwoPhaseCommit("DELETE", key, null);
+    boolean success = shards.shardFor(key).submit("DELETE", key, null);
     return success ? "DELETE OK" : "DELETE ERROR";
   }
 
   @Override
   public String get(String key) throws RemoteException {
-    // Any replica can handle GET requests, so we can delegate to one of the replicas.
-    return twoPhaseCommit.getReplicas().get(0).get(key);
+    // Any replica of the key's shard can handle GET requests; the router spreads them over all of
+    // them, and hot keys come from the coordinator's read cache when it is enabled.
+    return shards.shardFor(key).get(key);
+  }
+
+  @Override
+  public List<String> transact(List<Operation> operations) throws RemoteException {
+    // One 2PC round over the shards the transaction writes to.
+    return shards.transact(operations);
+  }
+
+  @Override
+  public boolean prepare(String transactionId, String operation, String key, String value) throws RemoteException {
+    throw new UnsupportedOperationException("Prepare not supported on primary server");
   }
 
   @Override
-  public boolean prepare(String operation, String key, String value) throws RemoteException {
+  public boolean prepareBatch(String transactionId, List<Operation> operations) throws RemoteException {
     throw new UnsupportedOperationException("Prepare not supported on primary server");
   }
 
   @Override
-  public void commit(String operation, String key, String value) throws RemoteException {
+  public void commit(String transactionId) throws RemoteException {
     throw new UnsupportedOperationException("Commit not supported on primary server");
   }
 
   @Override
-  public void abort(String operation, String key, String value) throws RemoteException {
+  public void abort(String transactionId) throws RemoteException {
     throw new UnsupportedOperationException("Abort not supported on primary server");
   }
 }
@@ -0,0 +1,192 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+// A connection carrying TCPServer's newline-terminated text protocol. Bytes are read into the event
+// loop's shared direct buffer and only an incomplete trailing line is copied out, so an idle
+// connection holds no buffer at all. A complete line is copied once into a heap buffer that the
+// request is parsed from; it never becomes a String.
+//
+// A line tagged with a request ID ("#<id> GET key") is answered with the same tag
+// ("#<id> GET OK: value") as soon as it completes, so a client can pipeline many requests on one
+// connection: tagged requests for different keys run in parallel, reads of a key run alongside
+// each other, and writes of a key run after everything sent before them on that key. A MULTI is
+// ordered like a write of every key it names. A plain line is a barrier in the same executor: it
+// runs alone, after every request sent before it and before any sent after it, so plain lines are
+// answered in request order and a connection may mix them with tagged ones.
+class LineConnection extends NioConnection {
+  // Requests a client may send ahead of its responses before the connection stops being read.
+  private static final int MAX_QUEUED_LINES = 1024;
+
+  private final KeyOrderedExecutor pipeline;
+  private final Listener listener;
+  // Requests read and not answered yet. Guarded by this.
+  private int outstanding;
+  // Start of a line whose end has not arrived yet. Loop thread only.
+  private ByteBuffer partial;
+
+  LineConnection(NioEventLoop loop, SocketChannel channel, Executor workers, Listener listener) throws IOException {
+    super(loop, channel);
+    this.pipeline = new KeyOrderedExecutor(workers);
+    this.listener = listener;
+  }
+
+  @Override
+  protected void read() throws IOException {
+    ByteBuffer buffer = loop.readBuffer();
+    if (channel.read(buffer) < 0) {
+      close(new EOFException("Connection closed by " + getRemoteAddress()));
+      return;
+    }
+    buffer.flip();
+    int start = 0;
+    int limit = buffer.limit();
+    for (int i = 0; i < limit; i++) {
+      if (buffer.get(i) == '\n') {
+        line(buffer, start, i);
+        start = i + 1;
+      }
+    }
+    if (start < limit) {
+      keep(buffer, start, limit);
+    }
+  }
+
+  @Override
+  protected void closed(IOException cause) {
+    listener.onClose(this, cause);
+  }
+
+  private void line(ByteBuffer buffer, int start, int end) throws IOException {
+    ByteBuffer line;
+    if (partial != null) {
+      keep(buffer, start, end);
+      line = partial;
+      line.flip();
+      partial = null;
+    } else {
+      line = ByteBuffer.allocate(end - start);
+      ByteBuffer source = buffer.duplicate();
+      source.limit(end);
+      source.position(start);
+      line.put(source);
+      line.flip();
+    }
+    if (line.hasRemaining() && line.get(line.limit() - 1) == '\r') {
+      line.limit(line.limit() - 1);
+    }
+    submit(line);
+  }
+
+  // Copies bytes of an unfinished line out of the shared read buffer.
+  private void keep(ByteBuffer buffer, int start, int end) throws IOException {
+    int kept = partial == null ? 0 : partial.position();
+    int needed = kept + end - start;
+    if (needed > ServerConfig.TCP_MAX_LINE_BYTES) {
+      throw new IOException("Line of more than " + ServerConfig.TCP_MAX_LINE_BYTES + " bytes from " + getRemoteAddress());
+    }
+    if (partial == null || partial.capacity() < needed) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(256, Integer.highestOneBit(needed) << 1));
+      if (partial != null) {
+        partial.flip();
+        larger.put(partial);
+      }
+      partial = larger;
+    }
+    ByteBuffer source = buffer.duplicate();
+    source.limit(end);
+    source.position(start);
+    partial.put(source);
+  }
+
+  private void submit(ByteBuffer line) {
+    if (line.hasRemaining() && line.get(line.position()) == '#') {
+      // The tag runs up to the first space and the request follows it.
+      int space = line.position();
+      while (space < line.limit() && line.get(space) != ' ') {
+        space++;
+      }
+      ByteBuffer tag = line.duplicate();
+      tag.limit(space);
+      line.position(Math.min(space + 1, line.limit()));
+      submitTagged(tag, line);
+      return;
+    }
+    started();
+    pipeline.executeBarrier(() -> {
+      try {
+        // Lines still waiting when the connection closes are dropped.
+        if (isOpen()) {
+          send(response(null, handle(line)));
+        }
+      } finally {
+        answered();
+      }
+    });
+  }
+
+  private void submitTagged(ByteBuffer tag, ByteBuffer request) {
+    started();
+    pipeline.execute(RequestProcessor.keysOf(request), RequestProcessor.isRead(request), () -> {
+      try {
+        send(response(tag, handle(request)));
+      } finally {
+        answered();
+      }
+    });
+  }
+
+  private synchronized void started() {
+    outstanding++;
+    updateReading();
+  }
+
+  private synchronized void answered() {
+    outstanding--;
+    updateReading();
+  }
+
+  // Stops reading while too many requests wait for a response. Called with the lock held.
+  private void updateReading() {
+    if (outstanding >= MAX_QUEUED_LINES) {
+      pauseReading(true);
+    } else if (outstanding < MAX_QUEUED_LINES / 2) {
+      pauseReading(false);
+    }
+  }
+
+  // Encodes "[<tag> ]<response>\n" into a buffer of exactly that size.
+  private static ByteBuffer response(ByteBuffer tag, String response) {
+    int tagLength = tag == null ? 0 : tag.remaining() + 1;
+    ByteBuffer line = ByteBuffer.allocate(tagLength + RequestProcessor.encodedLength(response) + 1);
+    if (tag != null) {
+      line.put(tag.duplicate()).put((byte) ' ');
+    }
+    RequestProcessor.encode(response, line);
+    line.put((byte) '\n');
+    line.flip();
+    return line;
+  }
+
+  private String handle(ByteBuffer request) {
+    try {
+      return listener.onLine(this, request);
+    } catch (RuntimeException e) {
+      ServerLogger.logTCPError("Error occurred while handling TCP client request.", e);
+      return "ERROR " + e;
+    }
+  }
+
+  interface Listener {
+    // Handles one request, the bytes between the buffer's position and limit, and returns the
+    // response line. Called on a worker thread.
+    String onLine(LineConnection connection, ByteBuffer request);
+
+    // Called once when the connection closes for any reason.
+    void onClose(LineConnection connection, IOException cause);
+  }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Engine whose shards live in memory-mapped files under the replica's storage directory, so a
+// replica can hold more data than fits in RAM and the OS pages cold entries out.
+//
+// The files only back memory; durability still comes from the write-ahead log and snapshots, and
+// the files are recreated empty on startup.
+public class MappedStorageEngine extends ByteBufferStorageEngine {
+
+  public MappedStorageEngine(Path directory, int shardCount, int chunkSize) throws IOException {
+    super("mapped storage of " + directory, regions(directory), shardCount, chunkSize);
+  }
+
+  private static Regions regions(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "shard-*")) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    return name -> new FileRegion(directory.resolve(name));
+  }
+
+  private static class FileRegion implements Region {
+    private final Path path;
+    private final FileChannel channel;
+
+    FileRegion(Path path) throws IOException {
+      this.path = path;
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public ByteBuffer map(long offset, int size) throws IOException {
+      return channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+    }
+
+    @Override
+    public void release() throws IOException {
+      channel.close();
+      Files.deleteIfExists(path);
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Process-wide counters and latency histograms for the request path and the 2PC coordinator.
+// Recording is a LongAdder or Histogram update, and all of it is skipped when
+// kvstore.metrics.enabled is false. The values are read as one flat name -> value snapshot, which
+// the STATS command of the TCP and UDP servers prints on one line and JMX exposes as the
+// attributes of kvstore:type=Metrics. Latencies are in microseconds.
+public final class Metrics {
+  public static final boolean ENABLED = ServerConfig.METRICS_ENABLED;
+
+  // Wall time of each 2PC phase as seen by the coordinator, and of a whole transaction including
+  // conflict retries. Aborts are sent without waiting, so ABORT holds the time of each replica's
+  // abort call instead.
+  static final Histogram PREPARE = new Histogram();
+  static final Histogram COMMIT = new Histogram();
+  static final Histogram ABORT = new Histogram();
+  static final Histogram TRANSACTION = new Histogram();
+  // Operations carried by each 2PC round; above 1 when group commit combines writes.
+  static final Histogram BATCH_SIZE = new Histogram();
+
+  // Multi-key transactions: shards written by each, and the shards only read that were left out of
+  // the 2PC round, at most one per transaction.
+  static final Histogram TRANSACTION_SHARDS = new Histogram();
+  static final LongAdder READ_ONLY_SHARDS = new LongAdder();
+
+  static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+  static final LongAdder COMMITTED = new LongAdder();
+  static final LongAdder ABORTED = new LongAdder();
+  static final LongAdder CONFLICT_RETRIES = new LongAdder();
+  static final LongAdder PHASE_TIMEOUTS = new LongAdder();
+  // Transactions committed with one call to a single replica, and early-acknowledged transactions
+  // whose commit messages are still being delivered.
+  static final LongAdder ONE_PHASE = new LongAdder();
+  static final AtomicInteger ASYNC_COMMITS = new AtomicInteger();
+  // In-doubt transactions finished by the resolver, committed from the coordinator log or aborted.
+  static final LongAdder RESOLVED_COMMITS = new LongAdder();
+  static final LongAdder RESOLVED_ABORTS = new LongAdder();
+  // Quorum mode: replicas catching up from the replication log, and transactions replayed on them.
+  static final AtomicInteger LAGGING_REPLICAS = new AtomicInteger();
+  static final LongAdder CATCH_UP_REPLAYED = new LongAdder();
+  // Replicas of this process: transactions they hold prepared and the bytes staged for them,
+  // prepares rejected as arriving after their abort, and prepares rejected at
+  // kvstore.staging.maxTransactions.
+  static final AtomicInteger STAGED_TRANSACTIONS = new AtomicInteger();
+  static final AtomicLong STAGED_BYTES = new AtomicLong();
+  static final LongAdder LATE_PREPARES = new LongAdder();
+  static final LongAdder STAGING_FULL = new LongAdder();
+  static final LongAdder CACHE_HITS = new LongAdder();
+  static final LongAdder CACHE_MISSES = new LongAdder();
+  static final LongAdder CACHE_EVICTIONS = new LongAdder();
+  static final LongAdder CACHE_INVALIDATIONS = new LongAdder();
+
+  private static final String[] COMMAND_NAMES = {"invalid", "put", "get", "delete", "stats", "multi"};
+  private static final CommandStats[] COMMANDS = new CommandStats[COMMAND_NAMES.length];
+  private static final Map<String, ReplicaStats> REPLICAS = new ConcurrentSkipListMap<>();
+
+  static {
+    for (int i = 0; i < COMMANDS.length; i++) {
+      COMMANDS[i] = new CommandStats();
+    }
+    if (ENABLED) {
+      register();
+    }
+  }
+
+  private Metrics() {
+  }
+
+  // Stats of one replica as seen by the coordinators of this process, created on first use.
+  static ReplicaStats replica(String name) {
+    return REPLICAS.computeIfAbsent(name, n -> new ReplicaStats());
+  }
+
+  // Records a client request, by RequestParser command code.
+  static void recordCommand(int command, long startNanos, boolean error) {
+    CommandStats stats = COMMANDS[command];
+    stats.latency.record(System.nanoTime() - startNanos);
+    if (error) {
+      stats.errors.increment();
+    }
+  }
+
+  public static Map<String, Long> snapshot() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    values.put("transactions.inFlight", (long) IN_FLIGHT.get());
+    values.put("transactions.committed", COMMITTED.sum());
+    values.put("transactions.aborted", ABORTED.sum());
+    values.put("transactions.conflictRetries", CONFLICT_RETRIES.sum());
+    values.put("transactions.phaseTimeouts", PHASE_TIMEOUTS.sum());
+    values.put("transactions.onePhase", ONE_PHASE.sum());
+    values.put("transactions.asyncCommits", (long) ASYNC_COMMITS.get());
+    CoordinatorLog log = CoordinatorLog.current();
+    values.put("transactions.unfinishedDecisions", log != null ? (long) log.getUnfinishedCount() : 0L);
+    values.put("transactions.resolvedCommits", RESOLVED_COMMITS.sum());
+    values.put("transactions.resolvedAborts", RESOLVED_ABORTS.sum());
+    putLatency(values, "transaction", TRANSACTION);
+    putLatency(values, "prepare", PREPARE);
+    putLatency(values, "commit", COMMIT);
+    putLatency(values, "abort", ABORT);
+    values.put("batchSize.p50", BATCH_SIZE.getPercentile(50));
+    values.put("batchSize.max", BATCH_SIZE.getMax());
+    values.put("multi.shardsWritten.p50", TRANSACTION_SHARDS.getPercentile(50));
+    values.put("multi.shardsWritten.max", TRANSACTION_SHARDS.getMax());
+    values.put("multi.readOnlyShards", READ_ONLY_SHARDS.sum());
+    values.put("replication.lagging", (long) LAGGING_REPLICAS.get());
+    values.put("replication.replayed", CATCH_UP_REPLAYED.sum());
+    values.put("staging.transactions", (long) STAGED_TRANSACTIONS.get());
+    values.put("staging.bytes", STAGED_BYTES.get());
+    values.put("staging.latePrepares", LATE_PREPARES.sum());
+    values.put("staging.fullRejects", STAGING_FULL.sum());
+    long hits = CACHE_HITS.sum();
+    long lookups = hits + CACHE_MISSES.sum();
+    values.put("cache.hits", hits);
+    values.put("cache.misses", lookups - hits);
+    values.put("cache.hitRatePercent", lookups == 0 ? 0 : hits * 100 / lookups);
+    values.put("cache.evictions", CACHE_EVICTIONS.sum());
+    values.put("cache.invalidations", CACHE_INVALIDATIONS.sum());
+    for (Map.Entry<String, ReplicaStats> entry : REPLICAS.entrySet()) {
+      String prefix = "replica." + entry.getKey();
+      values.put(prefix + ".errors", entry.getValue().errors.sum());
+      putLatency(values, prefix, entry.getValue().latency);
+      values.put(prefix + ".readErrors", entry.getValue().readErrors.sum());
+      putLatency(values, prefix + ".reads", entry.getValue().reads);
+    }
+    for (int i = 0; i < COMMANDS.length; i++) {
+      String prefix = "command." + COMMAND_NAMES[i];
+      values.put(prefix + ".errors", COMMANDS[i].errors.sum());
+      putLatency(values, prefix, COMMANDS[i].latency);
+    }
+    return values;
+  }
+
+  // The snapshot as "name=value" pairs on one line.
+  public static String report() {
+    StringBuilder report = new StringBuilder();
+    for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+      if (report.length() > 0) {
+        report.append(' ');
+      }
+      report.append(entry.getKey()).append('=').append(entry.getValue());
+    }
+    return report.toString();
+  }
+
+  private static void putLatency(Map<String, Long> values, String prefix, Histogram histogram) {
+    values.put(prefix + ".count", histogram.getCount());
+    values.put(prefix + ".p50Micros", micros(histogram.getPercentile(50)));
+    values.put(prefix + ".p99Micros", micros(histogram.getPercentile(99)));
+    values.put(prefix + ".p999Micros", micros(histogram.getPercentile(99.9)));
+    values.put(prefix + ".maxMicros", micros(histogram.getMax()));
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  private static void register() {
+    try {
+      ObjectName name = new ObjectName("kvstore:type=Metrics");
+      if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+      }
+    } catch (JMException e) {
+      ServerLogger.logRMIServerError("Unable to register metrics with JMX", e);
+    }
+  }
+
+  static class ReplicaStats {
+    final Histogram latency = new Histogram();
+    final LongAdder errors = new LongAdder();
+    // GETs routed to the replica by a ReadRouter.
+    final Histogram reads = new Histogram();
+    final LongAdder readErrors = new LongAdder();
+  }
+
+  private static class CommandStats {
+    private final Histogram latency = new Histogram();
+    private final LongAdder errors = new LongAdder();
+  }
+
+  // Exposes each snapshot value as a read-only long attribute. The attribute list is taken when a
+  // JMX client asks for it, so replicas that appear later show up too.
+  private static class MetricsMBean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Long value = snapshot().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Long> values = snapshot();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        if (values.containsKey(attribute)) {
+          list.add(new Attribute(attribute, values.get(attribute)));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      Map<String, Long> values = snapshot();
+      MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+      int i = 0;
+      for (String name : values.keySet()) {
+        attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+      }
+      return new MBeanInfo(Metrics.class.getName(), "Key-value store request and 2PC metrics", attributes,
+              null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+  }
+}
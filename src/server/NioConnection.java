@@ -0,0 +1,175 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A non-blocking socket driven by an NioEventLoop; subclasses decode what arrives. Any thread may
+// send: an uncontended sender writes its buffer to the socket itself, saving a handoff to the loop
+// thread, while buffers queued under contention are written together in one gathering write, so
+// concurrent senders share system calls instead of each paying for one.
+abstract class NioConnection implements NioEventLoop.Handler {
+  protected final NioEventLoop loop;
+  protected final SocketChannel channel;
+  private final String remoteAddress;
+  private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  // Guards writing and the socket's write side.
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+  // Set while the loop waits for the socket to drain; senders then leave the writing to it.
+  private volatile boolean writeInterest;
+  // Set while the peer is sending faster than its requests are handled.
+  private volatile boolean readPaused;
+  // Loop thread only.
+  private SelectionKey key;
+
+  NioConnection(NioEventLoop loop, SocketChannel channel) throws IOException {
+    this.loop = loop;
+    this.channel = channel;
+    this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+    channel.configureBlocking(false);
+  }
+
+  // Registers the connection with its event loop. Called once the subclass is fully constructed:
+  // from then on the loop thread may call read() at any time.
+  void start() {
+    loop.execute(this::register);
+  }
+
+  // Queues bytes to be written. Returns false if the connection is closed.
+  boolean send(ByteBuffer buffer) {
+    if (closed.get()) {
+      return false;
+    }
+    outbound.add(buffer);
+    if (!writeInterest && writeLock.tryLock()) {
+      try {
+        if (drain()) {
+          return true;
+        }
+      } catch (IOException e) {
+        close(e);
+        return true;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+    if (flushScheduled.compareAndSet(false, true)) {
+      loop.execute(this::scheduledFlush);
+    }
+    return true;
+  }
+
+  // Stops or resumes reading from the socket, leaving the peer's data in the kernel buffers and
+  // eventually blocking the peer through TCP flow control.
+  void pauseReading(boolean paused) {
+    if (readPaused != paused) {
+      readPaused = paused;
+      loop.execute(this::updateInterest);
+    }
+  }
+
+  boolean isOpen() {
+    return !closed.get();
+  }
+
+  String getRemoteAddress() {
+    return remoteAddress;
+  }
+
+  void close(IOException cause) {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("Unable to close connection to " + getRemoteAddress() + ": " + e);
+    }
+    outbound.clear();
+    closed(cause);
+  }
+
+  @Override
+  public void ready(SelectionKey key) throws IOException {
+    if (key.isReadable()) {
+      read();
+    }
+    if (key.isValid() && key.isWritable()) {
+      flush();
+    }
+  }
+
+  @Override
+  public void failed(IOException cause) {
+    close(cause);
+  }
+
+  private void register() {
+    try {
+      key = loop.register(channel, readPaused ? 0 : SelectionKey.OP_READ, this);
+      flush();
+    } catch (IOException e) {
+      close(e);
+    }
+  }
+
+  private void scheduledFlush() {
+    flushScheduled.set(false);
+    try {
+      flush();
+    } catch (IOException e) {
+      close(e);
+    }
+  }
+
+  private void flush() throws IOException {
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    writeLock.lock();
+    try {
+      writeInterest = !drain();
+      // Wait for the socket to drain before writing the rest.
+      updateInterest();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void updateInterest() {
+    if (key != null && key.isValid()) {
+      key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writeInterest ? SelectionKey.OP_WRITE : 0));
+    }
+  }
+
+  // Writes as much of the queued buffers as the socket accepts and returns true if nothing is left.
+  // Called with writeLock held.
+  private boolean drain() throws IOException {
+    ByteBuffer buffer;
+    while ((buffer = outbound.poll()) != null) {
+      writing.add(buffer);
+    }
+    if (writing.isEmpty()) {
+      return true;
+    }
+    channel.write(writing.toArray(new ByteBuffer[0]));
+    while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+      writing.poll();
+    }
+    return writing.isEmpty();
+  }
+
+  // Reads what the socket has available; called on the loop thread when it is readable.
+  protected abstract void read() throws IOException;
+
+  // Called once when the connection closes for any reason.
+  protected abstract void closed(IOException cause);
+}
@@ -0,0 +1,106 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One thread multiplexing many non-blocking channels with a Selector. Channels are registered
+// and all their I/O is done on the loop thread; other threads hand work to it with execute.
+class NioEventLoop {
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final Thread thread;
+  // Scratch buffer for reads, shared by every connection of this loop.
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+  private volatile boolean running = true;
+
+  NioEventLoop(String name) throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Runs the task on the loop thread after the current round of I/O.
+  void execute(Runnable task) {
+    tasks.add(task);
+    if (Thread.currentThread() != thread) {
+      selector.wakeup();
+    }
+  }
+
+  // Direct buffer a connection may read into and must have consumed before returning to the loop.
+  // Loop thread only.
+  ByteBuffer readBuffer() {
+    readBuffer.clear();
+    return readBuffer;
+  }
+
+  // Must be called on the loop thread.
+  SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+    return channel.register(selector, ops, handler);
+  }
+
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  private void run() {
+    while (running) {
+      try {
+        // Tasks queued by the loop itself come without a wakeup, so don't block when there are any.
+        if (tasks.isEmpty()) {
+          selector.select();
+        } else {
+          selector.selectNow();
+        }
+      } catch (IOException e) {
+        ServerLogger.logRMIServerError("Selector failed in " + thread.getName(), e);
+        continue;
+      }
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          ServerLogger.logRMIServerError("Task failed in " + thread.getName(), e);
+        }
+      }
+      Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+      while (selected.hasNext()) {
+        SelectionKey key = selected.next();
+        selected.remove();
+        Handler handler = (Handler) key.attachment();
+        try {
+          if (key.isValid()) {
+            handler.ready(key);
+          }
+        } catch (IOException e) {
+          handler.failed(e);
+        }
+      }
+    }
+    for (SelectionKey key : selector.keys()) {
+      ((Handler) key.attachment()).failed(new ClosedChannelException());
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      ServerLogger.logRMIServerError("Unable to close selector of " + thread.getName(), e);
+    }
+  }
+
+  // Reacts to a registered channel becoming ready. Called on the loop thread only.
+  interface Handler {
+    void ready(SelectionKey key) throws IOException;
+
+    // The channel failed or the loop is shutting down; the handler must close it.
+    void failed(IOException cause);
+  }
+}
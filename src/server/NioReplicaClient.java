@@ -0,0 +1,199 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client side of the ReplicaProtocol: a KeyValueStoreInterface whose calls go to a NioReplicaServer
+// over one persistent connection. Calls from any number of threads are multiplexed on that
+// connection by request ID, and every client in the process shares a single I/O thread, so one
+// coordinator can drive many replicas without a thread or socket per call. A broken connection
+// fails the calls waiting on it and is re-established by the next call.
+public class NioReplicaClient implements KeyValueStoreInterface, FrameConnection.Listener {
+  private static NioEventLoop sharedLoop;
+
+  private final String host;
+  private final int port;
+  private final long timeoutMillis;
+  private final AtomicLong requestIds = new AtomicLong();
+  private final ConcurrentMap<Long, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+  private final Object connectMonitor = new Object();
+  private volatile FrameConnection connection;
+
+  // Connects right away so a wrong address is reported at startup, as an RMI lookup would be.
+  public NioReplicaClient(String host, int port) throws IOException {
+    this.host = host;
+    this.port = port;
+    this.timeoutMillis = ServerConfig.NIO_REQUEST_TIMEOUT_MILLIS;
+    connection();
+  }
+
+  @Override
+  public String put(String key, String value) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    return ReplicaProtocol.readString(call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.PUT)
+            .putString(key).putString(value)));
+  }
+
+  @Override
+  public String get(String key) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    return ReplicaProtocol.readString(call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.GET)
+            .putString(key)));
+  }
+
+  @Override
+  public String delete(String key) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    return ReplicaProtocol.readString(call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.DELETE)
+            .putString(key)));
+  }
+
+  @Override
+  public boolean prepare(String transactionId, String operation, String key, String value) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    return call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.PREPARE)
+            .putString(transactionId).putString(operation).putString(key).putString(value)).get() != 0;
+  }
+
+  @Override
+  public boolean prepareBatch(String transactionId, List<Operation> operations) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    return call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.PREPARE_BATCH)
+            .putString(transactionId).putOperations(operations)).get() != 0;
+  }
+
+  @Override
+  public void commit(String transactionId) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.COMMIT).putString(transactionId));
+  }
+
+  @Override
+  public boolean commitOnePhase(String transactionId, List<Operation> operations) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    return call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.COMMIT_ONE_PHASE)
+            .putString(transactionId).putOperations(operations)).get() != 0;
+  }
+
+  // The response is a boolean, false on a conflict, followed by the responses of the reads.
+  @Override
+  public List<String> prepareReadOnly(String transactionId, List<Operation> operations) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    ByteBuffer response = call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.PREPARE_READ_ONLY)
+            .putString(transactionId).putOperations(operations));
+    return response.get() != 0 ? ReplicaProtocol.readStrings(response) : null;
+  }
+
+  @Override
+  public List<String> inDoubt(long olderThanMillis) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    return ReplicaProtocol.readStrings(call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.IN_DOUBT)
+            .putLong(olderThanMillis)));
+  }
+
+  @Override
+  public void resolve(List<String> committed, List<String> aborted) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.RESOLVE).putStrings(committed).putStrings(aborted));
+  }
+
+  @Override
+  public void abort(String transactionId) throws RemoteException {
+    long id = requestIds.incrementAndGet();
+    call(id, new ReplicaProtocol.FrameBuilder(id, ReplicaProtocol.ABORT).putString(transactionId));
+  }
+
+  @Override
+  public void onFrame(FrameConnection connection, ByteBuffer frame) {
+    CompletableFuture<ByteBuffer> response = pending.remove(frame.getLong());
+    if (response != null) {
+      response.complete(frame);
+    }
+  }
+
+  @Override
+  public void onClose(FrameConnection connection, IOException cause) {
+    for (Long id : pending.keySet()) {
+      CompletableFuture<ByteBuffer> response = pending.remove(id);
+      if (response != null) {
+        response.completeExceptionally(cause);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "nio://" + host + ":" + port;
+  }
+
+  // Sends the request and waits for its response, returning the body after the status byte.
+  private ByteBuffer call(long id, ReplicaProtocol.FrameBuilder request) throws RemoteException {
+    CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+    pending.put(id, response);
+    ByteBuffer reply;
+    try {
+      if (!connection().send(request.build())) {
+        throw new ClosedChannelException();
+      }
+      reply = response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      throw new ConnectException("Unable to reach replica at " + this, e);
+    } catch (ExecutionException e) {
+      throw new ConnectException("Connection to replica at " + this + " lost", (Exception) e.getCause());
+    } catch (TimeoutException e) {
+      throw new RemoteException("No response from replica at " + this + " within " + timeoutMillis + " ms");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while waiting for replica at " + this, e);
+    } finally {
+      pending.remove(id);
+    }
+    if (reply.get() == ReplicaProtocol.ERROR) {
+      throw new RemoteException("Replica at " + this + " failed: " + ReplicaProtocol.readString(reply));
+    }
+    return reply;
+  }
+
+  private FrameConnection connection() throws IOException {
+    FrameConnection current = connection;
+    if (current != null && current.isOpen()) {
+      return current;
+    }
+    synchronized (connectMonitor) {
+      if (connection == null || !connection.isOpen()) {
+        SocketChannel channel = SocketChannel.open();
+        try {
+          channel.socket().setTcpNoDelay(true);
+          channel.socket().connect(new InetSocketAddress(host, port), (int) timeoutMillis);
+          FrameConnection opened = new FrameConnection(loop(), channel, this);
+          opened.start();
+          connection = opened;
+        } catch (IOException e) {
+          channel.close();
+          throw e;
+        }
+      }
+      return connection;
+    }
+  }
+
+  private static synchronized NioEventLoop loop() throws IOException {
+    if (sharedLoop == null) {
+      sharedLoop = new NioEventLoop("nio-replica-client");
+    }
+    return sharedLoop;
+  }
+}
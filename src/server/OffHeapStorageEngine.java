@@ -0,0 +1,69 @@
+package server;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Engine whose shards live in direct ByteBuffer arenas outside the Java heap. Compared with the
+// heap engine an entry costs its UTF-8 bytes, a 12-byte record header and a 16-byte index slot
+// instead of two String objects and a map node, and the GC only sees a few dozen large buffers
+// however many keys are stored. The arenas count against -XX:MaxDirectMemorySize.
+public class OffHeapStorageEngine extends ByteBufferStorageEngine {
+  private static final Method INVOKE_CLEANER;
+  private static final Object UNSAFE;
+
+  static {
+    Method invokeCleaner = null;
+    Object unsafe = null;
+    try {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+      invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Released arenas are then freed once the GC collects their buffers.
+    }
+    INVOKE_CLEANER = invokeCleaner;
+    UNSAFE = unsafe;
+  }
+
+  public OffHeapStorageEngine(int shardCount, int chunkSize) throws IOException {
+    super("off-heap storage", name -> new ArenaRegion(), shardCount, chunkSize);
+  }
+
+  // Frees a buffer's native memory right away instead of waiting for the GC, which may not run
+  // for a long time when the heap itself is quiet. Only called once the shard no longer uses it.
+  private static void free(ByteBuffer buffer) {
+    if (INVOKE_CLEANER == null) {
+      return;
+    }
+    try {
+      INVOKE_CLEANER.invoke(UNSAFE, buffer);
+    } catch (ReflectiveOperationException e) {
+      // Left to the GC.
+    }
+  }
+
+  private static class ArenaRegion implements Region {
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+
+    @Override
+    public ByteBuffer map(long offset, int size) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+      buffers.add(buffer);
+      return buffer;
+    }
+
+    @Override
+    public void release() {
+      for (ByteBuffer buffer : buffers) {
+        free(buffer);
+      }
+      buffers.clear();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package server;
+
+import java.io.Serializable;
+
+// A single PUT or DELETE sent to the replicas as part of a batched two-phase commit, or a PUT,
+// DELETE or GET of a multi-key transaction.
+public class Operation implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String operation;
+  private final String key;
+  private final String value;
+
+  public Operation(String operation, String key, String value) {
+    this.operation = operation;
+    this.key = key;
+    this.value = value;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return operation + " " + key + (value != null ? " " + value : "");
+  }
+}
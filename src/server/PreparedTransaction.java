@@ -0,0 +1,66 @@
+package server;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// A transaction a replica has voted yes for and is holding until the coordinator sends commit or
+// abort. The operations are staged here and only applied to the store on commit.
+class PreparedTransaction {
+  private final String transactionId;
+  private final List<Operation> operations;
+  private final Set<String> keys;
+  private final Set<String> writtenKeys;
+  private final long preparedAtMillis;
+  private final long stagedBytes;
+
+  PreparedTransaction(String transactionId, List<Operation> operations) {
+    this.transactionId = transactionId;
+    this.operations = operations;
+    this.keys = new LinkedHashSet<>();
+    this.writtenKeys = new HashSet<>();
+    long bytes = 0;
+    for (Operation op : operations) {
+      keys.add(op.getKey());
+      if (!op.getOperation().equals("GET")) {
+        writtenKeys.add(op.getKey());
+      }
+      // Two bytes per char of the key and value.
+      bytes += 2L * (op.getKey().length() + (op.getValue() != null ? op.getValue().length() : 0));
+    }
+    this.stagedBytes = bytes;
+    this.preparedAtMillis = System.currentTimeMillis();
+  }
+
+  String getTransactionId() {
+    return transactionId;
+  }
+
+  List<Operation> getOperations() {
+    return operations;
+  }
+
+  // Distinct keys touched by the transaction, in first-use order.
+  Set<String> getKeys() {
+    return keys;
+  }
+
+  // False for a key the transaction only reads, which it locks without changing.
+  boolean writes(String key) {
+    return writtenKeys.contains(key);
+  }
+
+  // True if the transaction only reads, so committing it changes nothing.
+  boolean isReadOnly() {
+    return writtenKeys.isEmpty();
+  }
+
+  long getPreparedAtMillis() {
+    return preparedAtMillis;
+  }
+
+  long getStagedBytes() {
+    return stagedBytes;
+  }
+}
@@ -0,0 +1,211 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A bounded cache of GET responses kept by a coordinator, so a hot key is answered without a call
+// to a replica. Eviction is segmented LRU: a key enters a probation list and moves to a protected
+// list, which holds up to 80% of the entries, when it is read again. Keys read once are evicted
+// from probation first, so a scan of cold keys cannot flush the hot ones. The cache is split into
+// segments by key hash, each with its own lock, lists and share of the entry and byte bounds.
+//
+// Every write that goes through the coordinator invalidates its key once the transaction is over,
+// before the write returns, so a client always reads its own writes. A GET that misses takes a
+// stamp of its segment before reading from a replica and only fills the cache if no key of the
+// segment was invalidated since; otherwise a value read just before a commit could be cached after
+// the commit invalidated it. The cache only sees writes made through its own coordinator, so it
+// must only be enabled when that coordinator is the only writer to the replicas.
+public final class ReadCache {
+  private static final int SEGMENTS = 16;
+  // Rough per-entry cost of the map entry, list node and the two String headers, in bytes.
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  public ReadCache(int maxEntries, long maxBytes) {
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), Math.max(1, maxBytes / SEGMENTS));
+    }
+  }
+
+  // The cached response for the key, or null.
+  public String get(String key) {
+    String value = segmentOf(key).get(key);
+    if (Metrics.ENABLED) {
+      (value != null ? Metrics.CACHE_HITS : Metrics.CACHE_MISSES).increment();
+    }
+    return value;
+  }
+
+  // To be taken before reading the key from a replica and passed to fill().
+  public long stamp(String key) {
+    return segmentOf(key).stamp();
+  }
+
+  public void fill(String key, long stamp, String value) {
+    segmentOf(key).fill(key, stamp, value);
+  }
+
+  public void invalidate(String key) {
+    segmentOf(key).invalidate(key);
+    if (Metrics.ENABLED) {
+      Metrics.CACHE_INVALIDATIONS.increment();
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  private Segment segmentOf(String key) {
+    int hash = key.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  private static final class Node {
+    private final String key;
+    private final String value;
+    private final long bytes;
+    private boolean protectedList;
+    private Node previous;
+    private Node next;
+
+    Node(String key, String value) {
+      this.key = key;
+      this.value = value;
+      this.bytes = ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+  }
+
+  private static final class Segment {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Node> entries = new HashMap<>();
+    private final int maxEntries;
+    private final int maxProtected;
+    private final long maxBytes;
+    // Heads and tails of the two lists; the head is the most recently used.
+    private final Node probation = new Node("", "");
+    private final Node protectedHead = new Node("", "");
+    private int protectedCount;
+    private long bytes;
+    private long invalidations;
+
+    Segment(int maxEntries, long maxBytes) {
+      this.maxEntries = maxEntries;
+      this.maxProtected = Math.max(1, maxEntries * 4 / 5);
+      this.maxBytes = maxBytes;
+      probation.previous = probation.next = probation;
+      protectedHead.previous = protectedHead.next = protectedHead;
+    }
+
+    String get(String key) {
+      lock.lock();
+      try {
+        Node node = entries.get(key);
+        if (node == null) {
+          return null;
+        }
+        unlink(node);
+        if (!node.protectedList) {
+          node.protectedList = true;
+          protectedCount++;
+          if (protectedCount > maxProtected) {
+            // Demote the least recently used protected entry back to probation.
+            Node demoted = protectedHead.previous;
+            unlink(demoted);
+            demoted.protectedList = false;
+            protectedCount--;
+            linkFirst(probation, demoted);
+          }
+        }
+        linkFirst(protectedHead, node);
+        return node.value;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    long stamp() {
+      lock.lock();
+      try {
+        return invalidations;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void fill(String key, long stamp, String value) {
+      Node node = new Node(key, value);
+      if (node.bytes > maxBytes) {
+        return;
+      }
+      lock.lock();
+      try {
+        if (invalidations != stamp) {
+          return;
+        }
+        remove(entries.get(key));
+        entries.put(key, node);
+        linkFirst(probation, node);
+        bytes += node.bytes;
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+          Node victim = probation.previous != probation ? probation.previous : protectedHead.previous;
+          remove(victim);
+          if (Metrics.ENABLED) {
+            Metrics.CACHE_EVICTIONS.increment();
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void invalidate(String key) {
+      lock.lock();
+      try {
+        invalidations++;
+        remove(entries.get(key));
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    int size() {
+      lock.lock();
+      try {
+        return entries.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void remove(Node node) {
+      if (node == null) {
+        return;
+      }
+      entries.remove(node.key);
+      unlink(node);
+      bytes -= node.bytes;
+      if (node.protectedList) {
+        protectedCount--;
+      }
+    }
+
+    private static void unlink(Node node) {
+      node.previous.next = node.next;
+      node.next.previous = node.previous;
+    }
+
+    private static void linkFirst(Node head, Node node) {
+      node.previous = head;
+      node.next = head.next;
+      head.next.previous = node;
+      head.next = node;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Spreads GETs over the replicas instead of sending all of them to the first one. Every replica
+// holds every committed write, so any of them can answer. The policy is kvstore.read.policy:
+//
+//   roundRobin        each replica in turn.
+//   leastOutstanding  of two replicas picked at random, the one with fewer reads in flight. A slow
+//                     replica builds up reads in flight and so gets fewer new ones.
+//   latency           of two replicas picked at random, the one with the lowest moving average of
+//                     read latency times (reads in flight + 1), so a replica that is slow with
+//                     nothing queued is avoided too. A replica that has not been read for a
+//                     second is tried again, so one that was slow for a while is not avoided
+//                     forever on an old average.
+//   primary           always the first replica, as before.
+//
+// Picking the better of two random replicas ("power of two choices") keeps the load nearly as
+// even as scanning them all, without every thread piling onto the same least-loaded one.
+// A read that fails with a RemoteException marks its replica down for kvstore.read.retryMillis
+// and the read is retried on another replica; once that time has passed the replica gets reads
+// again, and the first one that succeeds clears the mark.
+// If every replica is down, reads go to each in turn anyway so a recovered one is found.
+// Given the coordinator, the router also skips a replica that is lagging behind a quorum-mode
+// coordinator's commits while it catches up, as it may not hold the latest writes.
+public final class ReadRouter {
+  static final int ROUND_ROBIN = 0;
+  static final int LEAST_OUTSTANDING = 1;
+  static final int LATENCY = 2;
+  static final int PRIMARY = 3;
+
+  // Weight of the newest sample in the latency moving average.
+  private static final double EWMA_WEIGHT = 0.1;
+  // Age after which a replica's latency average no longer counts against it.
+  private static final long STALE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Replica[] replicas;
+  private final int policy;
+  private final long retryNanos;
+  private final AtomicInteger next = new AtomicInteger();
+  // May be null.
+  private final TwoPhaseCommitImpl coordinator;
+
+  public ReadRouter(List<KeyValueStoreInterface> replicas) {
+    this(replicas, null);
+  }
+
+  public ReadRouter(List<KeyValueStoreInterface> replicas, TwoPhaseCommitImpl coordinator) {
+    this(replicas, ServerConfig.READ_POLICY, ServerConfig.READ_RETRY_MILLIS, coordinator);
+  }
+
+  public ReadRouter(List<KeyValueStoreInterface> replicas, String policy, long retryMillis) {
+    this(replicas, policy, retryMillis, null);
+  }
+
+  public ReadRouter(List<KeyValueStoreInterface> replicas, String policy, long retryMillis,
+                    TwoPhaseCommitImpl coordinator) {
+    this.replicas = new Replica[replicas.size()];
+    String prefix = coordinator != null ? coordinator.getName() : "";
+    for (int i = 0; i < this.replicas.length; i++) {
+      this.replicas[i] = new Replica(replicas.get(i), Metrics.replica(prefix + "replica" + (i + 1)));
+    }
+    this.policy = policyOf(policy);
+    this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryMillis);
+    this.coordinator = coordinator;
+  }
+
+  static int policyOf(String name) {
+    switch (name) {
+      case "roundRobin":
+        return ROUND_ROBIN;
+      case "leastOutstanding":
+        return LEAST_OUTSTANDING;
+      case "latency":
+        return LATENCY;
+      case "primary":
+        return PRIMARY;
+      default:
+        throw new IllegalArgumentException("Unknown read policy: " + name);
+    }
+  }
+
+  public String get(String key) throws RemoteException {
+    RemoteException failure = null;
+    for (int attempt = 0; attempt < replicas.length; attempt++) {
+      Replica replica = replicas[choose()];
+      try {
+        return replica.get(key, policy == LATENCY);
+      } catch (RemoteException e) {
+        replica.markDown(System.nanoTime() + retryNanos);
+        failure = e;
+      }
+    }
+    throw failure;
+  }
+
+  // Runs a read-only transaction participant on one replica, chosen and failed over like a GET.
+  // Returns null if a key is locked by another transaction.
+  public List<String> prepareReadOnly(String transactionId, List<Operation> operations) throws RemoteException {
+    RemoteException failure = null;
+    for (int attempt = 0; attempt < replicas.length; attempt++) {
+      Replica replica = replicas[choose()];
+      try {
+        return replica.store.prepareReadOnly(transactionId, operations);
+      } catch (RemoteException e) {
+        replica.markDown(System.nanoTime() + retryNanos);
+        failure = e;
+      }
+    }
+    throw failure;
+  }
+
+  // Answers from the cache when it holds the key, otherwise reads a replica and fills the cache.
+  // cache may be null.
+  public String get(String key, ReadCache cache) throws RemoteException {
+    if (cache == null) {
+      return get(key);
+    }
+    String value = cache.get(key);
+    if (value == null) {
+      long stamp = cache.stamp(key);
+      value = get(key);
+      if (value != null) {
+        cache.fill(key, stamp, value);
+      }
+    }
+    return value;
+  }
+
+  private int choose() {
+    int count = replicas.length;
+    if (count == 1 || policy == PRIMARY && isUp(0)) {
+      return 0;
+    }
+    if (policy == ROUND_ROBIN || policy == PRIMARY) {
+      return nextUp();
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(count);
+    int second = random.nextInt(count - 1);
+    if (second >= first) {
+      second++;
+    }
+    boolean firstUp = isUp(first);
+    boolean secondUp = isUp(second);
+    if (firstUp && secondUp) {
+      return replicas[second].cost(policy) < replicas[first].cost(policy) ? second : first;
+    }
+    if (firstUp || secondUp) {
+      return firstUp ? first : second;
+    }
+    return nextUp();
+  }
+
+  // The next replica in turn that is up, or just the next one if none is. The turn moves past a
+  // replica that is down rather than handing its reads to the replica after it.
+  private int nextUp() {
+    int index = 0;
+    for (int i = 0; i < replicas.length; i++) {
+      index = Math.floorMod(next.getAndIncrement(), replicas.length);
+      if (isUp(index)) {
+        return index;
+      }
+    }
+    return index;
+  }
+
+  private boolean isUp(int index) {
+    Replica replica = replicas[index];
+    return replica.isUp() && (coordinator == null || !coordinator.isLagging(replica.store));
+  }
+
+  private static final class Replica {
+    private final KeyValueStoreInterface store;
+    private final Metrics.ReplicaStats stats;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // Updated without synchronization: a lost sample only makes the average a little staler.
+    private volatile double averageNanos;
+    private volatile long sampledAt;
+    // System.nanoTime() until which the replica is skipped, 0 while it is up.
+    private volatile long downUntil;
+
+    Replica(KeyValueStoreInterface store, Metrics.ReplicaStats stats) {
+      this.store = store;
+      this.stats = stats;
+    }
+
+    String get(String key, boolean trackLatency) throws RemoteException {
+      boolean timed = trackLatency || Metrics.ENABLED;
+      long start = timed ? System.nanoTime() : 0;
+      outstanding.incrementAndGet();
+      try {
+        String value = store.get(key);
+        if (timed) {
+          long elapsed = System.nanoTime() - start;
+          averageNanos += (elapsed - averageNanos) * EWMA_WEIGHT;
+          sampledAt = start + elapsed;
+          if (Metrics.ENABLED) {
+            stats.reads.record(elapsed);
+          }
+        }
+        if (downUntil != 0) {
+          downUntil = 0;
+        }
+        return value;
+      } catch (RemoteException e) {
+        if (Metrics.ENABLED) {
+          stats.readErrors.increment();
+        }
+        throw e;
+      } finally {
+        outstanding.decrementAndGet();
+      }
+    }
+
+    boolean isUp() {
+      long until = downUntil;
+      return until == 0 || System.nanoTime() - until >= 0;
+    }
+
+    void markDown(long until) {
+      downUntil = until == 0 ? 1 : until;
+    }
+
+    double cost(int policy) {
+      int inFlight = outstanding.get();
+      if (policy != LATENCY) {
+        return inFlight;
+      }
+      return System.nanoTime() - sampledAt > STALE_NANOS ? 0 : averageNanos * (inFlight + 1);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A replica's place in a quorum-mode coordinator. While the replica keeps up it is committed to
+// like in plain 2PC. When a transaction commits without it (it was slow, down, or still held a key
+// for an earlier transaction) or its commit call fails, it becomes lagging: it gets no more
+// commits, and the operations of every transaction it missed go into its replication log. A
+// background thread replays the log on the replica, oldest first and in batches, and lets it
+// rejoin once the log is empty.
+//
+// The log is ordered by the sequence number each transaction gets when it is decided. A write
+// quorum is a majority, so of two transactions that touch the same key the later one cannot be
+// decided until the earlier one has committed on a quorum: replaying in decision order applies
+// writes to a key in the order they were made. The coordinator only commits on a replica that is
+// not lagging when the transaction is decided, so nothing newer than the log reaches the replica.
+//
+// Transactions hold the coordinator's barrier read lock while they run. Rejoining takes the write
+// lock, so no transaction that decided without the replica is still running when it is let back in.
+final class ReplicaCatchUp {
+  // Operations replayed in one prepare and commit, so a replica that is far behind catches up in
+  // fewer round trips. Writes to the same key in one batch are applied in order.
+  private static final int MAX_REPLAY = 256;
+
+  private final KeyValueStoreInterface replica;
+  private final String name;
+  private final ReentrantReadWriteLock barrier;
+  private final long retryMillis;
+  // Transactions the replica still has to apply, by decision sequence number.
+  private final TreeMap<Long, Entry> log = new TreeMap<>();
+  private volatile boolean lagging;
+  private boolean catchingUp;
+
+  ReplicaCatchUp(KeyValueStoreInterface replica, String name, ReentrantReadWriteLock barrier, long retryMillis) {
+    this.replica = replica;
+    this.name = name;
+    this.barrier = barrier;
+    this.retryMillis = retryMillis;
+  }
+
+  KeyValueStoreInterface getReplica() {
+    return replica;
+  }
+
+  boolean isLagging() {
+    return lagging;
+  }
+
+  synchronized int getBacklog() {
+    return log.size();
+  }
+
+  // Records a committed transaction the replica did not take part in. If the replica prepared it,
+  // preparedId is the transaction ID it holds the keys under, which is released before the
+  // operations are replayed; otherwise null.
+  synchronized void missed(long sequence, String preparedId, List<Operation> operations) {
+    log.put(sequence, new Entry(preparedId, operations));
+    if (!lagging) {
+      lagging = true;
+      if (Metrics.ENABLED) {
+        Metrics.LAGGING_REPLICAS.incrementAndGet();
+      }
+      System.err.println("Replica " + name + " is lagging, catching up from the replication log");
+      ServerLogger.logRMIServer("Replica " + name + " is lagging, catching up from the replication log");
+    }
+    if (!catchingUp) {
+      catchingUp = true;
+      Thread thread = new Thread(this::catchUp, "catch-up-" + name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void catchUp() {
+    while (true) {
+      try {
+        if (replayNext()) {
+          continue;
+        }
+        boolean caughtUp;
+        barrier.writeLock().lock();
+        try {
+          // No transaction is running, so only a failed commit can add to the log meanwhile.
+          while (replayNext()) {
+            // Keep going.
+          }
+          synchronized (this) {
+            caughtUp = log.isEmpty();
+            if (caughtUp) {
+              lagging = false;
+              catchingUp = false;
+            }
+          }
+        } finally {
+          barrier.writeLock().unlock();
+        }
+        if (!caughtUp) {
+          continue;
+        }
+        if (Metrics.ENABLED) {
+          Metrics.LAGGING_REPLICAS.decrementAndGet();
+        }
+        System.out.println("Replica " + name + " caught up");
+        ServerLogger.logRMIServer("Replica " + name + " caught up");
+        return;
+      } catch (Exception e) {
+        // The replica is still unreachable, or still holds a key for a transaction being aborted.
+        try {
+          Thread.sleep(retryMillis);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  // Applies the oldest transactions of the log to the replica, up to MAX_REPLAY operations of them
+  // as one batch in decision order. Returns false if the log is empty. Throws if the replica
+  // failed or rejected the replay; the entries then stay first in line.
+  private boolean replayNext() throws Exception {
+    List<Map.Entry<Long, Entry>> entries = new ArrayList<>();
+    List<Operation> operations = new ArrayList<>();
+    synchronized (this) {
+      for (Map.Entry<Long, Entry> next : log.entrySet()) {
+        if (!entries.isEmpty() && operations.size() + next.getValue().operations.size() > MAX_REPLAY) {
+          break;
+        }
+        entries.add(next);
+        operations.addAll(next.getValue().operations);
+      }
+    }
+    if (entries.isEmpty()) {
+      return false;
+    }
+    for (Map.Entry<Long, Entry> next : entries) {
+      Entry entry = next.getValue();
+      // Releases the keys if the replica still holds them for the original transaction, or for an
+      // earlier replay whose commit failed. If that was committed after all the abort is ignored,
+      // and the replay writes the same values again. The aborts are sent again on every attempt:
+      // the replica remembers an aborted ID, so a prepare of the original transaction that was
+      // still on its way when the last attempt aborted it is turned down, but once it has been
+      // forgotten only a new abort releases the keys it took.
+      if (entry.preparedId != null) {
+        replica.abort(entry.preparedId);
+      }
+      if (entry.replayId != null) {
+        replica.abort(entry.replayId);
+        entry.replayId = null;
+      }
+    }
+    String transactionId = TwoPhaseCommitImpl.newTransactionId();
+    if (!replica.prepareBatch(transactionId, operations)) {
+      throw new IllegalStateException("Replay of a missed transaction was rejected by " + name);
+    }
+    entries.get(0).getValue().replayId = transactionId;
+    replica.commit(transactionId);
+    synchronized (this) {
+      for (Map.Entry<Long, Entry> next : entries) {
+        log.remove(next.getKey());
+      }
+    }
+    if (Metrics.ENABLED) {
+      Metrics.CATCH_UP_REPLAYED.add(entries.size());
+    }
+    return true;
+  }
+
+  private static final class Entry {
+    // Only touched by the catch-up thread once the entry is in the log.
+    private final String preparedId;
+    // The replay this entry was last prepared in, if its commit may not have arrived.
+    private String replayId;
+    private final List<Operation> operations;
+
+    Entry(String preparedId, List<Operation> operations) {
+      this.preparedId = preparedId;
+      this.operations = operations;
+    }
+  }
+}
@@ -6,20 +6,29 @@ import java.rmi.registry.LocateRegistry;
 
 public class ReplicaKeyValueStoreServer {
   public static void main(String[] args) {
-    // Define ports for each server instance
-    int[] ports = {1099, 1100, 1101, 1102, 1103};
-
-    for (int i = 0; i < ports.length; i++) {
-      startServer(ports[i], "KeyValueStore" + (i + 1));
+    // Start kvstore.shard.replicas instances for each of kvstore.shards shards, five by default
+    for (int i = 0; i < ServerConfig.SHARDS * ServerConfig.SHARD_REPLICAS; i++) {
+      startServer(port(i), "KeyValueStore" + (i + 1));
     }
   }
 
+  // Port of the i-th replica, from 0: 1099 to 1103 for the first five, then from 1105 on, skipping
+  // the port KeyValueStoreServer gives its primary server.
+  static int port(int i) {
+    return i < 5 ? 1099 + i : 1100 + i;
+  }
+
   private static void startServer(int port, String serverName) {
     try {
-      KeyValueStoreImpl keyValueStore = new KeyValueStoreImpl();
+      KeyValueStoreImpl keyValueStore = new KeyValueStoreImpl(serverName);
       LocateRegistry.createRegistry(port);
       Naming.rebind("//localhost:" + port + "/" + serverName, keyValueStore);
       System.out.println(serverName + " is running on port " + port);
+      if (ServerConfig.NIO_REPLICA_PORT_OFFSET > 0) {
+        int nioPort = port + ServerConfig.NIO_REPLICA_PORT_OFFSET;
+        new NioReplicaServer(keyValueStore, nioPort);
+        System.out.println(serverName + " accepts nio://localhost:" + nioPort);
+      }
     } catch (Exception e) {
       System.err.println(serverName + " exception: " + e.toString());
       ServerLogger.logRMIServerError(serverName + " exception: ", e);
@@ -0,0 +1,25 @@
+package server;
+
+import java.net.URI;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+// Resolves the replica addresses given to the front-end servers. "host:port" looks up
+// KeyValueStore<n> in the RMI registry at that address; "nio://host:port" connects to the
+// replica's NioReplicaServer instead.
+final class ReplicaLocator {
+
+  private ReplicaLocator() {
+  }
+
+  // number is the replica's 1-based position on the command line, which names its RMI binding.
+  static KeyValueStoreInterface locate(String address, int number) throws Exception {
+    if (address.startsWith("nio://")) {
+      URI uri = URI.create(address);
+      return new NioReplicaClient(uri.getHost(), uri.getPort());
+    }
+    String[] parts = address.split(":");
+    Registry registry = LocateRegistry.getRegistry(parts[0], Integer.parseInt(parts[1]));
+    return (KeyValueStoreInterface) registry.lookup("KeyValueStore" + number);
+  }
+}
@@ -0,0 +1,137 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary protocol spoken between NioReplicaClient and NioReplicaServer. Every message is a frame
+// [int length][long request ID][byte code][body], where length counts the bytes after itself.
+// Requests carry an opcode and responses a status; a response repeats the ID of its request, so
+// many requests can be in flight on one connection and answered in any order.
+//
+// Bodies are sequences of strings ([int length][UTF-8 bytes], length -1 for null), ints and
+// single-byte booleans.
+final class ReplicaProtocol {
+  static final byte PUT = 1;
+  static final byte GET = 2;
+  static final byte DELETE = 3;
+  static final byte PREPARE = 4;
+  static final byte PREPARE_BATCH = 5;
+  static final byte COMMIT = 6;
+  static final byte ABORT = 7;
+  static final byte COMMIT_ONE_PHASE = 8;
+  static final byte IN_DOUBT = 9;
+  static final byte RESOLVE = 10;
+  static final byte PREPARE_READ_ONLY = 11;
+
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+
+  // Frames larger than this are treated as a corrupt stream.
+  static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+  private ReplicaProtocol() {
+  }
+
+  static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  static List<String> readStrings(ByteBuffer buffer) {
+    int count = buffer.getInt();
+    List<String> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      values.add(readString(buffer));
+    }
+    return values;
+  }
+
+  static List<Operation> readOperations(ByteBuffer buffer) {
+    int count = buffer.getInt();
+    List<Operation> operations = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      operations.add(new Operation(readString(buffer), readString(buffer), readString(buffer)));
+    }
+    return operations;
+  }
+
+  // Builds one frame in a heap buffer that grows as needed.
+  static final class FrameBuilder {
+    private ByteBuffer buffer;
+
+    FrameBuilder(long requestId, byte code) {
+      buffer = ByteBuffer.allocate(128);
+      buffer.putInt(0);
+      buffer.putLong(requestId);
+      buffer.put(code);
+    }
+
+    FrameBuilder putString(String value) {
+      if (value == null) {
+        ensure(4);
+        buffer.putInt(-1);
+        return this;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      ensure(4 + bytes.length);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+      return this;
+    }
+
+    FrameBuilder putLong(long value) {
+      ensure(8);
+      buffer.putLong(value);
+      return this;
+    }
+
+    FrameBuilder putStrings(List<String> values) {
+      ensure(4);
+      buffer.putInt(values.size());
+      for (String value : values) {
+        putString(value);
+      }
+      return this;
+    }
+
+    FrameBuilder putBoolean(boolean value) {
+      ensure(1);
+      buffer.put(value ? (byte) 1 : (byte) 0);
+      return this;
+    }
+
+    FrameBuilder putOperations(List<Operation> operations) {
+      ensure(4);
+      buffer.putInt(operations.size());
+      for (Operation operation : operations) {
+        putString(operation.getOperation());
+        putString(operation.getKey());
+        putString(operation.getValue());
+      }
+      return this;
+    }
+
+    // Fills in the length and returns the frame ready to be written.
+    ByteBuffer build() {
+      buffer.putInt(0, buffer.position() - 4);
+      buffer.flip();
+      return buffer;
+    }
+
+    private void ensure(int bytes) {
+      if (buffer.remaining() < bytes) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Parses a text protocol request ("<COMMAND> <key> [<value>]") straight from the bytes it arrived
+// in. parse() only records where the command, key and value start and end; key() and value()
+// create the Strings the replicas need and nothing else is allocated. Tokens are separated by
+// single spaces and trailing spaces are ignored, like the String.split(" ") it replaces. An
+// instance is reused for many requests but only by one thread at a time.
+final class RequestParser {
+  static final int INVALID = 0;
+  static final int PUT = 1;
+  static final int GET = 2;
+  static final int DELETE = 3;
+  static final int STATS = 4;
+  static final int MULTI = 5;
+
+  private ByteBuffer source;
+  private int start;
+  private int end;
+  private int command;
+  private int tokens;
+  private int commandEnd;
+  private int keyStart;
+  private int keyEnd;
+  private int valueStart;
+  private int valueEnd;
+  private char[] chars = new char[64];
+
+  // Parses the bytes between the buffer's position and limit, without moving either. Returns the
+  // number of tokens found, which the caller checks against what the command expects.
+  int parse(ByteBuffer buffer) {
+    source = buffer;
+    start = buffer.position();
+    end = buffer.limit();
+    while (end > start && buffer.get(end - 1) == ' ') {
+      end--;
+    }
+    tokens = 0;
+    keyStart = keyEnd = valueStart = valueEnd = end;
+    commandEnd = end;
+    int tokenStart = start;
+    for (int i = start; i <= end; i++) {
+      if (i == end || buffer.get(i) == ' ') {
+        tokens++;
+        if (tokens == 1) {
+          commandEnd = i;
+        } else if (tokens == 2) {
+          keyStart = tokenStart;
+          keyEnd = i;
+        } else if (tokens == 3) {
+          valueStart = tokenStart;
+          valueEnd = i;
+        }
+        tokenStart = i + 1;
+      }
+    }
+    if (start == end) {
+      tokens = 0;
+    }
+    command = commandCode();
+    return tokens;
+  }
+
+  // One of PUT, GET, DELETE, STATS, MULTI or INVALID.
+  int command() {
+    return command;
+  }
+
+  int tokens() {
+    return tokens;
+  }
+
+  String key() {
+    return string(keyStart, keyEnd);
+  }
+
+  String value() {
+    return string(valueStart, valueEnd);
+  }
+
+  String commandName() {
+    return string(start, commandEnd);
+  }
+
+  // Every token after the command, for MULTI, whose operations do not fit the key and value slots.
+  List<String> arguments() {
+    List<String> arguments = new ArrayList<>(Math.max(tokens - 1, 0));
+    int tokenStart = commandEnd + 1;
+    for (int i = tokenStart; i <= end; i++) {
+      if (i == end || source.get(i) == ' ') {
+        arguments.add(string(tokenStart, i));
+        tokenStart = i + 1;
+      }
+    }
+    return arguments;
+  }
+
+  // The whole request, for error messages and logging.
+  String request() {
+    return string(start, end);
+  }
+
+  private int commandCode() {
+    int length = commandEnd - start;
+    if (length == 3 && matches("PUT")) {
+      return PUT;
+    }
+    if (length == 3 && matches("GET")) {
+      return GET;
+    }
+    if (length == 6 && matches("DELETE")) {
+      return DELETE;
+    }
+    if (length == 5 && matches("STATS")) {
+      return STATS;
+    }
+    if (length == 5 && matches("MULTI")) {
+      return MULTI;
+    }
+    return INVALID;
+  }
+
+  private boolean matches(String name) {
+    for (int i = 0; i < name.length(); i++) {
+      if (source.get(start + i) != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Keys and values are almost always ASCII, which is widened into a reused char array; anything
+  // else goes through the UTF-8 decoder.
+  private String string(int from, int to) {
+    int length = to - from;
+    if (length > chars.length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+    }
+    for (int i = 0; i < length; i++) {
+      byte b = source.get(from + i);
+      if (b < 0) {
+        ByteBuffer slice = source.duplicate();
+        slice.limit(to).position(from);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+      }
+      chars[i] = (char) b;
+    }
+    return new String(chars, 0, length);
+  }
+}
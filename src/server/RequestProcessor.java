@@ -1,62 +1,219 @@
 package server;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class RequestProcessor {
 
   private static TwoPhaseCommitImpl twoPhaseCommit;
   private static List<KeyValueStoreInterface> replicas;
+  private static ShardRouter shards;
+  private static final ThreadLocal<RequestParser> PARSERS = ThreadLocal.withInitial(RequestParser::new);
 
   public static void setTwoPhaseCommit(TwoPhaseCommitImpl twoPhaseCommit) {
     RequestProcessor.twoPhaseCommit = twoPhaseCommit;
+    if (replicas != null) {
+      shards = ShardRouter.single(twoPhaseCommit, replicas);
+    }
   }
 
   public static void setReplicas(List<KeyValueStoreInterface> replicas) {
     RequestProcessor.replicas = replicas;
+    RequestProcessor.shards = ShardRouter.single(twoPhaseCommit, replicas);
+  }
+
+  // Routes each request to the shard of its key, in place of a single coordinator and replica list.
+  public static void setShards(ShardRouter shards) {
+    RequestProcessor.twoPhaseCommit = shards.getShard(0).getCoordinator();
+    RequestProcessor.replicas = null;
+    RequestProcessor.shards = shards;
   }
 
   public static TwoPhaseCommitImpl getTwoPhaseCommit() {
     return twoPhaseCommit;
   }
 
+  // Pipelined requests start with a request ID tag, "#<id> ", that is echoed in front of the
+  // response. Returns the tag of a line, or null for an untagged line.
+  static String tagOf(String line) {
+    if (!line.startsWith("#")) {
+      return null;
+    }
+    int space = line.indexOf(' ');
+    return space < 0 ? line : line.substring(0, space);
+  }
+
+  // Returns the request of a tagged line without its tag.
+  static String stripTag(String line) {
+    int space = line.indexOf(' ');
+    return space < 0 ? "" : line.substring(space + 1);
+  }
+
+  // Returns the keys a request operates on: every key a MULTI names, else the one key of the
+  // request, or none.
+  static List<String> keysOf(ByteBuffer request) {
+    RequestParser parser = PARSERS.get();
+    if (parser.parse(request) < 2) {
+      return Collections.emptyList();
+    }
+    if (parser.command() != RequestParser.MULTI) {
+      return Collections.singletonList(parser.key());
+    }
+    List<Operation> operations = operationsOf(parser);
+    if (operations == null) {
+      return Collections.emptyList();
+    }
+    List<String> keys = new ArrayList<>(operations.size());
+    for (Operation operation : operations) {
+      keys.add(operation.getKey());
+    }
+    return keys;
+  }
+
+  // True for requests that only read the store and may run concurrently with each other.
+  static boolean isRead(ByteBuffer request) {
+    RequestParser parser = PARSERS.get();
+    parser.parse(request);
+    return parser.command() == RequestParser.GET;
+  }
+
   public static String processRequest(String request) {
-    String[] parts = request.split(" ");
-    if (parts.length < 2) {
-      return "ERROR Malformed request: " + request;
+    return processRequest(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  // Handles the request between the buffer's position and limit, parsing it in place. Fixed
+  // responses are constants and a GET returns the replica's string as is, so the only allocations
+  // on the common paths are the key and value Strings the replicas take.
+  public static String processRequest(ByteBuffer request) {
+    if (!Metrics.ENABLED) {
+      return execute(PARSERS.get(), request);
     }
+    long start = System.nanoTime();
+    RequestParser parser = PARSERS.get();
+    String response = execute(parser, request);
+    // A failed commit answers "PUT ERROR" or "DELETE ERROR"; a GET of a missing key is not an error.
+    Metrics.recordCommand(parser.command(), start,
+            response == null || response.startsWith("ERROR") || response.endsWith(" ERROR"));
+    return response;
+  }
 
-    String command = parts[0];
-    String key = parts[1];
-    String value = "";
+  private static String execute(RequestParser parser, ByteBuffer request) {
+    int tokens = parser.parse(request);
+    if (parser.command() == RequestParser.STATS) {
+      return "STATS " + Metrics.report();
+    }
+    if (tokens < 2) {
+      return "ERROR Malformed request: " + parser.request();
+    }
 
     try {
-      switch (command) {
-        case "PUT":
-          if (parts.length != 3) {
-            return "ERROR Malformed PUT request: " + request;
+      switch (parser.command()) {
+        case RequestParser.PUT:
+          if (tokens != 3) {
+            return "ERROR Malformed PUT request: " + parser.request();
+          }
+          boolean result = shards.shardFor(parser.key()).submit("PUT", parser.key(), parser.value());
+          if (ServerConfig.VERBOSE) {
+            System.out.println("PUT result: " + result);
           }
-          value = parts[2];
-          boolean result = twoPhaseCommit.performTwoPhaseCommit("PUT", key, value);
-          System.out.println("PUT result: " + result);
           return result ? "PUT OK" : "PUT ERROR";
 
-        case "GET":
-          String getValue = replicas.get(0).get(key);
-          System.out.println("GET result: " + getValue);
+        case RequestParser.GET:
+          String getValue = shards.shardFor(parser.key()).get(parser.key());
+          if (ServerConfig.VERBOSE) {
+            System.out.println("GET result: " + getValue);
+          }
           return getValue;
 
-        case "DELETE":
-          boolean deleteResult = twoPhaseCommit.performTwoPhaseCommit("DELETE", key, null);
-          System.out.println("DELETE result: " + deleteResult);
+        case RequestParser.DELETE:
+          boolean deleteResult = shards.shardFor(parser.key()).submit("DELETE", parser.key(), null);
+          if (ServerConfig.VERBOSE) {
+            System.out.println("DELETE result: " + deleteResult);
+          }
           return deleteResult ? "DELETE OK" : "DELETE ERROR";
 
+        case RequestParser.MULTI:
+          return multi(parser);
+
         default:
-          return "ERROR Invalid command: " + command;
+          return "ERROR Invalid command: " + parser.commandName();
       }
     } catch (RemoteException e) {
       System.out.println("ERROR Remote exception: " + e.getMessage());
       return "ERROR Remote exception: " + e.getMessage();
     }
   }
+
+  // "MULTI <op> <op> ...", where each op is "PUT <key> <value>", "DELETE <key>" or "GET <key>", runs
+  // the operations as one transaction. The answer is "MULTI OK: " followed by the response of each
+  // operation, separated by "; " (keys and values hold no spaces, so this cannot be ambiguous), or
+  // "MULTI ERROR" if the transaction was aborted and none of its writes were applied.
+  private static String multi(RequestParser parser) throws RemoteException {
+    List<Operation> operations = operationsOf(parser);
+    if (operations == null) {
+      return "ERROR Malformed MULTI request: " + parser.request();
+    }
+    List<String> responses = shards.transact(operations);
+    if (ServerConfig.VERBOSE) {
+      System.out.println("MULTI result: " + responses);
+    }
+    return responses != null ? "MULTI OK: " + String.join("; ", responses) : "MULTI ERROR";
+  }
+
+  // The operations of a parsed MULTI request, or null if it is malformed.
+  private static List<Operation> operationsOf(RequestParser parser) {
+    List<String> tokens = parser.arguments();
+    List<Operation> operations = new ArrayList<>();
+    int i = 0;
+    while (i < tokens.size()) {
+      String operation = tokens.get(i);
+      int arguments = operation.equals("PUT") ? 2 : operation.equals("GET") || operation.equals("DELETE") ? 1 : -1;
+      if (arguments < 0 || i + arguments >= tokens.size()) {
+        return null;
+      }
+      operations.add(new Operation(operation, tokens.get(i + 1), arguments == 2 ? tokens.get(i + 2) : null));
+      i += arguments + 1;
+    }
+    return operations;
+  }
+
+  // Number of bytes encode() writes for a response.
+  public static int encodedLength(String response) {
+    int length = response.length();
+    for (int i = 0; i < response.length(); i++) {
+      char c = response.charAt(i);
+      if (c >= 0x80) {
+        length += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+      }
+    }
+    return length;
+  }
+
+  // Writes a response as UTF-8 at the buffer's position without an intermediate byte array.
+  // Returns false, leaving the buffer unchanged, if the response does not fit.
+  public static boolean encode(String response, ByteBuffer out) {
+    int length = response.length();
+    if (length > out.remaining()) {
+      return false;
+    }
+    int start = out.position();
+    for (int i = 0; i < length; i++) {
+      char c = response.charAt(i);
+      if (c >= 0x80) {
+        out.position(start);
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > out.remaining()) {
+          return false;
+        }
+        out.put(bytes);
+        return true;
+      }
+      out.put((byte) c);
+    }
+    return true;
+  }
 }
@@ -0,0 +1,182 @@
+package server;
+
+// Central place for the server tunables. Every value can be overridden at startup with a JVM
+// system property, e.g. java -Dkvstore.coordinator.threads=128 server.TCPServer ...
+public final class ServerConfig {
+
+  // Print a line to standard output for every request handled by a replica.
+  public static final boolean VERBOSE = booleanProperty("kvstore.verbose", true);
+
+  // Number of threads the 2PC coordinator uses to fan out calls to the replicas.
+  public static final int COORDINATOR_THREADS = intProperty("kvstore.coordinator.threads", 64);
+
+  // Maximum number of replica calls that can wait for a coordinator thread before the
+  // submitting thread runs the call itself.
+  public static final int COORDINATOR_QUEUE_SIZE = intProperty("kvstore.coordinator.queue", 1024);
+
+  // Executor used by the coordinator: "platform" (bounded pool) or "virtual" (JDK 21+).
+  public static final String COORDINATOR_EXECUTOR = stringProperty("kvstore.coordinator.executor", "platform");
+
+  // Per-phase timeouts of the two-phase commit protocol, in milliseconds.
+  public static final long PREPARE_TIMEOUT_MILLIS = longProperty("kvstore.2pc.prepareTimeoutMillis", 5000);
+  public static final long COMMIT_TIMEOUT_MILLIS = longProperty("kvstore.2pc.commitTimeoutMillis", 5000);
+
+  // Number of times a transaction is retried when a replica rejects its prepare because another
+  // in-flight transaction holds one of its keys.
+  public static final int CONFLICT_RETRIES = intProperty("kvstore.2pc.conflictRetries", 3);
+
+  // "all" waits for every replica in both phases of 2PC. "quorum" commits once QUORUM replicas
+  // (0 or anything less than a majority means a majority) have prepared and then once they have
+  // committed; a replica left behind catches up from the coordinator's replication log in the
+  // background, retrying every CATCH_UP_RETRY_MILLIS while it is unreachable.
+  public static final String COMMIT_MODE = stringProperty("kvstore.2pc.mode", "all");
+  public static final int QUORUM = intProperty("kvstore.2pc.quorum", 0);
+  public static final long CATCH_UP_RETRY_MILLIS = longProperty("kvstore.2pc.catchUpRetryMillis", 100);
+
+  // With ONE_PHASE a coordinator whose shard has a single replica sends one combined
+  // prepare-and-commit call instead of two rounds. With EARLY_ACK a write is acknowledged once
+  // every replica has voted yes and the commit decision is on disk in the coordinator log; the
+  // commit messages are then delivered in the background.
+  public static final boolean ONE_PHASE = booleanProperty("kvstore.2pc.onePhase", true);
+  public static final boolean EARLY_ACK = booleanProperty("kvstore.2pc.earlyAck", false);
+
+  // With DECISION_LOG the front-end servers log their coordinators' commit decisions in
+  // <DATA_DIR>/<COORDINATOR_NAME> (by default named after the server and its port) and finish
+  // in-doubt transactions: every IN_DOUBT_MILLIS, and once right after a restart, each coordinator
+  // asks its replicas for transactions prepared longer than that, commits the ones the log has a
+  // decision for and aborts the rest of its own. The log is compacted once it reaches
+  // DECISION_LOG_BYTES.
+  public static final boolean DECISION_LOG = booleanProperty("kvstore.2pc.decisionLog", true);
+  public static final String COORDINATOR_NAME = stringProperty("kvstore.coordinator.name", "");
+  public static final long IN_DOUBT_MILLIS = longProperty("kvstore.2pc.inDoubtMillis", 10000);
+  public static final long DECISION_LOG_BYTES = longProperty("kvstore.2pc.decisionLogBytes", 16L * 1024 * 1024);
+
+  // Sharding: the replicas a front-end is given are split into SHARDS equal replica groups, each
+  // with its own coordinator, and keys are spread over the groups by consistent hashing with
+  // SHARD_VNODES ring points per group. KeyValueStoreServer starts SHARD_REPLICAS replicas for
+  // each shard.
+  public static final int SHARDS = intProperty("kvstore.shards", 1);
+  public static final int SHARD_VNODES = intProperty("kvstore.shard.vnodes", 256);
+  public static final int SHARD_REPLICAS = intProperty("kvstore.shard.replicas", 5);
+
+  // Group commit: concurrent writes are combined into one 2PC round of at most BATCH_MAX_OPS
+  // operations. BATCH_WINDOW_MICROS is how long the coordinator waits for more writes to join a
+  // batch; with 0 it only batches writes that queued up while the previous round was in flight.
+  // Up to BATCH_IN_FLIGHT rounds run at once, each for its own share of the keys.
+  public static final boolean BATCH_ENABLED = booleanProperty("kvstore.batch.enabled", true);
+  public static final int BATCH_MAX_OPS = intProperty("kvstore.batch.maxOps", 64);
+  public static final long BATCH_WINDOW_MICROS = longProperty("kvstore.batch.windowMicros", 0);
+  public static final int BATCH_IN_FLIGHT = intProperty("kvstore.batch.inFlight", 4);
+
+  // A replica remembers up to STAGING_ABORTED_IDS recent aborts and rejects a prepare that arrives
+  // after its abort, forgetting the oldest when full (0 remembers none).
+  //
+  // That covers aborts arriving before their prepare, not prepares that never get an outcome. A
+  // replica never gives up a transaction it voted yes for on its own, as the coordinator may have
+  // decided to commit it; only a coordinator log says how it ended. Orphans are resolved by their
+  // coordinator once it is back, or by any other coordinator with a log in the same DATA_DIR
+  // while theirs is down. A coordinator without a log, or with its log out of reach, leaves its
+  // orphans prepared for good, holding their keys and staged values. STAGING_MAX_TRANSACTIONS caps
+  // them: a replica holding that many prepared transactions votes no to new ones (0 is no limit),
+  // and a front-end refuses to start without a coordinator log unless a limit is set.
+  public static final int STAGING_ABORTED_IDS = intProperty("kvstore.staging.abortedIds", 65536);
+  public static final int STAGING_MAX_TRANSACTIONS = intProperty("kvstore.staging.maxTransactions", 0);
+
+  // Number of lock stripes a replica uses to serialize writes to the same key.
+  public static final int LOCK_STRIPES = intProperty("kvstore.lockStripes", 256);
+
+  // Replica persistence: each replica writes a write-ahead log under <DATA_DIR>/<replica name>.
+  // With WAL_FSYNC disabled the log is written but not forced to disk before acknowledging.
+  public static final String DATA_DIR = stringProperty("kvstore.data.dir", "data");
+  public static final boolean WAL_ENABLED = booleanProperty("kvstore.wal.enabled", true);
+  public static final boolean WAL_FSYNC = booleanProperty("kvstore.wal.fsync", true);
+
+  // A replica writes a snapshot and truncates its log once the active log segment has grown past
+  // CHECKPOINT_LOG_BYTES (0 disables checkpoints). The size is checked every CHECKPOINT_CHECK_SECONDS.
+  public static final long CHECKPOINT_LOG_BYTES = longProperty("kvstore.checkpoint.logBytes", 64L * 1024 * 1024);
+  public static final long CHECKPOINT_CHECK_SECONDS = longProperty("kvstore.checkpoint.checkSeconds", 10);
+
+  // Replica storage engine: "heap" (ConcurrentHashMap), "mapped" (UTF-8 bytes in memory-mapped
+  // files under <DATA_DIR>/<replica name>/storage, split into STORAGE_SHARDS independently locked
+  // shards, each mapped in chunks of STORAGE_CHUNK_BYTES) or "offheap" (the same layout in direct
+  // buffers allocated in arenas of STORAGE_ARENA_BYTES, which also caps the size of one entry).
+  public static final String STORAGE_ENGINE = stringProperty("kvstore.storage.engine", "heap");
+  public static final int STORAGE_SHARDS = intProperty("kvstore.storage.shards", 16);
+  public static final int STORAGE_CHUNK_BYTES = intProperty("kvstore.storage.chunkBytes", 64 * 1024 * 1024);
+  public static final int STORAGE_ARENA_BYTES = intProperty("kvstore.storage.arenaBytes", 4 * 1024 * 1024);
+
+  // Binary NIO replica transport. Each replica server also listens on its RMI port plus
+  // NIO_REPLICA_PORT_OFFSET (0 disables it); coordinators use it for replicas given as
+  // nio://host:port. Calls run on NIO_REPLICA_WORKERS threads per replica (0 runs them on the I/O
+  // thread, for replicas that never wait on an fsync) and a client gives up on a call after
+  // NIO_REQUEST_TIMEOUT_MILLIS.
+  public static final int NIO_REPLICA_PORT_OFFSET = intProperty("kvstore.nio.portOffset", 1000);
+  public static final int NIO_REPLICA_WORKERS = intProperty("kvstore.nio.workers", 16);
+  public static final long NIO_REQUEST_TIMEOUT_MILLIS = longProperty("kvstore.nio.requestTimeoutMillis", 10000);
+
+  // How TCPServer handles client connections: "selector" (TCP_IO_THREADS selector threads
+  // multiplex every connection and requests run on TCP_WORKERS threads), "virtual" (one virtual
+  // thread per connection, JDK 21+) or "pool" (the original bounded pool of blocking handlers).
+  // A connection whose line exceeds TCP_MAX_LINE_BYTES is closed.
+  public static final String TCP_MODE = stringProperty("kvstore.tcp.mode", "selector");
+  public static final int TCP_IO_THREADS = intProperty("kvstore.tcp.ioThreads", Runtime.getRuntime().availableProcessors());
+  public static final int TCP_WORKERS = intProperty("kvstore.tcp.workers", 64);
+  public static final int TCP_MAX_LINE_BYTES = intProperty("kvstore.tcp.maxLineBytes", 1024 * 1024);
+
+  // UDPServer reads datagrams on UDP_RECEIVERS threads, each with its own socket bound to the port
+  // with SO_REUSEPORT where supported. Requests are read into a pool of UDP_BUFFERS direct buffers
+  // of UDP_MAX_DATAGRAM_BYTES, which also caps the requests in flight. With UDP_INLINE_READS a
+  // receiver answers GETs itself and sends their replies in batches of up to UDP_BATCH; other
+  // requests run on UDP_WORKERS threads.
+  public static final int UDP_RECEIVERS = intProperty("kvstore.udp.receivers", Runtime.getRuntime().availableProcessors());
+  public static final int UDP_WORKERS = intProperty("kvstore.udp.workers", 64);
+  public static final int UDP_BUFFERS = intProperty("kvstore.udp.buffers", 1024);
+  public static final int UDP_MAX_DATAGRAM_BYTES = intProperty("kvstore.udp.maxDatagramBytes", 4096);
+  public static final boolean UDP_INLINE_READS = booleanProperty("kvstore.udp.inlineReads", true);
+  public static final int UDP_BATCH = intProperty("kvstore.udp.batch", 64);
+
+  // How GETs pick a replica: "roundRobin", "leastOutstanding" (fewest reads in flight, of two picked
+  // at random), "latency" (lowest moving-average latency times reads in flight, of two picked at
+  // random) or "primary" (always the first replica). A replica whose read fails is skipped for
+  // READ_RETRY_MILLIS before reads try it again.
+  public static final String READ_POLICY = stringProperty("kvstore.read.policy", "leastOutstanding");
+  public static final long READ_RETRY_MILLIS = longProperty("kvstore.read.retryMillis", 1000);
+
+  // Coordinator-side cache of GET responses (see ReadCache), off with 0 entries. Only safe when the
+  // front-end's coordinator is the only writer to the replicas, since it is invalidated by the
+  // writes that coordinator commits.
+  public static final int CACHE_ENTRIES = intProperty("kvstore.cache.entries", 0);
+  public static final long CACHE_MAX_BYTES = longProperty("kvstore.cache.maxBytes", 64L * 1024 * 1024);
+
+  // Request and 2PC metrics, reported by the STATS command and over JMX (kvstore:type=Metrics).
+  public static final boolean METRICS_ENABLED = booleanProperty("kvstore.metrics.enabled", true);
+
+  // Server and client log files are written by a background thread. LOG_LEVEL is "info" (every
+  // line), "error" (errors only) or "off". Up to LOG_BUFFER lines can wait for the writer; when the
+  // buffer is full LOG_WHEN_FULL decides whether a line is dropped ("drop") or the logging thread
+  // waits ("block").
+  public static final String LOG_LEVEL = stringProperty("kvstore.log.level", "info");
+  public static final int LOG_BUFFER = intProperty("kvstore.log.buffer", 8192);
+  public static final String LOG_WHEN_FULL = stringProperty("kvstore.log.whenFull", "drop");
+
+  private ServerConfig() {
+  }
+
+  static int intProperty(String name, int defaultValue) {
+    return Integer.getInteger(name, defaultValue);
+  }
+
+  static long longProperty(String name, long defaultValue) {
+    return Long.getLong(name, defaultValue);
+  }
+
+  static boolean booleanProperty(String name, boolean defaultValue) {
+    String value = System.getProperty(name);
+    return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+
+  static String stringProperty(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+}
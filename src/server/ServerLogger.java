@@ -1,14 +1,10 @@
 package server;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 public class ServerLogger {
   // The log file where all server logs will be written.
   private static final String LOG_FILE = "server.log";
+  // Lines are queued here and written to LOG_FILE by a background thread.
+  private static final AsyncLogWriter WRITER = new AsyncLogWriter(LOG_FILE, "server-log-writer");
 
   // Logs a message related to TCP communication.
   public static void logTCP(String message) {
@@ -42,22 +38,11 @@ public class ServerLogger {
 
   // Logs a general message with a specified protocol (TCP/UDP).
   private static void log(String protocol, String message) {
-    try (PrintWriter writer = new PrintWriter(new FileWriter(LOG_FILE, true))) {
-      String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date());
-      writer.println(timeStamp + " [" + protocol + "] " + message);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    WRITER.log(AsyncLogWriter.INFO, protocol, message, null);
   }
 
   // Logs an error message and stack trace with a specified protocol (TCP/UDP).
   private static void logError(String protocol, String message, Exception e) {
-    try (PrintWriter writer = new PrintWriter(new FileWriter(LOG_FILE, true))) {
-      String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date());
-      writer.println(timeStamp + " [" + protocol + " ERROR] " + message);
-      e.printStackTrace(writer);
-    } catch (IOException ex) {
-      ex.printStackTrace();
-    }
+    WRITER.log(AsyncLogWriter.ERROR, protocol, message, e);
   }
 }
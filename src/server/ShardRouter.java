@@ -0,0 +1,281 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Splits the keyspace over shards, each a replica group with its own 2PC coordinator, so a write
+// only involves the replicas of its key's shard and adding groups adds capacity instead of write
+// cost. Keys are placed by consistent hashing: every shard owns kvstore.shard.vnodes points on a
+// 64-bit hash ring, and a key belongs to the shard owning the first point at or after the key's
+// hash. Many points per shard keep the shares even, and adding a shard only moves the keys that
+// fall on its new points. A shard's points depend only on its position, so every front-end given
+// the same groups in the same order places keys the same way.
+//
+// With a single shard every key goes to it without hashing, which is the unsharded setup.
+public final class ShardRouter {
+  private final Shard[] shards;
+  // Ring points in ascending order and the shard owning each.
+  private final long[] points;
+  private final int[] owners;
+
+  public ShardRouter(List<Shard> shards, int virtualNodes) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("At least one shard is required");
+    }
+    // A transaction across shards is one 2PC round over all their replicas, which a quorum-mode
+    // coordinator cannot take part in.
+    for (Shard shard : shards) {
+      if (shards.size() > 1 && shard.coordinator != null && shard.coordinator.isQuorumMode()) {
+        throw new IllegalArgumentException("More than one shard needs kvstore.2pc.mode=all");
+      }
+    }
+    this.shards = shards.toArray(new Shard[0]);
+    long[][] ring = new long[shards.size() * virtualNodes][];
+    for (int s = 0; s < shards.size(); s++) {
+      for (int v = 0; v < virtualNodes; v++) {
+        ring[s * virtualNodes + v] = new long[]{hash("shard" + s + "#" + v), s};
+      }
+    }
+    Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+    this.points = new long[ring.length];
+    this.owners = new int[ring.length];
+    for (int i = 0; i < ring.length; i++) {
+      points[i] = ring[i][0];
+      owners[i] = (int) ring[i][1];
+    }
+  }
+
+  // A router over one replica group, the unsharded setup. coordinator may be null for a front-end
+  // that only reads.
+  public static ShardRouter single(TwoPhaseCommitImpl coordinator, List<KeyValueStoreInterface> replicas) {
+    List<Shard> shards = new ArrayList<>();
+    shards.add(new Shard(coordinator, replicas));
+    return new ShardRouter(shards, 1);
+  }
+
+  // Splits the replicas into the given number of consecutive, equally sized groups and starts a
+  // coordinator for each, e.g. six replicas and two shards are the groups 1-3 and 4-6.
+  public static ShardRouter of(List<KeyValueStoreInterface> replicas, int shardCount) {
+    if (shardCount < 1 || replicas.size() % shardCount != 0) {
+      throw new IllegalArgumentException("Cannot split " + replicas.size() + " replicas into " + shardCount + " shards of equal size");
+    }
+    if (shardCount == 1) {
+      return single(new TwoPhaseCommitImpl(replicas), replicas);
+    }
+    int groupSize = replicas.size() / shardCount;
+    List<Shard> shards = new ArrayList<>();
+    for (int s = 0; s < shardCount; s++) {
+      List<KeyValueStoreInterface> group = new ArrayList<>(replicas.subList(s * groupSize, (s + 1) * groupSize));
+      shards.add(new Shard(new TwoPhaseCommitImpl("shard" + (s + 1) + ".", group), group));
+    }
+    return new ShardRouter(shards, ServerConfig.SHARD_VNODES);
+  }
+
+  public Shard shardFor(String key) {
+    if (shards.length == 1) {
+      return shards[0];
+    }
+    int index = Arrays.binarySearch(points, hash(key));
+    if (index < 0) {
+      index = -index - 1;
+      if (index == points.length) {
+        index = 0;
+      }
+    }
+    return shards[owners[index]];
+  }
+
+  // Runs PUT, DELETE and GET operations as one atomic transaction and returns a response per
+  // operation, like the single-key commands would, or null if the transaction was aborted.
+  //
+  // The operations are grouped by shard and run in one 2PC round: with the shard's coordinator
+  // when they all fall in one shard, otherwise across the replicas of every shard named. A GET is
+  // prepared like a write, locking its key without changing it, and answered once every key of the
+  // transaction is locked and before anything commits, from the latest committed value or the
+  // transaction's own earlier write to the key. No other transaction can change a key read until
+  // the writes have committed, so the transaction is serializable.
+  //
+  // One shard the transaction only reads is left out of the round. It is read last, once every
+  // other key is locked, on one of its replicas, which locks the keys only while it reads them and
+  // votes read-only: it logs nothing and gets no commit. Nothing else the transaction touches can
+  // change until it ends, so it still reads and writes as of that moment. Only one shard can
+  // release its keys that early: a transaction writing two of them could commit between their
+  // reads. A transaction that writes nothing and reads one shard so needs no 2PC round at all. A
+  // quorum-mode shard stays in the round, as a single replica may miss its latest commits.
+  public List<String> transact(List<Operation> operations) throws RemoteException {
+    Map<Shard, List<Operation>> batches = new LinkedHashMap<>();
+    Set<Shard> written = new HashSet<>();
+    for (Operation operation : operations) {
+      Shard shard = shardFor(operation.getKey());
+      switch (operation.getOperation()) {
+        case "GET":
+          break;
+        case "PUT":
+        case "DELETE":
+          written.add(shard);
+          break;
+        default:
+          throw new IllegalArgumentException("Invalid operation in transaction: " + operation.getOperation());
+      }
+      batches.computeIfAbsent(shard, s -> new ArrayList<>()).add(operation);
+    }
+    Shard readOnly = null;
+    for (Shard shard : batches.keySet()) {
+      if (!written.contains(shard) && (shard.coordinator == null || !shard.coordinator.isQuorumMode())) {
+        readOnly = shard;
+        break;
+      }
+    }
+    if (Metrics.ENABLED) {
+      Metrics.TRANSACTION_SHARDS.record(written.size());
+      if (readOnly != null) {
+        Metrics.READ_ONLY_SHARDS.increment();
+      }
+    }
+    // The responses of the read-only shard's GETs, by key.
+    Map<String, String> lockedReads = new HashMap<>();
+    List<Operation> reads = readOnly != null ? batches.remove(readOnly) : null;
+    if (batches.isEmpty()) {
+      return readLocked(readOnly, reads, lockedReads) ? answer(operations, lockedReads) : null;
+    }
+    Shard readShard = readOnly;
+    List<String> responses = new ArrayList<>(operations.size());
+    TwoPhaseCommitImpl.WhilePrepared read = () -> {
+      if (readShard != null && !readLocked(readShard, reads, lockedReads)) {
+        return false;
+      }
+      responses.clear();
+      responses.addAll(answer(operations, lockedReads));
+      return true;
+    };
+    boolean committed;
+    if (batches.size() == 1) {
+      Map.Entry<Shard, List<Operation>> only = batches.entrySet().iterator().next();
+      committed = only.getKey().coordinator.performBatchTwoPhaseCommit(only.getValue(), read);
+    } else {
+      List<TwoPhaseCommitImpl> participants = new ArrayList<>(batches.size());
+      for (Shard shard : batches.keySet()) {
+        participants.add(shard.coordinator);
+      }
+      committed = TwoPhaseCommitImpl.performTransaction(participants, new ArrayList<>(batches.values()), read);
+    }
+    return committed ? responses : null;
+  }
+
+  // The response of every operation: a write's own, and for a GET the transaction's own earlier
+  // write to the key, else the value read from the read-only shard, else the latest committed one.
+  private List<String> answer(List<Operation> operations, Map<String, String> lockedReads) throws RemoteException {
+    List<String> responses = new ArrayList<>(operations.size());
+    // The transaction's own writes so far, by key, with null for a delete.
+    Map<String, String> ownWrites = new HashMap<>();
+    for (Operation operation : operations) {
+      String key = operation.getKey();
+      if (!operation.getOperation().equals("GET")) {
+        ownWrites.put(key, operation.getValue());
+        responses.add(operation.getOperation() + " OK");
+      } else if (ownWrites.containsKey(key)) {
+        String value = ownWrites.get(key);
+        responses.add(value != null ? "GET OK: " + value : "GET ERROR: Key not found");
+      } else if (lockedReads.containsKey(key)) {
+        responses.add(lockedReads.get(key));
+      } else {
+        responses.add(shardFor(key).getLatest(key));
+      }
+    }
+    return responses;
+  }
+
+  // Reads the GETs of the read-only shard into values, retrying like a conflicting transaction
+  // while another transaction holds one of the keys. Returns false once the retries are used up.
+  private static boolean readLocked(Shard shard, List<Operation> reads, Map<String, String> values)
+          throws RemoteException {
+    for (int attempt = 0; ; attempt++) {
+      List<String> responses = shard.reads.prepareReadOnly(TwoPhaseCommitImpl.newTransactionId(), reads);
+      if (responses != null) {
+        for (int i = 0; i < reads.size(); i++) {
+          values.put(reads.get(i).getKey(), responses.get(i));
+        }
+        return true;
+      }
+      if (attempt >= ServerConfig.CONFLICT_RETRIES || !TwoPhaseCommitImpl.backOff(attempt)) {
+        return false;
+      }
+    }
+  }
+
+  // Closes the coordinators of every shard.
+  public void close() {
+    for (Shard shard : shards) {
+      if (shard.coordinator != null) {
+        shard.coordinator.close();
+      }
+    }
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  public Shard getShard(int index) {
+    return shards[index];
+  }
+
+  // FNV-1a over the characters, finished with the MurmurHash3 mixer so that keys differing only in
+  // their last characters, like key1 and key2, land far apart on the ring.
+  static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  // One replica group: its coordinator for writes and a read router over its replicas.
+  public static final class Shard {
+    private final TwoPhaseCommitImpl coordinator;
+    private final ReadRouter reads;
+
+    public Shard(TwoPhaseCommitImpl coordinator, List<KeyValueStoreInterface> replicas) {
+      this.coordinator = coordinator;
+      this.reads = new ReadRouter(replicas, coordinator);
+    }
+
+    public TwoPhaseCommitImpl getCoordinator() {
+      return coordinator;
+    }
+
+    public boolean submit(String operation, String key, String value) {
+      return coordinator.submit(operation, key, value);
+    }
+
+    // Answers with the value of an acknowledged write whose commit is still being delivered, else
+    // from the coordinator's read cache when it holds the key, otherwise from a replica.
+    public String get(String key) throws RemoteException {
+      if (coordinator == null) {
+        return reads.get(key, null);
+      }
+      String pending = coordinator.pendingRead(key);
+      return pending != null ? pending : reads.get(key, coordinator.getReadCache());
+    }
+
+    // Like get(), but never from the read cache, which may still hold the value a transaction
+    // that has just committed replaced: it is invalidated only once the commit has been answered.
+    String getLatest(String key) throws RemoteException {
+      String pending = coordinator.pendingRead(key);
+      return pending != null ? pending : reads.get(key, null);
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Point-in-time image of a replica stored as snapshot-<n>.dat, where n is the first log segment
+// that must be replayed on top of it. The key/value pairs are copied while writers keep running
+// (a fuzzy snapshot): a pair updated during the copy may or may not be included, and replaying
+// the log from segment n brings every such key to its final value.
+class Snapshot {
+  private static final int MAGIC = 0x4b565353; // "KVSS"
+  private static final int VERSION = 1;
+  private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-(\\d+)\\.dat");
+
+  private Snapshot() {
+  }
+
+  // Writes a snapshot atomically: the data goes to a temporary file which is fsynced and then
+  // renamed, so a crash never leaves a partial snapshot-<n>.dat behind.
+  static void write(Path directory, long segment, Collection<PreparedTransaction> prepared,
+                    Iterable<Map.Entry<String, String>> entries) throws IOException {
+    Path temp = directory.resolve("snapshot.tmp");
+    CRC32 crc = new CRC32();
+    long count = 0;
+    try (OutputStream file = Files.newOutputStream(temp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(segment);
+      out.writeInt(prepared.size());
+      for (PreparedTransaction transaction : prepared) {
+        writeString(out, transaction.getTransactionId());
+        out.writeInt(transaction.getOperations().size());
+        for (Operation op : transaction.getOperations()) {
+          writeString(out, op.getOperation());
+          writeString(out, op.getKey());
+          writeString(out, op.getValue());
+        }
+      }
+      for (Map.Entry<String, String> entry : entries) {
+        out.writeByte(1);
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+        count++;
+      }
+      out.writeByte(0);
+      out.writeLong(count);
+      out.flush();
+      file.write(longBytes(crc.getValue()));
+    }
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(temp, path(directory, segment), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  // Loads the newest intact snapshot into the given store and transaction consumer and returns the
+  // log segment replay has to start from, or 0 when there is no usable snapshot.
+  static long loadLatest(Path directory, StorageEngine store, Consumer<PreparedTransaction> prepared)
+          throws IOException {
+    List<Long> snapshots = list(directory);
+    for (int i = snapshots.size() - 1; i >= 0; i--) {
+      long segment = snapshots.get(i);
+      List<PreparedTransaction> transactions = new ArrayList<>();
+      try {
+        load(path(directory, segment), store, transactions);
+        transactions.forEach(prepared);
+        return segment;
+      } catch (IOException e) {
+        System.err.println("Ignoring unreadable snapshot " + path(directory, segment) + ": " + e);
+        store.clear();
+      }
+    }
+    return 0;
+  }
+
+  // Deletes the snapshots older than the one for the given segment.
+  static void deleteBefore(Path directory, long segment) throws IOException {
+    for (long number : list(directory)) {
+      if (number < segment) {
+        Files.deleteIfExists(path(directory, number));
+      }
+    }
+  }
+
+  private static void load(Path path, StorageEngine store, List<PreparedTransaction> prepared)
+          throws IOException {
+    long size = Files.size(path);
+    CRC32 crc = new CRC32();
+    try (InputStream file = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+         DataInputStream in = new DataInputStream(new CheckedInputStream(new LimitedInputStream(file, size - 8), crc))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a snapshot file");
+      }
+      in.readLong();
+      int transactions = in.readInt();
+      for (int t = 0; t < transactions; t++) {
+        String transactionId = readString(in);
+        int count = in.readInt();
+        List<Operation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          operations.add(new Operation(readString(in), readString(in), readString(in)));
+        }
+        prepared.add(new PreparedTransaction(transactionId, operations));
+      }
+      long count = 0;
+      while (in.readByte() == 1) {
+        store.put(readString(in), readString(in));
+        count++;
+      }
+      if (in.readLong() != count) {
+        throw new IOException("Snapshot entry count mismatch");
+      }
+      long expected = new DataInputStream(file).readLong();
+      if (expected != crc.getValue()) {
+        throw new IOException("Snapshot checksum mismatch");
+      }
+    }
+  }
+
+  private static List<Long> list(Path directory) throws IOException {
+    List<Long> snapshots = new ArrayList<>();
+    if (!Files.isDirectory(directory)) {
+      return snapshots;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*.dat")) {
+      for (Path file : files) {
+        Matcher matcher = SNAPSHOT_NAME.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          snapshots.add(Long.parseLong(matcher.group(1)));
+        }
+      }
+    }
+    Collections.sort(snapshots);
+    return snapshots;
+  }
+
+  private static Path path(Path directory, long segment) {
+    return directory.resolve(String.format("snapshot-%020d.dat", segment));
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] longBytes(long value) {
+    byte[] bytes = new byte[8];
+    for (int i = 7; i >= 0; i--) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+    return bytes;
+  }
+
+  // Exposes only the first limit bytes of a stream, so the checksum trailer is not part of the
+  // checked data.
+  private static class LimitedInputStream extends java.io.FilterInputStream {
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = super.read();
+      if (b >= 0) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = super.read(buffer, offset, (int) Math.min(length, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+
+    @Override
+    public void close() {
+      // The underlying stream is closed by its owner.
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+// Storage behind a replica's key/value data. All methods are thread-safe. The replica serializes
+// writes to the same key itself, so engines only need to make each call atomic.
+public interface StorageEngine extends AutoCloseable {
+  String get(String key);
+
+  void put(String key, String value);
+
+  // Removes the key and returns true if it was present.
+  boolean remove(String key);
+
+  boolean containsKey(String key);
+
+  int size();
+
+  // Weakly consistent view of every entry: entries added or removed while iterating may or may
+  // not be returned, but every entry present for the whole iteration is returned at least once.
+  Iterable<Map.Entry<String, String>> entries();
+
+  void clear();
+
+  @Override
+  void close() throws IOException;
+
+  // Creates the engine selected with kvstore.storage.engine. Engines that need files keep them
+  // under directory.
+  static StorageEngine create(String type, Path directory) throws IOException {
+    switch (type) {
+      case "heap":
+        return new HeapStorageEngine();
+      case "mapped":
+        return new MappedStorageEngine(directory, ServerConfig.STORAGE_SHARDS, ServerConfig.STORAGE_CHUNK_BYTES);
+      case "offheap":
+        return new OffHeapStorageEngine(ServerConfig.STORAGE_SHARDS, ServerConfig.STORAGE_ARENA_BYTES);
+      default:
+        throw new IllegalArgumentException("Unknown storage engine: " + type);
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A fixed array of locks indexed by key hash. Writers to unrelated keys usually land on different
+// stripes and proceed in parallel, while writers to the same key are serialized.
+class StripedLocks {
+  private final ReentrantLock[] locks;
+  private final int mask;
+
+  StripedLocks(int stripes) {
+    int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    this.locks = new ReentrantLock[size];
+    for (int i = 0; i < size; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    this.mask = size - 1;
+  }
+
+  ReentrantLock lockFor(String key) {
+    return locks[stripe(key)];
+  }
+
+  // Locks the stripes of all keys in ascending stripe order, so two callers locking overlapping
+  // key sets cannot deadlock. Returns the locked stripes, to be passed to unlockAll().
+  int[] lockAll(Collection<String> keys) {
+    int[] stripes = keys.stream().mapToInt(this::stripe).distinct().sorted().toArray();
+    for (int stripe : stripes) {
+      locks[stripe].lock();
+    }
+    return stripes;
+  }
+
+  void unlockAll(int[] stripes) {
+    for (int i = stripes.length - 1; i >= 0; i--) {
+      locks[stripes[i]].unlock();
+    }
+  }
+
+  private int stripe(String key) {
+    int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+}
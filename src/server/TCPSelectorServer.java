@@ -0,0 +1,90 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Selector-driven connection handling for TCPServer (kvstore.tcp.mode=selector). A few I/O threads
+// multiplex every client connection, so an idle client costs a registered channel instead of a
+// thread and the accept loop never waits for a free handler. Requests block on 2PC, so they run on
+// a separate worker pool sized for the number of requests in flight, not the number of clients.
+class TCPSelectorServer implements LineConnection.Listener {
+  private static final int ACCEPT_BACKLOG = 1024;
+
+  private final NioEventLoop[] loops;
+  private final ExecutorService workers;
+  private final AtomicInteger openConnections = new AtomicInteger();
+
+  TCPSelectorServer(int ioThreads, int workerThreads) throws IOException {
+    loops = new NioEventLoop[Math.max(1, ioThreads)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new NioEventLoop("tcp-io-" + (i + 1));
+    }
+    AtomicInteger workerIds = new AtomicInteger();
+    workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+      Thread thread = new Thread(runnable, "tcp-worker-" + workerIds.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Accepts connections on the calling thread until the listening socket fails, handing them to
+  // the I/O threads in turn.
+  void serve(int port) throws IOException {
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+      System.out.println("TCP Server is running with " + loops.length + " selector threads...");
+      ServerLogger.logTCP("TCP Server is running with " + loops.length + " selector threads...");
+      int next = 0;
+      while (serverChannel.isOpen()) {
+        try {
+          SocketChannel channel = serverChannel.accept();
+          channel.socket().setTcpNoDelay(true);
+          openConnections.incrementAndGet();
+          if (ServerConfig.VERBOSE) {
+            System.out.println("Connection established with " + channel.getRemoteAddress());
+            ServerLogger.logTCP("Connection established with " + channel.getRemoteAddress());
+          }
+          new LineConnection(loops[next], channel, workers, this).start();
+          next = (next + 1) % loops.length;
+        } catch (IOException e) {
+          System.err.println("Error accepting client connection. Check server log for more details.");
+          ServerLogger.logTCPError("Error accepting client connection.", e);
+        }
+      }
+    }
+  }
+
+  @Override
+  public String onLine(LineConnection connection, ByteBuffer request) {
+    if (ServerConfig.VERBOSE) {
+      String line = StandardCharsets.UTF_8.decode(request.duplicate()).toString();
+      System.out.println("Received from TCP client " + connection.getRemoteAddress() + ": " + line);
+      ServerLogger.logTCP("Received from TCP client " + connection.getRemoteAddress() + ": " + line);
+    }
+    String response = RequestProcessor.processRequest(request);
+    if (ServerConfig.VERBOSE) {
+      System.out.println("Sent to TCP client " + connection.getRemoteAddress() + ": " + response);
+      ServerLogger.logTCP("Sent to TCP client " + connection.getRemoteAddress() + ": " + response);
+    }
+    return response;
+  }
+
+  @Override
+  public void onClose(LineConnection connection, IOException cause) {
+    int open = openConnections.decrementAndGet();
+    if (ServerConfig.VERBOSE) {
+      System.out.println("Connection closed with " + connection.getRemoteAddress() + ", " + open + " still open");
+    }
+    if (!(cause instanceof EOFException)) {
+      ServerLogger.logTCPError("Error occurred while handling TCP client request.", cause);
+    }
+  }
+}
@@ -2,9 +2,9 @@ package server;
 
 import java.io.*;
 import java.net.*;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -15,24 +15,21 @@ public class TCPServer {
 
   public static void main(String[] args) {
     if (args.length < 2) {
-      System.err.println("Usage: java TCPServer <port number> <rmi registry url> [<rmi registry url>...]");
-      ServerLogger.logTCP("Usage: java TCPServer <port number> <rmi registry url> [<rmi registry url>...]");
+      System.err.println("Usage: java TCPServer <port number> <replica url> [<replica url>...]");
+      ServerLogger.logTCP("Usage: java TCPServer <port number> <replica url> [<replica url>...]");
       System.exit(1);
     }
 
     int portNumber = Integer.parseInt(args[0]);
     String[] registryURLs = java.util.Arrays.copyOfRange(args, 1, args.length);
 
-    TimeoutThreadPool threadPool = new TimeoutThreadPool(THREAD_POOL_SIZE, THREAD_TIMEOUT_SECONDS);
     List<KeyValueStoreInterface> replicas = null;
 
     try {
       replicas = IntStream.range(0, registryURLs.length)
               .mapToObj(i -> {
                 try {
-                  String[] parts = registryURLs[i].split(":");
-                  Registry registry = LocateRegistry.getRegistry(parts[0], Integer.parseInt(parts[1]));
-                  return (KeyValueStoreInterface) registry.lookup("KeyValueStore" + (i + 1));
+                  return ReplicaLocator.locate(registryURLs[i], i + 1);
                 } catch (Exception e) {
                   e.printStackTrace();
                   return null;
@@ -40,18 +37,64 @@ public class TCPServer {
               })
               .collect(Collectors.toList());
 
-      System.out.println("Connected to RMI KeyValueStore replicas");
-      ServerLogger.logTCP("Connected to RMI KeyValueStore replicas");
+      System.out.println("Connected to KeyValueStore replicas");
+      ServerLogger.logTCP("Connected to KeyValueStore replicas");
     } catch (Exception e) {
       System.err.println("Failed to connect to RMI registry. Check server log for more details.");
       ServerLogger.logTCPError("Failed to connect to RMI registry", e);
       System.exit(1);
     }
 
-    TwoPhaseCommitImpl twoPhaseCommit = new TwoPhaseCommitImpl(replicas);
-    RequestProcessor.setTwoPhaseCommit(twoPhaseCommit);
-    RequestProcessor.setReplicas(replicas);
+    // Opened before the coordinators, which finish what a previous run left in doubt.
+    if (ServerConfig.DECISION_LOG) {
+      try {
+        CoordinatorLog.openShared("tcp" + portNumber);
+      } catch (IOException e) {
+        System.err.println("Unable to open the coordinator log, in-doubt transactions will not be resolved: " + e);
+        ServerLogger.logTCPError("Unable to open the coordinator log", e);
+      }
+    }
+    // Without a log nothing resolves the transactions a crash or a lost message leaves prepared on
+    // the replicas, so they must cap them.
+    if (CoordinatorLog.current() == null && ServerConfig.STAGING_MAX_TRANSACTIONS == 0) {
+      System.err.println("No coordinator log to resolve in-doubt transactions with; set kvstore.staging.maxTransactions to run without one");
+      ServerLogger.logTCPError("No coordinator log and no kvstore.staging.maxTransactions", null);
+      System.exit(1);
+    }
+
+    // One coordinator over every replica, or with kvstore.shards one per replica group.
+    RequestProcessor.setShards(ShardRouter.of(replicas, ServerConfig.SHARDS));
 
+    String mode = ServerConfig.TCP_MODE;
+    if (mode.equals("virtual")) {
+      ExecutorService perConnection = CoordinatorThreadPool.newVirtualThreadExecutor();
+      if (perConnection != null) {
+        serveBlocking(portNumber, perConnection::execute);
+        return;
+      }
+      System.err.println("Virtual threads are not available on this JVM, using selector mode");
+      mode = "selector";
+    }
+    if (mode.equals("selector")) {
+      try {
+        new TCPSelectorServer(ServerConfig.TCP_IO_THREADS, ServerConfig.TCP_WORKERS).serve(portNumber);
+      } catch (IOException e) {
+        System.err.println("Error occurred while listening for connections on port. Check server log for more details.");
+        ServerLogger.logTCPError("Error occurred while listening for connections on port " + portNumber, e);
+      }
+      return;
+    }
+
+    TimeoutThreadPool threadPool = new TimeoutThreadPool(THREAD_POOL_SIZE, THREAD_TIMEOUT_SECONDS);
+    try {
+      serveBlocking(portNumber, threadPool::submitTask);
+    } finally {
+      threadPool.shutdown();
+    }
+  }
+
+  // Accepts connections on the calling thread and runs a blocking ClientHandler for each one.
+  private static void serveBlocking(int portNumber, Consumer<Runnable> dispatcher) {
     try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
       System.out.println("TCP Server is running...");
       ServerLogger.logTCP("TCP Server is running...");
@@ -62,11 +105,8 @@ public class TCPServer {
           System.out.println("Connection established with " + clientSocket.getInetAddress());
           ServerLogger.logTCP("Connection established with " + clientSocket.getInetAddress());
 
-          // Initialize RequestProcessor with TwoPhaseCommitImpl instance
-          RequestProcessor.setTwoPhaseCommit(twoPhaseCommit);
-
-          // Handle client request using a thread from the thread pool
-          threadPool.submitTask(new ClientHandler(clientSocket));
+          // Handle the client on a pool thread or on its own virtual thread
+          dispatcher.accept(new ClientHandler(clientSocket));
         } catch (IOException e) {
           System.err.println("Error accepting client connection. Check server log for more details.");
           ServerLogger.logTCPError("Error accepting client connection.", e);
@@ -75,8 +115,6 @@ public class TCPServer {
     } catch (IOException e) {
       System.err.println("Error occurred while listening for connections on port. Check server log for more details.");
       ServerLogger.logTCPError("Error occurred while listening for connections on port " + portNumber, e);
-    } finally {
-      threadPool.shutdown();
     }
   }
 
@@ -99,8 +137,10 @@ public class TCPServer {
           System.out.println("Received from TCP client " + clientSocket.getInetAddress() + ": " + inputLine);
           ServerLogger.logTCP("Received from TCP client " + clientSocket.getInetAddress() + ": " + inputLine);
 
-          // Process client request using RequestProcessor
-          String response = RequestProcessor.processRequest(inputLine);
+          // Process client request using RequestProcessor, echoing the tag of a pipelined request
+          String tag = RequestProcessor.tagOf(inputLine);
+          String response = tag == null ? RequestProcessor.processRequest(inputLine)
+                  : tag + " " + RequestProcessor.processRequest(RequestProcessor.stripTag(inputLine));
 
           System.out.println("Response to send: " + response);
           out.println(response);  // Send response to client
@@ -1,93 +1,1185 @@
 package server;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 public class TwoPhaseCommitImpl {
+  // Transaction IDs are "<coordinator id>-<sequence number>", unique across coordinators.
+  private static final String COORDINATOR_ID = UUID.randomUUID().toString().substring(0, 8);
+  private static final AtomicLong transactionSequence = new AtomicLong();
+  // Transactions of this process between their first prepare and their decision. The in-doubt
+  // resolver leaves them alone.
+  private static final Set<String> activeTransactions = ConcurrentHashMap.newKeySet();
 
+  // Finishes the in-doubt transactions of every coordinator in the process.
+  private static final ScheduledExecutorService inDoubtResolver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "in-doubt-resolver");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Replica votes in a quorum-mode phase.
+  private static final int PENDING = 0;
+  private static final int YES = 1;
+  private static final int NO = 2;
+  private static final int FAILED = 3;
+
+  // Empty, or "shardN." for the coordinator of a shard.
+  private final String name;
   private List<KeyValueStoreInterface> replicas;
+  // Metrics of replicas.get(i), named after the replica's position in the list.
+  private final Metrics.ReplicaStats[] replicaStats;
+  private final CoordinatorThreadPool executor;
+  private final long prepareTimeoutMillis;
+  private final long commitTimeoutMillis;
+  private final WriteBatcher batcher;
+  // GET responses of the front-end using this coordinator, invalidated by its writes. Null if off.
+  private volatile ReadCache readCache;
+  // Quorum mode: replicas that must prepare and commit a transaction, 0 when all of them must.
+  private final int writeQuorum;
+  // Quorum mode: each replica's replication log, the barrier transactions hold while they run so
+  // a replica can rejoin between them, and the order in which transactions were decided.
+  private final ReplicaCatchUp[] catchUps;
+  private final ReentrantReadWriteLock barrier;
+  private final AtomicLong decisions = new AtomicLong();
+  // Early acknowledgement and quorum mode: the last decided operation on each key whose commit
+  // messages are still being delivered.
+  private final ConcurrentMap<String, PendingCommit.Write> committing = new ConcurrentHashMap<>();
+  private volatile boolean onePhase = ServerConfig.ONE_PHASE;
+  private volatile boolean earlyAck = ServerConfig.EARLY_ACK;
+  // Runs resolveInDoubt() every kvstore.2pc.inDoubtMillis, null if that is 0. Until the process has
+  // a coordinator log it does nothing; the log may be opened after the coordinator, as early
+  // acknowledgement does on its first commit.
+  private final ScheduledFuture<?> resolverTask;
+  private volatile boolean recovered;
 
   public TwoPhaseCommitImpl(List<KeyValueStoreInterface> replicas) {
+    this("", replicas);
+  }
+
+  // A coordinator for one shard's replica group; name prefixes the replicas' metric names.
+  public TwoPhaseCommitImpl(String name, List<KeyValueStoreInterface> replicas) {
+    this(name, replicas, CoordinatorThreadPool.getShared(), ServerConfig.PREPARE_TIMEOUT_MILLIS,
+            ServerConfig.COMMIT_TIMEOUT_MILLIS, configuredQuorum(replicas.size()));
+  }
+
+  public TwoPhaseCommitImpl(List<KeyValueStoreInterface> replicas, CoordinatorThreadPool executor,
+                            long prepareTimeoutMillis, long commitTimeoutMillis) {
+    this("", replicas, executor, prepareTimeoutMillis, commitTimeoutMillis, configuredQuorum(replicas.size()));
+  }
+
+  public TwoPhaseCommitImpl(List<KeyValueStoreInterface> replicas, CoordinatorThreadPool executor,
+                            long prepareTimeoutMillis, long commitTimeoutMillis, int writeQuorum) {
+    this("", replicas, executor, prepareTimeoutMillis, commitTimeoutMillis, writeQuorum);
+  }
+
+  // writeQuorum is the number of replicas a transaction waits for in each phase. From
+  // replicas.size() up that is every replica, plain 2PC; below it the coordinator runs in quorum
+  // mode, and a quorum smaller than a majority is raised to a majority so that any two overlap.
+  public TwoPhaseCommitImpl(String name, List<KeyValueStoreInterface> replicas, CoordinatorThreadPool executor,
+                            long prepareTimeoutMillis, long commitTimeoutMillis, int writeQuorum) {
+    this.name = name;
     this.replicas = replicas;
+    this.executor = executor;
+    this.prepareTimeoutMillis = prepareTimeoutMillis;
+    this.commitTimeoutMillis = commitTimeoutMillis;
+    this.replicaStats = new Metrics.ReplicaStats[replicas.size()];
+    for (int i = 0; i < replicaStats.length; i++) {
+      replicaStats[i] = Metrics.replica(replicaName(i));
+    }
+    this.batcher = ServerConfig.BATCH_ENABLED
+            ? new WriteBatcher(this, ServerConfig.BATCH_MAX_OPS, ServerConfig.BATCH_WINDOW_MICROS,
+                    ServerConfig.BATCH_IN_FLIGHT)
+            : null;
+    this.readCache = ServerConfig.CACHE_ENTRIES > 0
+            ? new ReadCache(ServerConfig.CACHE_ENTRIES, ServerConfig.CACHE_MAX_BYTES)
+            : null;
+    int quorum = Math.max(writeQuorum, replicas.size() / 2 + 1);
+    if (quorum < replicas.size()) {
+      this.writeQuorum = quorum;
+      this.barrier = new ReentrantReadWriteLock();
+      this.catchUps = new ReplicaCatchUp[replicas.size()];
+      for (int i = 0; i < catchUps.length; i++) {
+        catchUps[i] = new ReplicaCatchUp(replicas.get(i), replicaName(i), barrier,
+                ServerConfig.CATCH_UP_RETRY_MILLIS);
+      }
+    } else {
+      this.writeQuorum = 0;
+      this.barrier = null;
+      this.catchUps = null;
+    }
+    this.resolverTask = ServerConfig.IN_DOUBT_MILLIS > 0
+            ? inDoubtResolver.scheduleWithFixedDelay(this::resolveInDoubt, 0, ServerConfig.IN_DOUBT_MILLIS,
+                    TimeUnit.MILLISECONDS)
+            : null;
+  }
+
+  // Stops the in-doubt resolver and the group commit threads of this coordinator, once the writes
+  // already queued for them are flushed. Other transactions still running are not waited for.
+  public void close() {
+    if (resolverTask != null) {
+      resolverTask.cancel(false);
+    }
+    if (batcher != null) {
+      batcher.close();
+    }
+  }
+
+  private static int configuredQuorum(int replicas) {
+    return ServerConfig.COMMIT_MODE.equals("quorum") ? ServerConfig.QUORUM : replicas;
+  }
+
+  public String getName() {
+    return name;
   }
 
   public List<KeyValueStoreInterface> getReplicas() {
     return replicas;
   }
 
+  public CoordinatorThreadPool getExecutor() {
+    return executor;
+  }
+
+  public ReadCache getReadCache() {
+    return readCache;
+  }
+
+  public void setReadCache(ReadCache readCache) {
+    this.readCache = readCache;
+  }
+
+  public void setOnePhase(boolean onePhase) {
+    this.onePhase = onePhase;
+  }
+
+  public void setEarlyAck(boolean earlyAck) {
+    this.earlyAck = earlyAck;
+  }
+
+  public boolean isQuorumMode() {
+    return writeQuorum > 0;
+  }
+
+  // True while a replica is catching up on transactions it missed in quorum mode. Its data is
+  // behind, so reads should go elsewhere.
+  public boolean isLagging(KeyValueStoreInterface replica) {
+    if (catchUps == null) {
+      return false;
+    }
+    for (ReplicaCatchUp catchUp : catchUps) {
+      if (catchUp.getReplica() == replica) {
+        return catchUp.isLagging();
+      }
+    }
+    return false;
+  }
+
+  // Early acknowledgement and quorum mode: the response a GET of the key must give while the commit
+  // of an acknowledged transaction that wrote it is still being delivered, or null if there is none.
+  public String pendingRead(String key) {
+    PendingCommit.Write write = committing.get(key);
+    if (write == null) {
+      return null;
+    }
+    Operation operation = write.operation;
+    return operation.getOperation().equals("PUT") ? "GET OK: " + operation.getValue() : "GET ERROR: Key not found";
+  }
+
+  // Entry point for client writes. Goes through the group-commit batcher when batching is enabled,
+  // otherwise runs a dedicated 2PC round for the operation.
+  public boolean submit(String operation, String key, String value) {
+    if (batcher == null) {
+      return performTwoPhaseCommit(operation, key, value);
+    }
+    return batcher.submit(new Operation(operation, key, value));
+  }
+
   public boolean performTwoPhaseCommit(String operation, String key, String value) {
-    AtomicBoolean success = new AtomicBoolean(true);
-    System.out.println("Performing Two-Phase Commit for operation: " + operation + ", key: " + key + ", value: " + value);
-    // Phase 1: Prepare phase (send prepare messages)
-    CountDownLatch prepareLatch = new CountDownLatch(replicas.size());
-    for (KeyValueStoreInterface replica : replicas) {
-      new Thread(() -> {
-        try {
-          boolean prepareResponse = replica.prepare(operation, key, value);
-          if (!prepareResponse) {
-            success.set(false);
+    trace("Performing Two-Phase Commit for operation: " + operation + ", key: " + key + ", value: " + value);
+    try {
+      return runTransaction(Collections.singletonList(new Operation(operation, key, value)),
+              (replica, transactionId) -> replica.prepare(transactionId, operation, key, value), null,
+              ServerConfig.CONFLICT_RETRIES) == Outcome.COMMITTED;
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  // Runs a single 2PC round covering all operations. Either every operation is committed on
+  // every replica or the whole batch is aborted.
+  public boolean performBatchTwoPhaseCommit(List<Operation> operations) {
+    return performBatchTwoPhaseCommit(operations, null);
+  }
+
+  // As above, running whilePrepared, if not null, once the replicas that are to commit all hold the
+  // transaction prepared and before any commit is sent. The transaction is aborted if it returns
+  // false. The batch may hold GETs, which lock their keys without changing them.
+  boolean performBatchTwoPhaseCommit(List<Operation> operations, WhilePrepared whilePrepared) {
+    return batchTransaction(operations, whilePrepared, ServerConfig.CONFLICT_RETRIES) == Outcome.COMMITTED;
+  }
+
+  // As above, telling why a batch that did not commit failed, and retrying a conflict at most
+  // conflictRetries times.
+  Outcome batchTransaction(List<Operation> operations, WhilePrepared whilePrepared, int conflictRetries) {
+    trace("Performing batched Two-Phase Commit for " + operations.size() + " operations");
+    try {
+      return runTransaction(operations, (replica, transactionId) -> replica.prepareBatch(transactionId, operations),
+              whilePrepared, conflictRetries);
+    } finally {
+      for (Operation operation : operations) {
+        invalidate(operation.getKey());
+      }
+    }
+  }
+
+  // Drops the key from the read cache once its transaction is over, whatever the outcome: a
+  // commit that failed part way may still have changed some replicas.
+  private void invalidate(String key) {
+    ReadCache cache = readCache;
+    if (cache != null) {
+      cache.invalidate(key);
+    }
+  }
+
+  // Runs prepare and commit under a fresh transaction ID. If a replica rejects the prepare because
+  // another in-flight transaction holds one of the keys, the transaction is aborted and retried
+  // with a new ID after a short randomized backoff, up to conflictRetries times.
+  private Outcome runTransaction(List<Operation> operations, PrepareCall prepareCall, WhilePrepared whilePrepared,
+                                 int conflictRetries) {
+    if (!Metrics.ENABLED) {
+      return decide(operations, prepareCall, whilePrepared, conflictRetries);
+    }
+    long start = System.nanoTime();
+    Metrics.IN_FLIGHT.incrementAndGet();
+    try {
+      Outcome outcome = decide(operations, prepareCall, whilePrepared, conflictRetries);
+      (outcome == Outcome.COMMITTED ? Metrics.COMMITTED : Metrics.ABORTED).increment();
+      return outcome;
+    } finally {
+      Metrics.IN_FLIGHT.decrementAndGet();
+      Metrics.TRANSACTION.record(System.nanoTime() - start);
+      Metrics.BATCH_SIZE.record(operations.size());
+    }
+  }
+
+  // One-phase commit has no point between prepare and commit, so it is not used when there is
+  // something to run there.
+  private Outcome decide(List<Operation> operations, PrepareCall prepareCall, WhilePrepared whilePrepared,
+                         int conflictRetries) {
+    if (writeQuorum > 0) {
+      return attemptQuorum(operations, prepareCall, whilePrepared, conflictRetries);
+    }
+    if (onePhase && replicas.size() == 1 && whilePrepared == null) {
+      return attemptOnePhase(operations, conflictRetries);
+    }
+    return attempt(operations, prepareCall, whilePrepared, conflictRetries);
+  }
+
+  private Outcome attempt(List<Operation> operations, PrepareCall prepareCall, WhilePrepared whilePrepared,
+                          int conflictRetries) {
+    for (int attempt = 0; ; attempt++) {
+      String transactionId = beginTransaction();
+      try {
+        // Phase 1: Prepare phase (send prepare messages)
+        PhaseOutcome prepared = runPhase("prepare", prepareTimeoutMillis,
+                replica -> prepareCall.prepare(replica, transactionId));
+
+        if (prepared == PhaseOutcome.SUCCESS) {
+          if (!stillPrepared(whilePrepared)) {
+            abortTransaction(transactionId);
+            return Outcome.FAILED;
           }
-        } catch (Exception e) {
-          e.printStackTrace();
-          System.err.println("Exception during prepare: " + e);
-          success.set(false);
-        } finally {
-          prepareLatch.countDown();
+          // Phase 2: Commit phase (send commit messages)
+          return commitDecided(transactionId, Collections.singletonList(this), Collections.singletonList(operations),
+                  earlyAck) ? Outcome.COMMITTED : Outcome.UNKNOWN;
+        }
+
+        // Abort transaction if prepare phase failed
+        abortTransaction(transactionId);
+        if (prepared == PhaseOutcome.REJECTED && awaitsCommit(Collections.singletonList(this),
+                Collections.singletonList(operations))) {
+          attempt--;
+        }
+        if (prepared == PhaseOutcome.FAILED) {
+          return Outcome.FAILED;
+        }
+        if (attempt >= conflictRetries) {
+          return Outcome.REJECTED;
+        }
+        if (!backOff(Math.max(attempt, 0))) {
+          return Outcome.FAILED;
         }
-      }).start();
+      } finally {
+        activeTransactions.remove(transactionId);
+      }
+    }
+  }
+
+  // One-phase commit. With a single replica no other vote can abort the transaction, so the
+  // replica decides alone: prepare and commit go out as one call, one round trip and one log sync
+  // instead of two. A replica that votes no has kept nothing, so a conflict is retried without
+  // sending an abort.
+  private Outcome attemptOnePhase(List<Operation> operations, int conflictRetries) {
+    for (int attempt = 0; ; attempt++) {
+      String transactionId = beginTransaction();
+      PhaseOutcome outcome;
+      try {
+        outcome = runPhase("commit", commitTimeoutMillis, replica -> replica.commitOnePhase(transactionId, operations));
+      } finally {
+        activeTransactions.remove(transactionId);
+      }
+      if (outcome == PhaseOutcome.SUCCESS) {
+        if (Metrics.ENABLED) {
+          Metrics.ONE_PHASE.increment();
+        }
+        return Outcome.COMMITTED;
+      }
+      // The replica may have committed before the call failed.
+      if (outcome == PhaseOutcome.FAILED) {
+        return Outcome.UNKNOWN;
+      }
+      if (attempt >= conflictRetries) {
+        return Outcome.REJECTED;
+      }
+      if (!backOff(attempt)) {
+        return Outcome.FAILED;
+      }
+    }
+  }
+
+  // Commits a transaction every replica of the participants has voted yes on. The decision is
+  // logged first if the process has a coordinator log, and the end of the transaction once every
+  // replica has acknowledged the commit; a commit that does not reach every replica is finished
+  // later by the in-doubt resolver.
+  private static boolean commitDecided(String transactionId, List<TwoPhaseCommitImpl> participants,
+                                       List<List<Operation>> operations, boolean earlyAck) {
+    if (earlyAck) {
+      return commitAsync(transactionId, participants, operations);
+    }
+    CoordinatorLog log = CoordinatorLog.current();
+    if (log != null && !logCommit(log, transactionId, participants)) {
+      return false;
+    }
+    int calls = 0;
+    for (TwoPhaseCommitImpl participant : participants) {
+      calls += participant.replicas.size();
+    }
+    Phase commit = new Phase("commit", calls);
+    for (TwoPhaseCommitImpl participant : participants) {
+      participant.send(commit, replica -> {
+        replica.commit(transactionId);
+        return true;
+      });
+    }
+    boolean committed = commit.await(participants.get(0).commitTimeoutMillis) == PhaseOutcome.SUCCESS;
+    if (committed && log != null) {
+      logEnd(log, transactionId);
+    }
+    return committed;
+  }
+
+  // Makes the commit decision durable before any replica is told to commit, so a restarted
+  // coordinator can finish the transaction. If it cannot be logged the transaction is aborted.
+  private static boolean logCommit(CoordinatorLog log, String transactionId, List<TwoPhaseCommitImpl> participants) {
+    List<String> replicaNames = new ArrayList<>();
+    for (TwoPhaseCommitImpl participant : participants) {
+      for (int i = 0; i < participant.replicas.size(); i++) {
+        replicaNames.add(participant.replicaName(i));
+      }
+    }
+    try {
+      log.logCommit(transactionId, replicaNames);
+      return true;
+    } catch (IOException e) {
+      System.err.println("Unable to log the commit decision of transaction " + transactionId + ": " + e);
+      for (TwoPhaseCommitImpl participant : participants) {
+        participant.abortTransaction(transactionId);
+      }
+      return false;
     }
+  }
+
+  private static void logEnd(CoordinatorLog log, String transactionId) {
+    try {
+      log.logEnd(transactionId);
+    } catch (IOException e) {
+      System.err.println("Unable to log the end of transaction " + transactionId + ": " + e);
+    }
+  }
 
+  private String replicaName(int index) {
+    return name + "replica" + (index + 1);
+  }
+
+  // Early acknowledgement of a transaction every replica has voted yes on, which can therefore no
+  // longer abort. The decision is made durable in the coordinator log, then the commit messages
+  // are sent in the background and the caller is answered without waiting for them. Until every
+  // replica has answered, GETs of the written keys are answered from the decided values, so a
+  // client reads its own write even from a replica that has not applied it yet. If the decision
+  // cannot be logged the transaction is aborted instead.
+  private static boolean commitAsync(String transactionId, List<TwoPhaseCommitImpl> participants,
+                                     List<List<Operation>> operations) {
+    CoordinatorLog log;
     try {
-      prepareLatch.await();
+      log = CoordinatorLog.getShared();
+    } catch (IOException e) {
+      System.err.println("Unable to open the coordinator log: " + e);
+      for (TwoPhaseCommitImpl participant : participants) {
+        participant.abortTransaction(transactionId);
+      }
+      return false;
+    }
+    if (!logCommit(log, transactionId, participants)) {
+      return false;
+    }
+    int calls = 0;
+    for (TwoPhaseCommitImpl participant : participants) {
+      calls += participant.replicas.size();
+    }
+    PendingCommit pending = new PendingCommit();
+    for (int i = 0; i < participants.size(); i++) {
+      for (Operation operation : operations.get(i)) {
+        participants.get(i).committing.put(operation.getKey(), pending.of(operation));
+      }
+    }
+    if (Metrics.ENABLED) {
+      Metrics.ASYNC_COMMITS.incrementAndGet();
+    }
+    long start = Metrics.ENABLED ? System.nanoTime() : 0;
+    AtomicInteger undelivered = new AtomicInteger(calls);
+    Runnable delivered = () -> {
+      if (undelivered.decrementAndGet() > 0) {
+        return;
+      }
+      // The keys are invalidated before the decided values stop being served, in case a GET
+      // filled the read cache from a replica that had not applied the commit yet.
+      for (int i = 0; i < participants.size(); i++) {
+        for (Operation operation : operations.get(i)) {
+          participants.get(i).invalidate(operation.getKey());
+          participants.get(i).committing.remove(operation.getKey(), pending.of(operation));
+        }
+      }
+      logEnd(log, transactionId);
+      if (Metrics.ENABLED) {
+        Metrics.COMMIT.record(System.nanoTime() - start);
+        Metrics.ASYNC_COMMITS.decrementAndGet();
+      }
+    };
+    for (TwoPhaseCommitImpl participant : participants) {
+      for (int i = 0; i < participant.replicas.size(); i++) {
+        participant.deliverCommit(transactionId, i, pending, delivered, 0);
+      }
+    }
+    return true;
+  }
+
+  // Sends the commit of an early-acknowledged transaction to one replica, and again after a
+  // growing pause until the replica takes it: the client has already been told the write
+  // succeeded, so the decided values keep being served until every replica has applied it.
+  private void deliverCommit(String transactionId, int index, PendingCommit pending, Runnable delivered, int attempt) {
+    execute(() -> {
+      long callStart = Metrics.ENABLED ? System.nanoTime() : 0;
+      try {
+        replicas.get(index).commit(transactionId);
+      } catch (Exception e) {
+        if (Metrics.ENABLED) {
+          replicaStats[index].errors.increment();
+        }
+        if (attempt == 0) {
+          System.err.println("Commit of transaction " + transactionId + " to " + replicaName(index) + " failed, retrying: " + e);
+        }
+        pending.retrying = true;
+        long pause = Math.min(ServerConfig.CATCH_UP_RETRY_MILLIS << Math.min(attempt, 16), commitTimeoutMillis);
+        inDoubtResolver.schedule(() -> deliverCommit(transactionId, index, pending, delivered, attempt + 1),
+                pause, TimeUnit.MILLISECONDS);
+        return;
+      } finally {
+        if (Metrics.ENABLED) {
+          replicaStats[index].latency.record(System.nanoTime() - callStart);
+        }
+      }
+      delivered.run();
+    }, e -> System.err.println("Commit of transaction " + transactionId + " to " + replicaName(index)
+            + " not delivered, left to the in-doubt resolver: " + e));
+  }
+
+  // Hands a replica call to the coordinator pool. A pool that has been shut down turns it down,
+  // and then [rejected] runs on this thread, so a phase fails at once instead of waiting out its
+  // timeout for an answer that will never come.
+  private void execute(Runnable call, Consumer<RejectedExecutionException> rejected) {
+    try {
+      executor.execute(call);
+    } catch (RejectedExecutionException e) {
+      rejected.accept(e);
+    }
+  }
+
+  // True if one of the keys is held by an acknowledged transaction whose commit is still being
+  // delivered. The replicas release it as soon as the commit arrives, so a prepare it made fail is
+  // retried without using up one of the conflict retries; unless a replica has failed to take the
+  // commit, which may take a while to change.
+  private static boolean awaitsCommit(List<TwoPhaseCommitImpl> participants, List<List<Operation>> operations) {
+    for (int i = 0; i < participants.size(); i++) {
+      for (Operation operation : operations.get(i)) {
+        PendingCommit.Write write = participants.get(i).committing.get(operation.getKey());
+        if (write != null && !write.commit.retrying) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean stillPrepared(WhilePrepared whilePrepared) {
+    if (whilePrepared == null) {
+      return true;
+    }
+    try {
+      return whilePrepared.run();
+    } catch (Exception e) {
+      System.err.println("Exception while the transaction was prepared, aborting it: " + e);
+      return false;
+    }
+  }
+
+  // Sleeps before retrying a conflicting transaction, for a random time that doubles with each
+  // attempt. Returns false if interrupted.
+  static boolean backOff(int attempt) {
+    if (Metrics.ENABLED) {
+      Metrics.CONFLICT_RETRIES.increment();
+    }
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(1, 2L << attempt));
+      return true;
     } catch (InterruptedException e) {
-      System.err.println("Exception during prepare latch await: " + e);
-      success.set(false);
       Thread.currentThread().interrupt();
+      return false;
     }
+  }
 
-    if (success.get()) {
-      // Phase 2: Commit phase (send commit messages)
-      CountDownLatch commitLatch = new CountDownLatch(replicas.size());
-      for (KeyValueStoreInterface replica : replicas) {
-        new Thread(() -> {
+  // Quorum mode. Prepare goes to every replica that is not lagging, and the transaction is decided
+  // as soon as writeQuorum of them have voted yes, without waiting for the rest. It then commits on
+  // the replicas that voted yes and returns once writeQuorum of them have committed. Every replica
+  // that is not committed to, because it was lagging, slow, down or voted no, gets the transaction
+  // in its replication log and catches up in the background; a prepare that arrives after the
+  // decision is aborted. When fewer than writeQuorum replicas can vote yes the transaction is
+  // aborted, and retried like in attempt() if a replica voted no.
+  private Outcome attemptQuorum(List<Operation> operations, PrepareCall prepareCall, WhilePrepared whilePrepared,
+                                int conflictRetries) {
+    barrier.readLock().lock();
+    try {
+      for (int attempt = 0; ; attempt++) {
+        String transactionId = beginTransaction();
+        QuorumPhase prepare = new QuorumPhase("prepare", (index, vote, late) -> {
+          if (late && vote != NO) {
+            abortOn(index, transactionId);
+          }
+        });
+        for (int i = 0; i < replicas.size(); i++) {
+          if (!catchUps[i].isLagging()) {
+            prepare.send(i, replica -> prepareCall.prepare(replica, transactionId));
+          }
+        }
+        int[] votes = prepare.await(prepareTimeoutMillis);
+        boolean decided = count(votes, YES) >= writeQuorum;
+        if (decided && stillPrepared(whilePrepared)) {
           try {
-            replica.commit(operation, key, value);
-          } catch (Exception e) {
-            System.err.println("Exception during commit: " + e);
-            success.set(false);
+            return commitQuorum(transactionId, operations, votes) ? Outcome.COMMITTED : Outcome.UNKNOWN;
           } finally {
-            commitLatch.countDown();
+            activeTransactions.remove(transactionId);
+          }
+        }
+        activeTransactions.remove(transactionId);
+
+        for (int i = 0; i < votes.length; i++) {
+          if (votes[i] == YES || votes[i] == FAILED) {
+            abortOn(i, transactionId);
           }
-        }).start();
+        }
+        if (decided || count(votes, NO) == 0) {
+          return Outcome.FAILED;
+        }
+        if (attempt >= conflictRetries) {
+          return Outcome.REJECTED;
+        }
+        if (!backOff(attempt)) {
+          return Outcome.FAILED;
+        }
+      }
+    } finally {
+      barrier.readLock().unlock();
+    }
+  }
+
+  private boolean commitQuorum(String transactionId, List<Operation> operations, int[] votes) {
+    CoordinatorLog log = CoordinatorLog.current();
+    if (log != null && !logCommit(log, transactionId, Collections.singletonList(this))) {
+      return false;
+    }
+    long sequence = decisions.incrementAndGet();
+    // A replica that fell behind after it voted must not get this commit before the transactions
+    // in its log, so it replays this one after them too.
+    boolean[] sending = new boolean[votes.length];
+    int sends = 0;
+    for (int i = 0; i < votes.length; i++) {
+      sending[i] = votes[i] == YES && !catchUps[i].isLagging();
+      sends += sending[i] ? 1 : 0;
+    }
+    boolean everyReplica = sends == votes.length;
+    // The call returns once a quorum has committed, while the other replicas it was sent to may
+    // still serve GETs of the old values. Those read the decided values from the committing map
+    // until every commit has been answered; a replica whose commit failed is lagging by then, and
+    // no longer read from. The keys are invalidated again first, in case a GET filled the read
+    // cache from a replica that had not applied the commit yet. The transaction has ended if every
+    // replica committed; otherwise the in-doubt resolver keeps its decision.
+    PendingCommit pending = new PendingCommit();
+    for (Operation operation : operations) {
+      committing.put(operation.getKey(), pending.of(operation));
+    }
+    AtomicInteger unanswered = new AtomicInteger(sends);
+    AtomicBoolean failed = new AtomicBoolean();
+    Runnable answered = () -> {
+      for (Operation operation : operations) {
+        invalidate(operation.getKey());
+        committing.remove(operation.getKey(), pending.of(operation));
+      }
+      if (log != null && everyReplica && !failed.get()) {
+        logEnd(log, transactionId);
+      }
+    };
+    QuorumPhase commit = new QuorumPhase("commit", (index, vote, late) -> {
+      if (vote == FAILED) {
+        failed.set(true);
+        catchUps[index].missed(sequence, transactionId, operations);
+      }
+      if (unanswered.decrementAndGet() == 0) {
+        answered.run();
+      }
+    });
+    // Replicas left out are lagging before any replica commits, so once one has, a GET or a
+    // transaction's read no longer goes to a replica without this transaction.
+    for (int i = 0; i < votes.length; i++) {
+      if (!sending[i]) {
+        catchUps[i].missed(sequence, votes[i] == NO ? null : transactionId, operations);
+      }
+    }
+    for (int i = 0; i < votes.length; i++) {
+      if (sending[i]) {
+        commit.send(i, replica -> {
+          replica.commit(transactionId);
+          return true;
+        });
+      }
+    }
+    if (sends == 0) {
+      answered.run();
+    }
+    return count(commit.await(commitTimeoutMillis), YES) >= writeQuorum;
+  }
+
+  private void abortOn(int index, String transactionId) {
+    KeyValueStoreInterface replica = replicas.get(index);
+    execute(() -> {
+      try {
+        replica.abort(transactionId);
+      } catch (Exception e) {
+        System.err.println("Exception during abort: " + e);
+        if (Metrics.ENABLED) {
+          replicaStats[index].errors.increment();
+        }
+      }
+    }, e -> System.err.println("Exception during abort: " + e));
+  }
+
+  private static int count(int[] votes, int vote) {
+    int count = 0;
+    for (int v : votes) {
+      if (v == vote) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // One phase of a quorum-mode transaction. Like runPhase() the calls run in parallel on the
+  // coordinator pool, but await() returns as soon as writeQuorum replicas have voted yes, or when
+  // that can no longer happen, or at the timeout. Every vote is also passed to the listener, with
+  // late set if it came after await() returned.
+  private final class QuorumPhase {
+    private final String phase;
+    private final VoteListener listener;
+    private final int[] votes = new int[replicas.size()];
+    private final long start = Metrics.ENABLED ? System.nanoTime() : 0;
+    private int sent;
+    private int answered;
+    private int yes;
+    private boolean decided;
+
+    QuorumPhase(String phase, VoteListener listener) {
+      this.phase = phase;
+      this.listener = listener;
+    }
+
+    void send(int index, ReplicaCall call) {
+      synchronized (this) {
+        sent++;
+      }
+      KeyValueStoreInterface replica = replicas.get(index);
+      Metrics.ReplicaStats stats = replicaStats[index];
+      execute(() -> {
+        long callStart = Metrics.ENABLED ? System.nanoTime() : 0;
+        int vote;
+        try {
+          vote = call.invoke(replica) ? YES : NO;
+        } catch (Exception e) {
+          System.err.println("Exception during " + phase + ": " + e);
+          vote = FAILED;
+          if (Metrics.ENABLED) {
+            stats.errors.increment();
+          }
+        }
+        if (Metrics.ENABLED) {
+          stats.latency.record(System.nanoTime() - callStart);
+        }
+        voted(index, vote);
+      }, e -> {
+        System.err.println("Exception during " + phase + ": " + e);
+        voted(index, FAILED);
+      });
+    }
+
+    private void voted(int index, int vote) {
+      boolean late;
+      synchronized (this) {
+        votes[index] = vote;
+        answered++;
+        if (vote == YES) {
+          yes++;
+        }
+        late = decided;
+        notifyAll();
       }
+      listener.voted(index, vote, late);
+    }
 
+    // Waits until the phase is decided and returns the votes so far; PENDING for unanswered ones.
+    synchronized int[] await(long timeoutMillis) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
       try {
-        commitLatch.await();
+        while (yes < writeQuorum && yes + sent - answered >= writeQuorum) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            System.err.println("Timed out after " + timeoutMillis + " ms waiting for a quorum of " + phase + " responses");
+            if (Metrics.ENABLED) {
+              Metrics.PHASE_TIMEOUTS.increment();
+            }
+            break;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
       } catch (InterruptedException e) {
-        System.err.println("Exception during commit latch await: " + e);
-        success.set(false);
+        System.err.println("Exception during " + phase + " quorum wait: " + e);
         Thread.currentThread().interrupt();
       }
-    } else {
-      // Abort transaction if prepare phase failed
-      abortTransaction(operation, key, value);
+      decided = true;
+      if (Metrics.ENABLED) {
+        (phase.equals("prepare") ? Metrics.PREPARE : Metrics.COMMIT).record(System.nanoTime() - start);
+      }
+      return votes.clone();
     }
+  }
+
+  // Told about each replica's vote in a QuorumPhase.
+  private interface VoteListener {
+    void voted(int replica, int vote, boolean late);
+  }
 
-    return success.get();
+  // Sends one phase of the protocol to every replica in parallel on the coordinator pool and waits
+  // up to timeoutMillis for all of them to answer. REJECTED means every replica answered but at
+  // least one voted no; FAILED means a replica threw or did not answer in time.
+  private PhaseOutcome runPhase(String phase, long timeoutMillis, ReplicaCall call) {
+    Phase running = new Phase(phase, replicas.size());
+    send(running, call);
+    return running.await(timeoutMillis);
   }
 
-  private void abortTransaction(String operation, String key, String value) {
-    System.out.println("Aborting transaction for operation: " + operation + ", key: " + key + ", value: " + value);
-    for (KeyValueStoreInterface replica : replicas) {
-      new Thread(() -> {
+  // Starts the calls of a phase on every replica of this coordinator.
+  private void send(Phase phase, ReplicaCall call) {
+    for (int i = 0; i < replicas.size(); i++) {
+      KeyValueStoreInterface replica = replicas.get(i);
+      Metrics.ReplicaStats stats = replicaStats[i];
+      execute(() -> {
+        long callStart = Metrics.ENABLED ? System.nanoTime() : 0;
         try {
-          replica.abort(operation, key, value);
-          System.out.println("Abort successful for replica");
+          if (!call.invoke(replica)) {
+            phase.rejected.set(true);
+          }
+        } catch (Exception e) {
+          System.err.println("Exception during " + phase.name + ": " + e);
+          phase.failed.set(true);
+          if (Metrics.ENABLED) {
+            stats.errors.increment();
+          }
+        } finally {
+          if (Metrics.ENABLED) {
+            stats.latency.record(System.nanoTime() - callStart);
+          }
+          phase.latch.countDown();
+        }
+      }, e -> {
+        System.err.println("Exception during " + phase.name + ": " + e);
+        phase.failed.set(true);
+        phase.latch.countDown();
+      });
+    }
+  }
+
+  // Runs one transaction whose operations span several shards: operations.get(i) goes to every
+  // replica of participants.get(i). All replicas of all participants are prepared in parallel
+  // under one transaction ID and the transaction commits only if every one of them votes yes, so
+  // it is one 2PC round however many shards it touches. Conflicts are retried like single-shard
+  // transactions. Every participant must run plain 2PC, which ShardRouter checks when it is built:
+  // a quorum-mode participant could commit on a replica ahead of the transactions in its
+  // replication log. The transaction is acknowledged early if every participant has early
+  // acknowledgement on.
+  public static boolean performTransaction(List<TwoPhaseCommitImpl> participants, List<List<Operation>> operations) {
+    return performTransaction(participants, operations, null);
+  }
+
+  // As above, with whilePrepared run like performBatchTwoPhaseCommit() does.
+  static boolean performTransaction(List<TwoPhaseCommitImpl> participants, List<List<Operation>> operations,
+                                    WhilePrepared whilePrepared) {
+    int calls = 0;
+    boolean earlyAck = true;
+    for (TwoPhaseCommitImpl participant : participants) {
+      calls += participant.replicas.size();
+      earlyAck &= participant.earlyAck;
+    }
+    TwoPhaseCommitImpl first = participants.get(0);
+    long start = Metrics.ENABLED ? System.nanoTime() : 0;
+    if (Metrics.ENABLED) {
+      Metrics.IN_FLIGHT.incrementAndGet();
+    }
+    boolean committed = false;
+    try {
+      for (int attempt = 0; ; attempt++) {
+        String transactionId = beginTransaction();
+        try {
+          trace("Performing Two-Phase Commit of transaction " + transactionId + " over " + participants.size() + " shards");
+          Phase prepare = new Phase("prepare", calls);
+          for (int i = 0; i < participants.size(); i++) {
+            List<Operation> shardOperations = operations.get(i);
+            participants.get(i).send(prepare, replica -> replica.prepareBatch(transactionId, shardOperations));
+          }
+          PhaseOutcome prepared = prepare.await(first.prepareTimeoutMillis);
+          if (prepared == PhaseOutcome.SUCCESS && !stillPrepared(whilePrepared)) {
+            for (TwoPhaseCommitImpl participant : participants) {
+              participant.abortTransaction(transactionId);
+            }
+            return false;
+          }
+          if (prepared == PhaseOutcome.SUCCESS && !writes(operations)) {
+            // Nothing to commit: the reads were answered while every key was locked, and an abort
+            // releases the keys without a decision record or waiting for acknowledgements.
+            for (TwoPhaseCommitImpl participant : participants) {
+              participant.abortTransaction(transactionId);
+            }
+            committed = true;
+            return true;
+          }
+          if (prepared == PhaseOutcome.SUCCESS) {
+            committed = commitDecided(transactionId, participants, operations, earlyAck);
+            return committed;
+          }
+
+          for (TwoPhaseCommitImpl participant : participants) {
+            participant.abortTransaction(transactionId);
+          }
+          if (prepared == PhaseOutcome.REJECTED && awaitsCommit(participants, operations)) {
+            attempt--;
+          }
+          if (prepared == PhaseOutcome.FAILED || attempt >= ServerConfig.CONFLICT_RETRIES || !backOff(Math.max(attempt, 0))) {
+            return false;
+          }
+        } finally {
+          activeTransactions.remove(transactionId);
+        }
+      }
+    } finally {
+      for (int i = 0; i < participants.size(); i++) {
+        for (Operation operation : operations.get(i)) {
+          participants.get(i).invalidate(operation.getKey());
+        }
+      }
+      if (Metrics.ENABLED) {
+        Metrics.IN_FLIGHT.decrementAndGet();
+        (committed ? Metrics.COMMITTED : Metrics.ABORTED).increment();
+        Metrics.TRANSACTION.record(System.nanoTime() - start);
+        int size = 0;
+        for (List<Operation> shardOperations : operations) {
+          size += shardOperations.size();
+        }
+        Metrics.BATCH_SIZE.record(size);
+      }
+    }
+  }
+
+  private static boolean writes(List<List<Operation>> operations) {
+    for (List<Operation> shardOperations : operations) {
+      for (Operation operation : shardOperations) {
+        if (!operation.getOperation().equals("GET")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // Presumed abort: the coordinator logs nothing for an abort and does not wait for the replicas to
+  // acknowledge it. A transaction without a commit record in the coordinator log is aborted, so a
+  // lost abort message costs nothing but the locks the replica holds until it learns the outcome.
+  private void abortTransaction(String transactionId) {
+    trace("Aborting transaction: " + transactionId);
+    for (int i = 0; i < replicas.size(); i++) {
+      KeyValueStoreInterface replica = replicas.get(i);
+      Metrics.ReplicaStats stats = replicaStats[i];
+      execute(() -> {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        try {
+          replica.abort(transactionId);
+          trace("Abort successful for replica");
         } catch (Exception e) {
           System.err.println("Exception during abort: " + e);
+          if (Metrics.ENABLED) {
+            stats.errors.increment();
+          }
+        } finally {
+          if (Metrics.ENABLED) {
+            Metrics.ABORT.record(System.nanoTime() - start);
+          }
+        }
+      }, e -> System.err.println("Exception during abort: " + e));
+    }
+  }
+
+  // Prints per-transaction tracing unless disabled with -Dkvstore.verbose=false.
+  private static void trace(String message) {
+    if (ServerConfig.VERBOSE) {
+      System.out.println(message);
+    }
+  }
+
+  // With a coordinator log the ID is "<id>.<incarnation>-<sequence number>", which the
+  // coordinator recognizes as its own after a restart.
+  static String newTransactionId() {
+    CoordinatorLog log = CoordinatorLog.current();
+    return (log != null ? log.getCoordinatorId() : COORDINATOR_ID) + "-" + transactionSequence.incrementAndGet();
+  }
+
+  // A new transaction ID, registered as active until the caller removes it once decided.
+  private static String beginTransaction() {
+    String transactionId = newTransactionId();
+    activeTransactions.add(transactionId);
+    return transactionId;
+  }
+
+  // Finishes the transactions this coordinator left in doubt: prepared on a replica for at least
+  // kvstore.2pc.inDoubtMillis, or decided that long ago and not acknowledged by a replica, for example
+  // because the coordinator crashed between the phases or a commit message was lost. Each replica
+  // is asked for the transactions it holds prepared and gets all the outcomes in one resolve()
+  // call: commit for those with a decision in the coordinator log, abort for the rest of this
+  // coordinator's own that are no longer active (presumed abort). A replica catching up in quorum
+  // mode is left to its catch-up.
+  //
+  // Transactions of other coordinators are left to them while they run. Those of a coordinator
+  // that is down, or never comes back, are finished the same way from its log, if that log is in
+  // the same data directory and no process has it open (CoordinatorLog.openRetired). Only the
+  // transactions of a coordinator without a log, or whose log is elsewhere, stay prepared.
+  private void resolveInDoubt() {
+    CoordinatorLog log = CoordinatorLog.current();
+    if (log == null) {
+      return;
+    }
+    // The first pass after the log is available also takes what a previous run left behind.
+    long ageMillis = recovered ? ServerConfig.IN_DOUBT_MILLIS : 0;
+    recovered = true;
+    long decidedBefore = System.currentTimeMillis() - ageMillis;
+    List<List<String>> inDoubt = new ArrayList<>();
+    Set<String> foreign = new HashSet<>();
+    for (int i = 0; i < replicas.size(); i++) {
+      List<String> transactionIds = Collections.emptyList();
+      if (catchUps == null || !catchUps[i].isLagging()) {
+        try {
+          transactionIds = replicas.get(i).inDoubt(ageMillis);
+          resolveOn(i, log, transactionIds, decidedBefore);
+        } catch (Exception e) {
+          System.err.println("Unable to resolve in-doubt transactions on " + replicaName(i) + ": " + e);
+        }
+      }
+      inDoubt.add(transactionIds);
+      for (String transactionId : transactionIds) {
+        if (!log.isOwn(transactionId)) {
+          foreign.add(transactionId);
+        }
+      }
+    }
+    if (foreign.isEmpty()) {
+      return;
+    }
+    for (CoordinatorLog retired : log.openRetired(foreign)) {
+      try {
+        System.out.println("Resolving the in-doubt transactions of coordinator " + retired.getCoordinatorId());
+        for (int i = 0; i < replicas.size(); i++) {
+          try {
+            resolveOn(i, retired, inDoubt.get(i), decidedBefore);
+          } catch (Exception e) {
+            System.err.println("Unable to resolve in-doubt transactions on " + replicaName(i) + ": " + e);
+          }
         }
-      }).start();
+      } finally {
+        try {
+          retired.close();
+        } catch (IOException e) {
+          System.err.println("Unable to close the log of coordinator " + retired.getCoordinatorId() + ": " + e);
+        }
+      }
     }
   }
+
+  // Resolves the in-doubt transactions of the replica that were started with the given log.
+  private void resolveOn(int index, CoordinatorLog log, List<String> inDoubt, long decidedBefore) throws Exception {
+    String replicaName = replicaName(index);
+    List<String> commit = log.unfinishedOn(replicaName, decidedBefore);
+    List<String> abort = new ArrayList<>();
+    for (String transactionId : inDoubt) {
+      // Checked before the log: a transaction leaves the active set only after its decision
+      // has been logged.
+      if (!log.isOwn(transactionId) || activeTransactions.contains(transactionId) || commit.contains(transactionId)) {
+        continue;
+      }
+      (log.isCommitted(transactionId) ? commit : abort).add(transactionId);
+    }
+    if (commit.isEmpty() && abort.isEmpty()) {
+      return;
+    }
+    replicas.get(index).resolve(commit, abort);
+    for (String transactionId : commit) {
+      log.acknowledged(transactionId, replicaName);
+    }
+    if (Metrics.ENABLED) {
+      Metrics.RESOLVED_COMMITS.add(commit.size());
+      Metrics.RESOLVED_ABORTS.add(abort.size());
+    }
+    System.out.println("Resolved in-doubt transactions on " + replicaName + ": " + commit.size()
+            + " committed, " + abort.size() + " aborted");
+  }
+
+  private enum PhaseOutcome {
+    SUCCESS, REJECTED, FAILED
+  }
+
+  // How a transaction ended. REJECTED and FAILED leave nothing applied: REJECTED when a key was
+  // still held by other transactions after every conflict retry, FAILED when a replica did not
+  // vote or the transaction was given up. UNKNOWN when the commit was decided but not confirmed by
+  // every replica it needed, so it may have been applied.
+  enum Outcome {
+    COMMITTED, REJECTED, FAILED, UNKNOWN
+  }
+
+  // The calls of one phase in flight, possibly on the replicas of several coordinators.
+  private static final class Phase {
+    private final String name;
+    private final long start = Metrics.ENABLED ? System.nanoTime() : 0;
+    private final CountDownLatch latch;
+    private final AtomicBoolean rejected = new AtomicBoolean(false);
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+
+    Phase(String name, int calls) {
+      this.name = name;
+      this.latch = new CountDownLatch(calls);
+    }
+
+    PhaseOutcome await(long timeoutMillis) {
+      try {
+        if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+          System.err.println("Timed out after " + timeoutMillis + " ms waiting for " + name + " responses");
+          failed.set(true);
+          if (Metrics.ENABLED) {
+            Metrics.PHASE_TIMEOUTS.increment();
+          }
+        }
+      } catch (InterruptedException e) {
+        System.err.println("Exception during " + name + " latch await: " + e);
+        failed.set(true);
+        Thread.currentThread().interrupt();
+      }
+      if (Metrics.ENABLED) {
+        (name.equals("prepare") ? Metrics.PREPARE : Metrics.COMMIT).record(System.nanoTime() - start);
+      }
+      if (failed.get()) {
+        return PhaseOutcome.FAILED;
+      }
+      return rejected.get() ? PhaseOutcome.REJECTED : PhaseOutcome.SUCCESS;
+    }
+  }
+
+  // An early-acknowledged transaction whose commit is still being delivered, and its writes as
+  // entries of the coordinators' committing maps.
+  private static final class PendingCommit {
+    // Set once a replica has failed to take the commit; it is being retried.
+    private volatile boolean retrying;
+    private final Map<Operation, Write> writes = new IdentityHashMap<>();
+
+    synchronized Write of(Operation operation) {
+      return writes.computeIfAbsent(operation, o -> new Write(this, o));
+    }
+
+    private static final class Write {
+      private final PendingCommit commit;
+      private final Operation operation;
+
+      Write(PendingCommit commit, Operation operation) {
+        this.commit = commit;
+        this.operation = operation;
+      }
+    }
+  }
+
+  // A single prepare/commit call made against one replica.
+  private interface ReplicaCall {
+    boolean invoke(KeyValueStoreInterface replica) throws Exception;
+  }
+
+  // Sends the prepare message of a transaction to one replica.
+  private interface PrepareCall {
+    boolean prepare(KeyValueStoreInterface replica, String transactionId) throws Exception;
+  }
+
+  // Work done while a transaction holds its keys prepared, e.g. reading them. Returns false, or
+  // throws, to abort the transaction.
+  interface WhilePrepared {
+    boolean run() throws Exception;
+  }
 }
@@ -0,0 +1,251 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// DatagramChannel front-end for UDPServer. Every request is read into its own direct buffer taken
+// from a fixed pool, parsed in place, and the response is encoded back into that same buffer, so a
+// datagram is never overwritten while it is being handled and a request allocates no byte arrays
+// or intermediate Strings. The pool also bounds the requests in flight: when every buffer is
+// taken the receivers stop reading and the kernel queues (or drops) further datagrams.
+//
+// Several receiver threads each own a socket bound to the same port with SO_REUSEPORT, so the
+// kernel spreads clients across them; where SO_REUSEPORT is unsupported they share one socket.
+// A receiver drains up to UDP_BATCH datagrams per wakeup, answers the GETs itself and sends those
+// replies together before waiting again. Writes go through 2PC and may block, so they run on a
+// worker pool and each worker sends its own reply.
+public class UDPChannelServer {
+  private static final AtomicInteger WORKER_IDS = new AtomicInteger();
+
+  private final DatagramChannel[] channels;
+  private final Receiver[] receivers;
+  private final ExecutorService workers;
+  private final ArrayBlockingQueue<ByteBuffer> buffers;
+  private final AtomicLong droppedReplies = new AtomicLong();
+  private volatile boolean closed;
+
+  public UDPChannelServer(int port, int receiverThreads, int workerThreads) throws IOException {
+    int count = Math.max(1, receiverThreads);
+    DatagramChannel first = DatagramChannel.open();
+    boolean reusePort = count > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    if (reusePort) {
+      first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+    }
+    first.bind(new InetSocketAddress(port));
+    int boundPort = ((InetSocketAddress) first.getLocalAddress()).getPort();
+
+    channels = new DatagramChannel[reusePort ? count : 1];
+    channels[0] = first;
+    for (int i = 1; i < channels.length; i++) {
+      channels[i] = DatagramChannel.open();
+      channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      channels[i].bind(new InetSocketAddress(boundPort));
+    }
+    for (DatagramChannel channel : channels) {
+      channel.configureBlocking(false);
+    }
+
+    buffers = new ArrayBlockingQueue<>(ServerConfig.UDP_BUFFERS);
+    for (int i = 0; i < ServerConfig.UDP_BUFFERS; i++) {
+      buffers.add(ByteBuffer.allocateDirect(ServerConfig.UDP_MAX_DATAGRAM_BYTES));
+    }
+    workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), runnable -> {
+      Thread thread = new Thread(runnable, "udp-worker-" + WORKER_IDS.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    receivers = new Receiver[count];
+    for (int i = 0; i < count; i++) {
+      receivers[i] = new Receiver(channels[i % channels.length], "udp-receiver-" + (i + 1));
+      receivers[i].start();
+    }
+    System.out.println("UDP Server is running with " + count + " receiver threads on "
+            + channels.length + (channels.length == 1 ? " socket..." : " SO_REUSEPORT sockets..."));
+    ServerLogger.logUDP("UDP Server is running with " + count + " receiver threads on "
+            + channels.length + (channels.length == 1 ? " socket..." : " SO_REUSEPORT sockets..."));
+  }
+
+  public int getPort() throws IOException {
+    return ((InetSocketAddress) channels[0].getLocalAddress()).getPort();
+  }
+
+  // Number of replies dropped because the socket's send buffer was full.
+  public long getDroppedReplies() {
+    return droppedReplies.get();
+  }
+
+  // Blocks until the server is closed.
+  public void awaitTermination() throws InterruptedException {
+    for (Receiver receiver : receivers) {
+      receiver.join();
+    }
+  }
+
+  public void close() throws IOException {
+    closed = true;
+    for (Receiver receiver : receivers) {
+      receiver.interrupt();
+      receiver.selector.wakeup();
+    }
+    for (DatagramChannel channel : channels) {
+      channel.close();
+    }
+    workers.shutdown();
+  }
+
+  // Handles the request in the buffer and leaves the response in it, ready to send.
+  private void handle(ByteBuffer buffer, SocketAddress client) {
+    if (ServerConfig.VERBOSE) {
+      String request = StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+      System.out.println("Received from UDP client " + client + ": " + request);
+      ServerLogger.logUDP("Received from UDP client " + client + ": " + request);
+    }
+    String response;
+    try {
+      response = RequestProcessor.processRequest(buffer);
+    } catch (RuntimeException e) {
+      ServerLogger.logUDPError("Error occurred while handling UDP client request.", e);
+      response = "ERROR " + e;
+    }
+    if (ServerConfig.VERBOSE) {
+      System.out.println("Sent to UDP client " + client + ": " + response);
+      ServerLogger.logUDP("Sent to UDP client " + client + ": " + response);
+    }
+    encode(response, buffer);
+  }
+
+  // Sends a reply and returns its buffer to the pool. UDP does not promise delivery, so a reply
+  // that does not fit in the socket's send buffer is dropped and the client retries.
+  private void reply(DatagramChannel channel, ByteBuffer buffer, SocketAddress client) {
+    try {
+      if (channel.send(buffer, client) == 0) {
+        droppedReplies.incrementAndGet();
+      }
+    } catch (ClosedChannelException e) {
+      // Shutting down.
+    } catch (IOException e) {
+      System.err.println("Error occurred while handling UDP client request. Check server log for more details.");
+      ServerLogger.logUDPError("Error sending UDP reply to " + client, e);
+    } finally {
+      buffer.clear();
+      buffers.offer(buffer);
+    }
+  }
+
+  private static boolean isGet(ByteBuffer buffer) {
+    return buffer.remaining() > 4 && buffer.get(0) == 'G' && buffer.get(1) == 'E' && buffer.get(2) == 'T'
+            && buffer.get(3) == ' ';
+  }
+
+  // Replaces the buffer's contents with a response, ready to send.
+  private static void encode(String response, ByteBuffer buffer) {
+    buffer.clear();
+    if (!RequestProcessor.encode(response, buffer)) {
+      RequestProcessor.encode("ERROR Response larger than " + buffer.capacity() + " bytes", buffer);
+    }
+    buffer.flip();
+  }
+
+  private class Receiver extends Thread {
+    private final DatagramChannel channel;
+    private final Selector selector;
+    // Replies answered on this thread and not sent yet.
+    private final ByteBuffer[] pendingBuffers = new ByteBuffer[Math.max(1, ServerConfig.UDP_BATCH)];
+    private final SocketAddress[] pendingClients = new SocketAddress[pendingBuffers.length];
+    private int pending;
+
+    Receiver(DatagramChannel channel, String name) throws IOException {
+      super(name);
+      this.channel = channel;
+      this.selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void run() {
+      ByteBuffer spare = null;
+      try {
+        while (!closed) {
+          if (spare == null) {
+            // Sending the pending replies frees their buffers.
+            flush();
+            spare = buffers.take();
+          }
+          SocketAddress client = channel.receive(spare);
+          if (client == null) {
+            flush();
+            selector.select();
+            selector.selectedKeys().clear();
+            continue;
+          }
+          ByteBuffer request = spare;
+          spare = null;
+          dispatch(request, client);
+          if (pending == pendingBuffers.length) {
+            flush();
+          }
+        }
+      } catch (InterruptedException | ClosedChannelException e) {
+        // Shutting down.
+      } catch (IOException e) {
+        if (!closed) {
+          System.err.println("Error occurred while listening for UDP packets. Check server log for more details.");
+          ServerLogger.logUDPError("Error occurred while receiving UDP packets on " + getName(), e);
+        }
+      } finally {
+        flush();
+        try {
+          selector.close();
+        } catch (IOException e) {
+          ServerLogger.logUDPError("Unable to close selector of " + getName(), e);
+        }
+      }
+    }
+
+    private void dispatch(ByteBuffer request, SocketAddress client) {
+      boolean truncated = !request.hasRemaining();
+      request.flip();
+      if (truncated) {
+        encode("ERROR Request larger than " + (request.capacity() - 1) + " bytes", request);
+        queue(request, client);
+      } else if (ServerConfig.UDP_INLINE_READS && isGet(request)) {
+        handle(request, client);
+        queue(request, client);
+      } else {
+        workers.execute(() -> {
+          handle(request, client);
+          reply(channel, request, client);
+        });
+      }
+    }
+
+    private void queue(ByteBuffer reply, SocketAddress client) {
+      pendingBuffers[pending] = reply;
+      pendingClients[pending] = client;
+      pending++;
+    }
+
+    private void flush() {
+      for (int i = 0; i < pending; i++) {
+        reply(channel, pendingBuffers[i], pendingClients[i]);
+        pendingBuffers[i] = null;
+        pendingClients[i] = null;
+      }
+      pending = 0;
+    }
+  }
+}
@@ -0,0 +1,360 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead log of a replica, stored as numbered segment files wal-<n>.log in the
+// replica's data directory. Every record is written through a FileChannel as
+// [payload length][CRC32 of payload][payload]. Durable appends use group commit: a thread that
+// needs its record on disk fsyncs everything written so far, so concurrent writers waiting at the
+// same time share a single force() call. Checkpoints roll the log to a new segment and delete the
+// segments a snapshot has made obsolete.
+public class WriteAheadLog implements AutoCloseable {
+  static final byte PUT = 1;
+  static final byte DELETE = 2;
+  static final byte PREPARE = 3;
+  static final byte COMMIT = 4;
+  static final byte ABORT = 5;
+
+  private static final int HEADER_SIZE = 8;
+  private static final Pattern SEGMENT_NAME = Pattern.compile("wal-(\\d+)\\.log");
+
+  private final Path directory;
+  private final boolean fsync;
+  private final Object writeLock = new Object();
+  private final Object syncLock = new Object();
+  // Active segment, guarded by writeLock.
+  private FileChannel channel;
+  private long segment;
+  // Logical position (bytes written over the lifetime of the log) where the active segment starts.
+  private long segmentBase;
+  // Logical end of the last record written, guarded by writeLock.
+  private long writtenPosition;
+  // Everything before this logical position is known to be on disk.
+  private volatile long durablePosition;
+  private long syncCount;
+
+  // Receives the records of the log, in order, during replay.
+  public interface RecordHandler {
+    void onPut(String key, String value);
+    void onDelete(String key);
+    void onPrepare(String transactionId, List<Operation> operations);
+    void onCommit(String transactionId);
+    void onAbort(String transactionId);
+  }
+
+  public WriteAheadLog(Path directory, boolean fsync) throws IOException {
+    Files.createDirectories(directory);
+    this.directory = directory;
+    this.fsync = fsync;
+  }
+
+  // Replays every intact record of the segments numbered fromSegment and above to the handler,
+  // then opens the last segment for appending. A torn or corrupt record at the end of a segment
+  // (e.g. from a crash in the middle of a write) is truncated away.
+  public int replay(long fromSegment, RecordHandler handler) throws IOException {
+    int records = 0;
+    long lastSegment = Math.max(fromSegment, 1);
+    for (long number : listSegments()) {
+      if (number < fromSegment) {
+        continue;
+      }
+      try (FileChannel segmentChannel = FileChannel.open(segmentPath(number), StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        records += replaySegment(segmentChannel, segmentPath(number), handler);
+      }
+      lastSegment = number;
+    }
+    synchronized (syncLock) {
+      synchronized (writeLock) {
+        segment = lastSegment;
+        channel = openSegment(segment);
+        segmentBase = 0;
+        writtenPosition = channel.size();
+        durablePosition = writtenPosition;
+      }
+    }
+    return records;
+  }
+
+  // Replays one segment and returns the number of records dispatched.
+  private int replaySegment(FileChannel segmentChannel, Path path, RecordHandler handler) throws IOException {
+    long position = 0;
+    long size = segmentChannel.size();
+    int records = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (position + HEADER_SIZE <= size) {
+      header.clear();
+      readFully(segmentChannel, path, header, position);
+      header.flip();
+      int length = header.getInt();
+      int checksum = header.getInt();
+      if (length <= 0 || position + HEADER_SIZE + length > size) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(segmentChannel, path, payload, position + HEADER_SIZE);
+      if (checksum != checksum(payload.array(), length)) {
+        break;
+      }
+      payload.flip();
+      dispatch(payload, handler);
+      position += HEADER_SIZE + length;
+      records++;
+    }
+    if (position < size) {
+      System.err.println("Truncating " + (size - position) + " bytes of incomplete log records in " + path);
+      segmentChannel.truncate(position);
+    }
+    return records;
+  }
+
+  // The append methods write a record without waiting for it to reach the disk and return the
+  // record's end position. Pass that position to sync() before acknowledging the write.
+  public long appendPut(String key, String value) throws IOException {
+    return write(encode(PUT, null, null, key, value));
+  }
+
+  public long appendDelete(String key) throws IOException {
+    return write(encode(DELETE, null, null, key, null));
+  }
+
+  public long appendPrepare(String transactionId, List<Operation> operations) throws IOException {
+    return write(encode(PREPARE, transactionId, operations, null, null));
+  }
+
+  public long appendCommit(String transactionId) throws IOException {
+    return write(encode(COMMIT, transactionId, null, null, null));
+  }
+
+  // Sync an abort before answering it too: a prepared transaction without an outcome in the log
+  // is still in doubt after a restart and holds its keys until the coordinator resolves it.
+  public long appendAbort(String transactionId) throws IOException {
+    return write(encode(ABORT, transactionId, null, null, null));
+  }
+
+  private long write(byte[] record) throws IOException {
+    synchronized (writeLock) {
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      long offset = writtenPosition - segmentBase;
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, offset + buffer.position());
+      }
+      writtenPosition += record.length;
+      return writtenPosition;
+    }
+  }
+
+  // Blocks until everything up to position is on disk. The first waiting thread fsyncs on behalf
+  // of every record written so far; the others usually find their record already durable.
+  public void sync(long position) throws IOException {
+    if (!fsync || durablePosition >= position) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (durablePosition >= position) {
+        return;
+      }
+      long target;
+      FileChannel active;
+      synchronized (writeLock) {
+        target = writtenPosition;
+        active = channel;
+      }
+      active.force(false);
+      syncCount++;
+      durablePosition = target;
+    }
+  }
+
+  // Closes the active segment and starts a new one. Returns the number of the new segment; every
+  // record appended from now on goes to that segment or a later one.
+  public long roll() throws IOException {
+    synchronized (syncLock) {
+      synchronized (writeLock) {
+        channel.force(false);
+        channel.close();
+        durablePosition = writtenPosition;
+        segment++;
+        segmentBase = writtenPosition;
+        channel = openSegment(segment);
+        return segment;
+      }
+    }
+  }
+
+  // Deletes the segments numbered below segment, once a snapshot covers them.
+  public void deleteSegmentsBefore(long segment) throws IOException {
+    for (long number : listSegments()) {
+      if (number < segment) {
+        Files.deleteIfExists(segmentPath(number));
+      }
+    }
+  }
+
+  // Number of fsync calls issued so far.
+  public long getSyncCount() {
+    synchronized (syncLock) {
+      return syncCount;
+    }
+  }
+
+  // Bytes written to the active segment.
+  public long getSegmentSize() {
+    synchronized (writeLock) {
+      return writtenPosition - segmentBase;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      synchronized (writeLock) {
+        if (fsync) {
+          channel.force(false);
+        }
+        channel.close();
+      }
+    }
+  }
+
+  private List<Long> listSegments() throws IOException {
+    List<Long> segments = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+      for (Path path : files) {
+        Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+        if (matcher.matches()) {
+          segments.add(Long.parseLong(matcher.group(1)));
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private Path segmentPath(long number) {
+    return directory.resolve(String.format("wal-%020d.log", number));
+  }
+
+  private FileChannel openSegment(long number) throws IOException {
+    return FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+  }
+
+  static byte[] encode(byte type, String transactionId, List<Operation> operations, String key, String value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0); // length, filled in below
+      out.writeInt(0); // checksum, filled in below
+      out.writeByte(type);
+      switch (type) {
+        case PUT:
+        case DELETE:
+          writeString(out, key);
+          writeString(out, value);
+          break;
+        case PREPARE:
+          writeString(out, transactionId);
+          out.writeInt(operations.size());
+          for (Operation op : operations) {
+            writeString(out, op.getOperation());
+            writeString(out, op.getKey());
+            writeString(out, op.getValue());
+          }
+          break;
+        default:
+          writeString(out, transactionId);
+          break;
+      }
+      byte[] record = bytes.toByteArray();
+      int length = record.length - HEADER_SIZE;
+      CRC32 crc = new CRC32();
+      crc.update(record, HEADER_SIZE, length);
+      ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+      return record;
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to encode log record", e);
+    }
+  }
+
+  private static void dispatch(ByteBuffer payload, RecordHandler handler) throws IOException {
+    byte type = payload.get();
+    switch (type) {
+      case PUT:
+        handler.onPut(readString(payload), readString(payload));
+        break;
+      case DELETE:
+        handler.onDelete(readString(payload));
+        break;
+      case PREPARE: {
+        String transactionId = readString(payload);
+        int count = payload.getInt();
+        List<Operation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          operations.add(new Operation(readString(payload), readString(payload), readString(payload)));
+        }
+        handler.onPrepare(transactionId, operations);
+        break;
+      }
+      case COMMIT:
+        handler.onCommit(readString(payload));
+        break;
+      case ABORT:
+        handler.onAbort(readString(payload));
+        break;
+      default:
+        throw new IOException("Unknown log record type " + type);
+    }
+  }
+
+  // Strings are stored as a length-prefixed UTF-8 byte sequence, -1 encoding null.
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return value;
+  }
+
+  private static int checksum(byte[] data, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+    return (int) crc.getValue();
+  }
+
+  private static void readFully(FileChannel channel, Path path, ByteBuffer buffer, long position)
+          throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of log file " + path);
+      }
+    }
+  }
+}
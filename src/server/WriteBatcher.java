@@ -0,0 +1,217 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Group commit for the coordinator. Concurrent PUT/DELETE requests are queued and flusher threads
+// turn everything that arrived within the batch window (or up to maxBatchSize operations) into one
+// two-phase commit round. Under light load a write is flushed immediately; under heavy load writes
+// pile up while the rounds in flight finish and share the next ones. With several flushers up to
+// that many rounds are in flight at once, so one slow round does not hold up every write. Writes
+// are routed to the flushers by key, so two rounds in flight never write the same key and turn
+// each other down.
+//
+// A round commits all of its operations or none. When it is still turned down after its conflict
+// retries because some of its keys are locked by other transactions, it is split in halves that
+// are tried once more each, without a new round of backoff, so the writes that do not conflict
+// still commit. Halves are split again at most MAX_SPLITS times.
+public class WriteBatcher {
+  private static final int MAX_SPLITS = 3;
+  // Put on a flusher's queue by close() to stop it once the writes before it are flushed.
+  private static final PendingWrite STOP = new PendingWrite(null);
+
+  private final TwoPhaseCommitImpl twoPhaseCommit;
+  private final int maxBatchSize;
+  private final long windowNanos;
+  private final List<LinkedBlockingQueue<PendingWrite>> queues = new ArrayList<>();
+  private final List<Thread> flushers = new ArrayList<>();
+  private volatile boolean closed;
+
+  public WriteBatcher(TwoPhaseCommitImpl twoPhaseCommit, int maxBatchSize, long windowMicros) {
+    this(twoPhaseCommit, maxBatchSize, windowMicros, 1);
+  }
+
+  public WriteBatcher(TwoPhaseCommitImpl twoPhaseCommit, int maxBatchSize, long windowMicros, int flushers) {
+    this.twoPhaseCommit = twoPhaseCommit;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+    for (int i = 0; i < Math.max(1, flushers); i++) {
+      queues.add(new LinkedBlockingQueue<>());
+    }
+  }
+
+  // Queues an operation and blocks until the batch containing it has been committed or aborted.
+  // An interrupt does not cut the wait short, since the write may still commit; the interrupt
+  // status is set again before returning.
+  public boolean submit(Operation operation) {
+    if (closed) {
+      return false;
+    }
+    PendingWrite write = new PendingWrite(operation);
+    startFlushersIfNeeded();
+    LinkedBlockingQueue<PendingWrite> queue = queues.get(Math.floorMod(operation.getKey().hashCode(), queues.size()));
+    queue.add(write);
+    if (closed && queue.remove(write)) {
+      return false;
+    }
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return write.result.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          System.err.println("Exception during batched commit: " + e.getCause());
+          return false;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // Stops the flushers, waiting for the writes queued so far to be flushed. Writes submitted
+  // after it fail.
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (LinkedBlockingQueue<PendingWrite> queue : queues) {
+      queue.add(STOP);
+    }
+    try {
+      for (Thread flusher : flushers) {
+        flusher.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (LinkedBlockingQueue<PendingWrite> queue : queues) {
+      failQueued(queue);
+    }
+  }
+
+  private synchronized void startFlushersIfNeeded() {
+    if (!flushers.isEmpty() || closed) {
+      return;
+    }
+    for (int i = 0; i < queues.size(); i++) {
+      LinkedBlockingQueue<PendingWrite> queue = queues.get(i);
+      Thread flusher = new Thread(() -> flushLoop(queue), "2pc-batch-flusher-" + i);
+      flusher.setDaemon(true);
+      flushers.add(flusher);
+      flusher.start();
+    }
+  }
+
+  private void flushLoop(LinkedBlockingQueue<PendingWrite> queue) {
+    List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+    try {
+      boolean stop = false;
+      while (!stop) {
+        try {
+          batch.add(queue.take());
+          collect(queue, batch);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        stop = batch.remove(STOP);
+        if (!batch.isEmpty()) {
+          flush(batch);
+        }
+        batch.clear();
+      }
+    } finally {
+      // Whatever was collected but not flushed, and what nobody is left to flush.
+      for (PendingWrite write : batch) {
+        write.result.complete(false);
+      }
+      failQueued(queue);
+    }
+  }
+
+  private void flush(List<PendingWrite> batch) {
+    try {
+      if (batch.size() == 1) {
+        Operation op = batch.get(0).operation;
+        batch.get(0).result.complete(twoPhaseCommit.performTwoPhaseCommit(op.getOperation(), op.getKey(), op.getValue()));
+        return;
+      }
+      commit(batch, ServerConfig.CONFLICT_RETRIES, 0);
+    } catch (Throwable e) {
+      // Errors too: the writers would otherwise wait forever. The flusher keeps going.
+      for (PendingWrite write : batch) {
+        write.result.completeExceptionally(e);
+      }
+    }
+  }
+
+  // Commits the writes in one round, or if it is turned down, each half of them in a round of its
+  // own with no conflict retries.
+  private void commit(List<PendingWrite> batch, int conflictRetries, int splits) {
+    List<Operation> operations = new ArrayList<>(batch.size());
+    for (PendingWrite write : batch) {
+      operations.add(write.operation);
+    }
+    TwoPhaseCommitImpl.Outcome outcome = twoPhaseCommit.batchTransaction(operations, null, conflictRetries);
+    if (outcome == TwoPhaseCommitImpl.Outcome.REJECTED && batch.size() > 1 && splits < MAX_SPLITS) {
+      int half = batch.size() / 2;
+      commit(batch.subList(0, half), 0, splits + 1);
+      commit(batch.subList(half, batch.size()), 0, splits + 1);
+      return;
+    }
+    for (PendingWrite write : batch) {
+      write.result.complete(outcome == TwoPhaseCommitImpl.Outcome.COMMITTED);
+    }
+  }
+
+  private static void failQueued(LinkedBlockingQueue<PendingWrite> queue) {
+    PendingWrite write;
+    while ((write = queue.poll()) != null) {
+      write.result.complete(false);
+    }
+  }
+
+  // Adds whatever is already queued to the batch and, if a window is configured, keeps waiting
+  // for more operations until the window closes or the batch is full.
+  private void collect(LinkedBlockingQueue<PendingWrite> queue, List<PendingWrite> batch) throws InterruptedException {
+    queue.drainTo(batch, maxBatchSize - batch.size());
+    if (windowNanos == 0 || batch.contains(STOP)) {
+      return;
+    }
+    long deadline = System.nanoTime() + windowNanos;
+    while (batch.size() < maxBatchSize) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return;
+      }
+      PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (next == null) {
+        return;
+      }
+      batch.add(next);
+      if (next == STOP) {
+        return;
+      }
+      queue.drainTo(batch, maxBatchSize - batch.size());
+    }
+  }
+
+  private static class PendingWrite {
+    private final Operation operation;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+    PendingWrite(Operation operation) {
+      this.operation = operation;
+    }
+  }
+}